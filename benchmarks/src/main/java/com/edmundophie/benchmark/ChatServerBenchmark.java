@@ -0,0 +1,129 @@
+package com.edmundophie.benchmark;
+
+import com.edmundophie.chat.ChatServer;
+import com.edmundophie.codec.Codec;
+import com.edmundophie.codec.Codecs;
+import com.edmundophie.rpc.Request;
+import com.edmundophie.rpc.Response;
+import com.edmundophie.transport.InMemoryTransport;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Request handling against an in-memory server state of realistic size.
+ * Channel messages go to an in-memory transport with no subscribers, so no broker is needed.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ChatServerBenchmark {
+    @Param({"10000"})
+    public int users;
+
+    @Param({"1000"})
+    public int channels;
+
+    @Param({"5"})
+    public int channelsPerUser;
+
+    @Param({"json", "binary"})
+    public String codecName;
+
+    private Codec codec;
+    private InMemoryTransport transport;
+    private ChatServer server;
+    private Random random;
+
+    private String[] nicknames;
+    private String[][] memberships;
+    private byte[] sendRequestBytes;
+    private Response sampleResponse;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        codec = Codecs.forName(codecName);
+        transport = new InMemoryTransport();
+        random = new Random(42);
+        server = new ChatServer(transport, transport);
+
+        nicknames = new String[users];
+        memberships = new String[users][channelsPerUser];
+        for(int i=0; i<users; ++i) {
+            nicknames[i] = server.login("member" + i).getNickname();
+            for(int j=0; j<channelsPerUser; ++j) {
+                String channelName = "channel" + random.nextInt(channels);
+                server.join(nicknames[i], channelName);
+                memberships[i][j] = channelName;
+            }
+        }
+
+        Request send = new Request();
+        send.setCommand("SEND");
+        send.setNickname(nicknames[0]);
+        send.setChannelName(memberships[0][0]);
+        send.setMessage("Hello everyone, is the build green again?");
+        send.setReplyTo("rpcResponseTopic-5f0c8c7e-2d0e-4f43-9b0c-8f6b1f0b9a11");
+        sendRequestBytes = codec.encodeRequest(send);
+
+        sampleResponse = new Response(true, "* #channel1 joined successfully", nicknames[0]);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        server.shutdown();
+        transport.close();
+    }
+
+    @Benchmark
+    public Request parseRequest() throws IOException {
+        return Codecs.detect(sendRequestBytes).decodeRequest(sendRequestBytes);
+    }
+
+    @Benchmark
+    public byte[] encodeResponse() throws IOException {
+        return codec.encodeResponse(sampleResponse);
+    }
+
+    /**
+     * Decode, dispatch and encode the reply, as a request lane does for a SEND.
+     */
+    @Benchmark
+    public byte[] handleSendRequest() throws IOException {
+        Codec requestCodec = Codecs.detect(sendRequestBytes);
+        Response response = server.processRequest(requestCodec.decodeRequest(sendRequestBytes));
+        return requestCodec.encodeResponse(response);
+    }
+
+    @Benchmark
+    public Response loginLogout() {
+        Response response = server.login("");
+        return server.logout(response.getNickname());
+    }
+
+    @Benchmark
+    public Response joinLeave() {
+        String nickname = nicknames[random.nextInt(users)];
+        String channelName = "channel" + random.nextInt(channels);
+        Response response = server.join(nickname, channelName);
+        if(response.isStatus())
+            response = server.leave(nickname, channelName);
+        return response;
+    }
+
+    @Benchmark
+    public Response send() {
+        int user = random.nextInt(users);
+        return server.sendMessage(nicknames[user], memberships[user][random.nextInt(channelsPerUser)], "Hello everyone, is the build green again?");
+    }
+
+    @Benchmark
+    public Response broadcast() {
+        return server.broadcastMessage(nicknames[random.nextInt(users)], "Hello everyone, is the build green again?");
+    }
+}
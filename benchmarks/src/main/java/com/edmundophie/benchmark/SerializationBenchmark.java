@@ -0,0 +1,84 @@
+package com.edmundophie.benchmark;
+
+import com.edmundophie.rpc.Request;
+import com.edmundophie.rpc.Response;
+import com.edmundophie.rpc.RpcSerialization;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-message cost of the JSON RPC bodies: a fresh ObjectMapper per call and
+ * byte[] -> String -> object parsing (the old path) against the shared
+ * readers/writers in RpcSerialization.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SerializationBenchmark {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private ObjectMapper sharedMapper;
+    private Request request;
+    private Response response;
+    private byte[] requestBytes;
+    private byte[] responseBytes;
+
+    @Setup
+    public void setup() throws IOException {
+        sharedMapper = new ObjectMapper();
+
+        request = new Request();
+        request.setCommand("SEND");
+        request.setNickname("user4711");
+        request.setChannelName("general");
+        request.setMessage("Hello everyone, is the build green again?");
+        request.setReplyTo("rpcResponseTopic-5f0c8c7e-2d0e-4f43-9b0c-8f6b1f0b9a11");
+
+        response = new Response(true, "* #general joined successfully", "user4711");
+
+        requestBytes = RpcSerialization.writeRequest(request);
+        responseBytes = RpcSerialization.writeResponse(response);
+    }
+
+    @Benchmark
+    public byte[] writeRequestNewMapper() throws IOException {
+        return new ObjectMapper().writeValueAsString(request).getBytes(UTF_8);
+    }
+
+    @Benchmark
+    public byte[] writeRequestShared() throws IOException {
+        return RpcSerialization.writeRequest(request);
+    }
+
+    @Benchmark
+    public Request readRequestViaString() throws IOException {
+        return sharedMapper.readValue(new String(requestBytes, UTF_8), Request.class);
+    }
+
+    @Benchmark
+    public Request readRequestShared() throws IOException {
+        return RpcSerialization.readRequest(requestBytes);
+    }
+
+    @Benchmark
+    public byte[] writeResponseNewMapper() throws IOException {
+        return new ObjectMapper().writeValueAsString(response).getBytes(UTF_8);
+    }
+
+    @Benchmark
+    public byte[] writeResponseShared() throws IOException {
+        return RpcSerialization.writeResponse(response);
+    }
+
+    @Benchmark
+    public Response readResponseShared() throws IOException {
+        return RpcSerialization.readResponse(responseBytes);
+    }
+}
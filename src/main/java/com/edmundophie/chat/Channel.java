@@ -1,22 +1,68 @@
 package com.edmundophie.chat;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Created by edmundophie on 9/18/15.
  */
 public class Channel {
     private String channelName;
-    private List<Message> messages;
+    private volatile Set<String> members;
+    private String[] restored;
+    private int restoredCount;
+    private boolean shared;
+    private boolean retired;
 
     public Channel() {
-        messages = new ArrayList<Message>();
+        members = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
     }
 
     public Channel(String channelName) {
         this.channelName = channelName;
-        messages = new ArrayList<Message>();
+        members = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    }
+
+    /**
+     * Creates a channel for loading a snapshot. Members are collected in an array until
+     * {@link #publishRestored()} puts them in the member set in one pass.
+     */
+    Channel(String channelName, int expectedMembers) {
+        this.channelName = channelName;
+        members = Collections.emptySet();
+        restored = new String[Math.max(1, expectedMembers)];
+    }
+
+    void restoreMember(String nickname) {
+        if(restoredCount==restored.length) restored = Arrays.copyOf(restored, restoredCount * 2);
+        restored[restoredCount++] = nickname;
+    }
+
+    /**
+     * Publishes the restored members in a presized plain set. The set is never changed
+     * again: the first join or leave copies it into a concurrent set under the lock.
+     * Returns false when no member was restored.
+     */
+    boolean publishRestored() {
+        Set<String> restoredMembers = new HashSet<String>(Math.max(16, (int) (restoredCount / 0.75f) + 1));
+        for(int i=0; i<restoredCount; i++) restoredMembers.add(restored[i]);
+        restored = null;
+        shared = true;
+        members = restoredMembers;
+        return restoredCount>0;
+    }
+
+    private Set<String> mutableMembers() {
+        if(shared) {
+            Set<String> copy = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>(Math.max(16, members.size() * 2)));
+            copy.addAll(members);
+            members = copy;
+            shared = false;
+        }
+        return members;
     }
 
     public String getChannelName() {
@@ -27,11 +73,36 @@ public class Channel {
         this.channelName = channelName;
     }
 
-    public List<Message> getMessages() {
-        return messages;
+    /**
+     * Adds a member unless the channel was retired when its last member left,
+     * in which case the caller has to join a fresh channel instead.
+     */
+    synchronized boolean addMember(String nickname) {
+        if(retired) return false;
+        mutableMembers().add(nickname);
+        return true;
+    }
+
+    /**
+     * Removes a member and retires the channel if it is left empty.
+     * Returns true when the channel was retired.
+     */
+    synchronized boolean removeMember(String nickname) {
+        Set<String> current = mutableMembers();
+        current.remove(nickname);
+        if(current.isEmpty()) retired = true;
+        return retired;
+    }
+
+    public boolean hasMember(String nickname) {
+        return members.contains(nickname);
+    }
+
+    public Set<String> getMembers() {
+        return Collections.unmodifiableSet(members);
     }
 
-    public void setMessages(List<Message> messages) {
-        this.messages = messages;
+    public int getMemberCount() {
+        return members.size();
     }
 }
@@ -0,0 +1,58 @@
+package com.edmundophie.chat;
+
+import com.edmundophie.transport.Record;
+
+import java.util.Set;
+
+/**
+ * Topics of the ephemeral events, enabled with chat.events=true on servers and clients.
+ * Events are typing indicators, read receipts and presence changes: a Message whose text is
+ * the new state of its sender in its channel. Clients write them to the chatEvents topic,
+ * keyed by nickname. The server serving the sender checks that it is a member of the channel,
+ * keeps only the latest state per sender and channel for chat.server.eventWindowMs, and
+ * publishes what is left to the shared topics channelEvents-0 .. channelEvents-(N-1), keyed by
+ * channel name. Clients read the topics of their channels and skip other channels by key.
+ * <p>
+ * Nothing on this path is retried or persisted: a lost event is superseded by the next one.
+ */
+public final class ChannelEvents {
+    public static final boolean ENABLED = Boolean.getBoolean("chat.events");
+    public static final int TOPIC_COUNT = Math.max(1, Integer.getInteger("chat.eventTopics", 16));
+    public static final String INGRESS_TOPIC = "chatEvents";
+    private static final String TOPIC_PREFIX = "channelEvents-";
+
+    public static final String TYPING = "typing";
+    public static final String READ = "read";
+    public static final String ONLINE = User.ONLINE;
+    public static final String OFFLINE = "offline";
+
+    private ChannelEvents() {
+    }
+
+    /**
+     * Whether clients may send the state; ONLINE and OFFLINE are only published by the server.
+     */
+    public static boolean isClientState(String state) {
+        return TYPING.equals(state) || READ.equals(state);
+    }
+
+    public static String topicFor(String channelName) {
+        return TOPIC_PREFIX + (channelName.hashCode() & 0x7fffffff) % TOPIC_COUNT;
+    }
+
+    public static Record record(String channelName, byte[] payload) {
+        return new Record(topicFor(channelName), channelName, payload);
+    }
+
+    /**
+     * Whether an event record belongs to one of the channels, on that channel's event topic.
+     */
+    public static boolean isFor(Record record, Set<String> channelNames) {
+        String channelName = record.getKey();
+        return channelName!=null && channelNames.contains(channelName) && topicFor(channelName).equals(record.getTopic());
+    }
+
+    public static Record ingressRecord(String nickname, byte[] payload) {
+        return new Record(INGRESS_TOPIC, nickname, payload);
+    }
+}
@@ -0,0 +1,167 @@
+package com.edmundophie.chat;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Bounded ring of the latest messages of one channel. Each message is kept as its
+ * timestamp plus one byte array holding the sender length, sender and text in UTF-8,
+ * so a full ring costs about its payload in bytes and no per-message objects. The ring
+ * starts small and doubles up to its capacity, so quiet channels stay cheap. The bytes
+ * it reports include the ring's slots and a fixed per-channel overhead, so the store's
+ * budget bounds the memory of many small channels too. The ring also tracks from which
+ * time on it holds every message of the channel, so a reader can tell whether messages it
+ * asked for were dropped.
+ */
+class ChannelHistory {
+    // Array header of each entry, on top of the payload
+    static final int ENTRY_OVERHEAD = 16;
+    // A timestamp and an entry reference, rounded up
+    static final int SLOT_OVERHEAD = 16;
+    // The history object, its arrays' headers and its map entry
+    static final int CHANNEL_OVERHEAD = 128;
+    private static final int INITIAL_CAPACITY = 8;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final int capacity;
+    private long[] timestamps = new long[0];
+    private byte[][] entries = new byte[0][];
+    private int head;
+    private int size;
+    private long bytes;
+    private boolean evicted;
+    private volatile long lastAccess;
+    // Every message of the channel newer than this is in the ring
+    private long completeAfter = Long.MIN_VALUE;
+    private boolean partial;
+
+    /**
+     * @param partial whether the channel may have older messages than the ring will get,
+     *                e.g. from before a restart or a previous ring that was evicted
+     */
+    ChannelHistory(int capacity, boolean partial) {
+        this.capacity = capacity;
+        this.partial = partial;
+    }
+
+    /**
+     * Appends a message, overwriting the oldest one when full. Returns the change in
+     * retained bytes, or -1 if the history was evicted and must not be used any more.
+     */
+    synchronized long append(Message message) {
+        if(evicted) return -1;
+        long delta = size==entries.length && size < capacity ? grow() : 0;
+        byte[] entry = encode(message.getSender(), message.getText());
+        if(partial) {
+            completeAfter = message.getTimestamp() - 1;
+            partial = false;
+        }
+        int slot = (head + size) % entries.length;
+        delta += entry.length + ENTRY_OVERHEAD;
+        if(size==entries.length) {
+            delta -= entries[head].length + ENTRY_OVERHEAD;
+            completeAfter = Math.max(completeAfter, timestamps[head]);
+            head = (head + 1) % entries.length;
+        } else
+            ++size;
+        entries[slot] = entry;
+        timestamps[slot] = message.getTimestamp();
+        bytes += delta;
+        return delta;
+    }
+
+    /**
+     * Doubles the ring up to its capacity, moving the messages to its start, and returns
+     * the bytes that adds.
+     */
+    private long grow() {
+        int length = Math.min(capacity, Math.max(INITIAL_CAPACITY, entries.length * 2));
+        long[] grownTimestamps = new long[length];
+        byte[][] grownEntries = new byte[length][];
+        for(int i=0; i<size; ++i) {
+            int slot = (head + i) % entries.length;
+            grownTimestamps[i] = timestamps[slot];
+            grownEntries[i] = entries[slot];
+        }
+        long added = (long) (length - entries.length) * SLOT_OVERHEAD + (entries.length==0 ? CHANNEL_OVERHEAD : 0);
+        timestamps = grownTimestamps;
+        entries = grownEntries;
+        head = 0;
+        return added;
+    }
+
+    /**
+     * Returns up to limit of the latest messages newer than since, oldest first.
+     */
+    synchronized List<Message> read(String channelName, int limit, long since) {
+        int start = Math.max(0, size - limit);
+        List<Message> messages = new ArrayList<Message>(size - start);
+        for(int i=start; i<size; ++i) {
+            int slot = (head + i) % entries.length;
+            if(timestamps[slot] > since)
+                messages.add(decode(channelName, timestamps[slot], entries[slot]));
+        }
+        return messages;
+    }
+
+    /**
+     * Whether a read that found the given number of messages newer than since, out of the
+     * limit asked for, saw every message it should have: either the limit was reached or
+     * the ring has dropped nothing newer than since.
+     */
+    synchronized boolean isComplete(long since, int limit, int found) {
+        return found >= limit || since >= completeAfter;
+    }
+
+    /**
+     * Drops every message and returns the number of bytes released.
+     */
+    synchronized long evict() {
+        long released = bytes;
+        evicted = true;
+        timestamps = new long[0];
+        entries = new byte[0][];
+        size = 0;
+        bytes = 0;
+        return released;
+    }
+
+    void touch(long tick) {
+        lastAccess = tick;
+    }
+
+    long getLastAccess() {
+        return lastAccess;
+    }
+
+    /**
+     * The compact record layout, shared with the persistent MessageLog.
+     */
+    static byte[] encode(String sender, String text) {
+        byte[] senderBytes = (sender==null ? "" : sender).getBytes(UTF_8);
+        byte[] textBytes = (text==null ? "" : text).getBytes(UTF_8);
+        byte[] entry = new byte[4 + senderBytes.length + textBytes.length];
+        entry[0] = (byte) (senderBytes.length >>> 24);
+        entry[1] = (byte) (senderBytes.length >>> 16);
+        entry[2] = (byte) (senderBytes.length >>> 8);
+        entry[3] = (byte) senderBytes.length;
+        System.arraycopy(senderBytes, 0, entry, 4, senderBytes.length);
+        System.arraycopy(textBytes, 0, entry, 4 + senderBytes.length, textBytes.length);
+        return entry;
+    }
+
+    private static Message decode(String channelName, long timestamp, byte[] entry) {
+        int senderLength = (entry[0] & 0xFF) << 24 | (entry[1] & 0xFF) << 16 | (entry[2] & 0xFF) << 8 | (entry[3] & 0xFF);
+        String sender = new String(entry, 4, senderLength, UTF_8);
+        String text = new String(entry, 4 + senderLength, entry.length - 4 - senderLength, UTF_8);
+        return new Message(channelName, sender, text, timestamp);
+    }
+
+    static Message decode(String channelName, long timestamp, ByteBuffer entry) {
+        byte[] bytes = new byte[entry.remaining()];
+        entry.duplicate().get(bytes);
+        return decode(channelName, timestamp, bytes);
+    }
+}
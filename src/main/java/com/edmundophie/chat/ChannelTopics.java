@@ -0,0 +1,70 @@
+package com.edmundophie.chat;
+
+import com.edmundophie.transport.Record;
+
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Maps channels to the topics their messages are published on. By default every channel
+ * has a topic of its own. With chat.channelTopics=N all channels share the N topics
+ * channelTopic-0 .. channelTopic-(N-1), so a new channel creates no topic on the broker.
+ * Shared records are keyed by channel name, which keeps a channel in one partition and
+ * lets subscribers drop other channels' messages without decoding them. Servers and
+ * clients must use the same setting.
+ */
+public final class ChannelTopics {
+    public static final int SHARED_TOPIC_COUNT = Integer.getInteger("chat.channelTopics", 0);
+    private static final String SHARED_TOPIC_PREFIX = "channelTopic-";
+    public static final int MAX_NAME_LENGTH = 200;
+    // Kafka's legal topic characters, since a channel's own topic is named after it
+    private static final Pattern NAME_PATTERN = Pattern.compile("[a-zA-Z0-9._-]{1," + MAX_NAME_LENGTH + "}");
+
+    private ChannelTopics() {
+    }
+
+    /**
+     * Whether the name can be used for a channel: Kafka's legal topic characters, at most
+     * MAX_NAME_LENGTH of them, and not "." or "..", which Kafka refuses as topic names.
+     */
+    public static boolean isValidName(String channelName) {
+        return channelName!=null && NAME_PATTERN.matcher(channelName).matches()
+                && !channelName.equals(".") && !channelName.equals("..");
+    }
+
+    public static boolean isShared() {
+        return SHARED_TOPIC_COUNT > 0;
+    }
+
+    public static String topicFor(String channelName) {
+        if(!isShared()) return channelName;
+        return topicFor((channelName.hashCode() & 0x7fffffff) % SHARED_TOPIC_COUNT);
+    }
+
+    /**
+     * The name of the index-th shared topic.
+     */
+    public static String topicFor(int index) {
+        return SHARED_TOPIC_PREFIX + index;
+    }
+
+    public static Record record(String channelName, byte[] payload) {
+        if(!isShared()) return new Record(channelName, payload);
+        return new Record(topicFor(channelName), channelName, payload);
+    }
+
+    /**
+     * Whether a record read from a channel topic belongs to one of the channels. A keyed
+     * record must be on the topic of the channel its key names. A record without a key
+     * belongs to the channel whose own topic it was read from, so it is only accepted
+     * without shared topics and when that channel is one of them.
+     */
+    public static boolean isFor(Record record, Set<String> channelNames) {
+        String channelName = record.getKey();
+        if(channelName==null) {
+            if(isShared()) return false;
+            channelName = record.getTopic();
+        }
+        return channelNames.contains(channelName) && topicFor(channelName).equals(record.getTopic());
+    }
+}
@@ -1,140 +1,223 @@
 package com.edmundophie.chat;
 
+import com.edmundophie.cluster.Partitioner;
+import com.edmundophie.codec.Codec;
+import com.edmundophie.codec.Codecs;
+import com.edmundophie.rpc.AsyncRpcClient;
 import com.edmundophie.rpc.Request;
 import com.edmundophie.rpc.Response;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import kafka.consumer.Consumer;
-import kafka.consumer.ConsumerConfig;
-import kafka.consumer.ConsumerIterator;
-import kafka.consumer.KafkaStream;
-import kafka.javaapi.consumer.ConsumerConnector;
-import kafka.javaapi.producer.Producer;
-import kafka.message.MessageAndMetadata;
-import kafka.producer.KeyedMessage;
-import kafka.producer.ProducerConfig;
-import scala.collection.immutable.Stream;
+import com.edmundophie.rpc.RpcCallback;
+import com.edmundophie.transport.KafkaTransport;
+import com.edmundophie.transport.MultiTopicSubscription;
+import com.edmundophie.transport.Subscription;
+import com.edmundophie.transport.Transport;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Created by edmundophie on 10/15/15.
  */
 public class ChatClient {
-    private static Producer requestProducer;
     private final static String BROKER_LIST = "localhost:9092";
-    private final static String PRODUCER_TYPE= "sync";
-    private final static String SERIALIZER = "kafka.serializer.StringEncoder";
-    private final static String REQUEST_REQUIRED_ACK = "1";
     private final static String RPC_REQUEST_TOPIC_NAME = "rpcRequestTopic";
     private final static String ZOOKEEPER_SERVER = "localhost:2181";
-    private final static String RPC_RESPONSE_TOPIC_NAME = "rpcResponseTopic";
-    private static ConsumerConfig consumerConfig;
+    private final static boolean USE_SHARED_RESPONSE_TOPIC = "shared".equalsIgnoreCase(System.getProperty("chat.client.replyMode", "client"));
+    private final static int RPC_MAX_IN_FLIGHT = Integer.getInteger("chat.client.maxInFlight", 32);
+    private final static long RPC_TIMEOUT_MS = Long.getLong("chat.client.rpcTimeoutMs", 10000L);
+    private final static long HEARTBEAT_MS = Long.getLong("chat.client.heartbeatMs", 30000L);
 
-    private ConsumerConnector consumerConnector;
-    private ConsumerIterator<byte[], byte[]> consumerIterator;
+    private Transport transport;
+    private AsyncRpcClient rpcClient;
     private String consumerGroup;
-
-    private ObjectMapper mapper;
-    private boolean isLoggedIn;
-    private String nickname;
+    private String channelConsumerGroup;
+    private String replyTopic;
+
+    private Codec codec;
+    // Also read by the heartbeat thread
+    private volatile boolean isLoggedIn;
+    private volatile String nickname;
+    private volatile boolean sessionExpired;
+    private ScheduledExecutorService heartbeat;
     private Map<String, Boolean> topicListenerStatusMap;
-    private Map<String, MessageConsumerImpl> topicListenerThreadMap;
-    private Map<String, ConsumerConnector> topicListenerConsumerConnectorMap;
-
-    public ChatClient() {
+    // One subscription and one thread print the messages of every joined channel
+    private MultiTopicSubscription channelSubscription;
+    private MessageConsumerImpl channelListenerThread;
+    private Set<String> joinedChannels;
+    // The ephemeral events of the joined channels, printed by a second thread
+    private MultiTopicSubscription eventSubscription;
+    private EventConsumerImpl eventListenerThread;
+    private Set<String> eventChannels;
+
+    public ChatClient(Transport transport) throws IOException {
+        this.transport = transport;
         isLoggedIn = false;
         nickname = "";
-        mapper = new ObjectMapper();
+        codec = Codecs.configured();
         consumerGroup = UUID.randomUUID().toString();
+        channelConsumerGroup = UUID.randomUUID().toString();
         initResponseConsumer();
         topicListenerStatusMap = new HashMap<String, Boolean>();
-        topicListenerThreadMap = new HashMap<String, MessageConsumerImpl>();
-        topicListenerConsumerConnectorMap = new HashMap<String, ConsumerConnector>();
+        if(HEARTBEAT_MS > 0) startHeartbeat();
     }
 
     public static void main(String[] args) {
         System.out.println("Starting client....");
 
-        initRequestProducer();
-        ChatClient client = new ChatClient();
+        Transport transport = new KafkaTransport(BROKER_LIST, ZOOKEEPER_SERVER);
+        ChatClient client = null;
         try {
+            client = new ChatClient(transport);
             client.start();
         } catch (Exception e) {
             e.printStackTrace();
         } finally {
-            client.shutdown();
-            requestProducer.close();
+            if(client!=null)
+                client.shutdown();
+            transport.close();
         }
     }
 
-    private static void initRequestProducer() {
-        Properties props = new Properties();
-        props.put("metadata.broker.list", BROKER_LIST);
-        props.put("request.required.acks", REQUEST_REQUIRED_ACK);
-        props.put("producer.type", PRODUCER_TYPE);
-        props.put("serializer.class", SERIALIZER);
-
-        ProducerConfig config = new ProducerConfig(props);
-        requestProducer = new Producer(config);
-    }
-
     private static void printInvalidCommand() {
         System.err.println("* Invalid Command");
     }
 
-    private void initResponseConsumer() {
-        createConsumerConfig();
-        consumerConnector = Consumer.createJavaConsumerConnector(consumerConfig);
-
-        Map<String, Integer> topicCountMap = new HashMap<String, Integer>();
-        topicCountMap.put(RPC_RESPONSE_TOPIC_NAME, 1);
-
-        Map<String, List<KafkaStream<byte[], byte[]>>> consumerMap = consumerConnector.createMessageStreams(topicCountMap);
-        KafkaStream<byte[], byte[]> stream = consumerMap.get(RPC_RESPONSE_TOPIC_NAME).get(0);
+    /**
+     * In the default "client" reply mode the server answers on the one of the fixed
+     * ReplyTopics this client's id hashes to, so the client reads a fraction of the responses
+     * and no topic is created per client. The "shared" mode reads every response from the
+     * common response topic.
+     */
+    private void initResponseConsumer() throws IOException {
+        replyTopic = USE_SHARED_RESPONSE_TOPIC ? null : ReplyTopics.topicFor(consumerGroup);
+        Subscription responseSubscription = transport.subscribe(replyTopic==null ? ReplyTopics.SHARED_TOPIC : replyTopic, consumerGroup, false);
+        rpcClient = new AsyncRpcClient(transport, RPC_REQUEST_TOPIC_NAME, responseSubscription, RPC_MAX_IN_FLIGHT, RPC_TIMEOUT_MS);
+        try {
+            if(replyTopic!=null && !rpcClient.awaitReady(replyTopic, RPC_TIMEOUT_MS))
+                System.err.println("* Not receiving from " + replyTopic + " yet, the first responses may be missed");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
-        consumerIterator = stream.iterator();
+    private Response sendRpcRequest(Request request) throws Exception {
+        request.setReplyTo(replyTopic);
+        byte[] responseBytes;
+        try {
+            responseBytes = rpcClient.call(getRequestTopic(request), getPartitionKey(request), codec.encodeRequest(request));
+        } catch (TimeoutException e) {
+            return new Response(false, "* Server did not respond in time", null);
+        }
+        // The server answers in the codec the request was written with; detect anyway during rollout
+        return Codecs.detect(responseBytes).decodeResponse(responseBytes);
     }
 
-    private void createConsumerConfig() {
-        Properties consumerProperties = new Properties();
-        consumerProperties.put("zookeeper.connect", ZOOKEEPER_SERVER);
-        consumerProperties.put("group.id", UUID.randomUUID().toString());
-        consumerProperties.put("zookeeper.session.timeout.ms", "400");
-        consumerProperties.put("zookeeper.sync.time.ms", "200");
-        consumerProperties.put("auto.commit.interval.ms", "1000");
-        consumerProperties.put("auto.offset.reset", "largest");
+    /**
+     * Requests go to the topic of the partition their nickname falls in, so the server
+     * instance that owns the user's session gets them.
+     */
+    private static String getRequestTopic(Request request) {
+        return Partitioner.requestTopicFor(RPC_REQUEST_TOPIC_NAME, request.getNickname(), Partitioner.CONFIGURED_COUNT);
+    }
 
-        consumerConfig = new ConsumerConfig(consumerProperties);
+    /**
+     * Keyed by nickname so the server consumes a user's requests from one stream, in order.
+     * A login without nickname may go to any stream.
+     */
+    private static String getPartitionKey(Request request) {
+        return request.getNickname()==null || request.getNickname().isEmpty() ? null : request.getNickname();
     }
 
-    private String sendRpcRequest(String message) {
-        String corrId = UUID.randomUUID().toString();
-        KeyedMessage<String, String> msg = new KeyedMessage<String, String>(RPC_REQUEST_TOPIC_NAME, corrId, message);
-        requestProducer.send(msg);
+    /**
+     * Sends without waiting so consecutive messages are pipelined;
+     * failures are reported when their response arrives.
+     */
+    private void sendPipelinedRpcRequest(Request request) throws IOException, InterruptedException {
+        request.setReplyTo(replyTopic);
+        rpcClient.sendAsync(getRequestTopic(request), getPartitionKey(request), codec.encodeRequest(request)).addCallback(new RpcCallback() {
+            public void onComplete(byte[] responseBytes, Throwable error) {
+                if(error!=null) {
+                    System.err.println("* Failed to send the message: " + error.getMessage());
+                    return;
+                }
+                try {
+                    Response response = Codecs.detect(responseBytes).decodeResponse(responseBytes);
+                    if(!response.isStatus())
+                        System.err.println(response.getMessage());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
 
-        return getRpcResponse(corrId);
+    /**
+     * Keeps the session's lease alive while the user is only reading. When the server no
+     * longer knows the session, the user is told and logged out locally before the next command.
+     */
+    private void startHeartbeat() {
+        heartbeat = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "client-heartbeat");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        heartbeat.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    sendHeartbeat();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (IOException e) {
+                    // Retried with the next heartbeat
+                }
+            }
+        }, HEARTBEAT_MS, HEARTBEAT_MS, TimeUnit.MILLISECONDS);
     }
 
-    private String getRpcResponse(String corrId) {
-        String responseMessage = null;
-        while (true) {
-            if(consumerIterator.hasNext()) {
-                MessageAndMetadata<byte[], byte[]> response = consumerIterator.next();
-                if(new String(response.key()).equals(corrId)) {
-                    responseMessage = new String(response.message());
-                    break;
+    private void sendHeartbeat() throws IOException, InterruptedException {
+        final String heartbeatNickname = nickname;
+        if(!isLoggedIn || sessionExpired) return;
+        Request request = new Request();
+        request.setCommand("HEARTBEAT");
+        request.setNickname(heartbeatNickname);
+        request.setReplyTo(replyTopic);
+        rpcClient.sendAsync(getRequestTopic(request), getPartitionKey(request), codec.encodeRequest(request)).addCallback(new RpcCallback() {
+            public void onComplete(byte[] responseBytes, Throwable error) {
+                if(error!=null) return;
+                try {
+                    Response response = Codecs.detect(responseBytes).decodeResponse(responseBytes);
+                    if(!response.isStatus() && isLoggedIn && heartbeatNickname.equals(nickname)) {
+                        sessionExpired = true;
+                        System.err.println("* Your session expired, please login again");
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
                 }
             }
-        }
+        });
+    }
 
-        return responseMessage;
+    private void endExpiredSession() throws InterruptedException {
+        isLoggedIn = false;
+        nickname = "";
+        removeAllTopicListener();
+        removeAllEventListener();
+        sessionExpired = false;
     }
 
     private void shutdown() {
-        consumerConnector.shutdown();
+        if(heartbeat!=null) heartbeat.shutdownNow();
+        rpcClient.close();
     }
 
     private void start() throws Exception {
@@ -143,6 +226,7 @@ public class ChatClient {
         String command = null;
         do {
             String input = new BufferedReader(new InputStreamReader(System.in)).readLine().trim();
+            if(sessionExpired) endExpiredSession();
 
             if(input.isEmpty())
                 printInvalidCommand();
@@ -164,6 +248,14 @@ public class ChatClient {
                     leave(command.toUpperCase(), parameter);
                 } else if (command.equalsIgnoreCase("LOGOUT")) {
                     logout(command.toUpperCase());
+                } else if (command.equalsIgnoreCase("HISTORY")) {
+                    history(command.toUpperCase(), parameter);
+                } else if (command.equalsIgnoreCase("PRESENCE")) {
+                    presence(command.toUpperCase(), parameter);
+                } else if (command.equalsIgnoreCase("TYPING")) {
+                    sendEvent(parameter, ChannelEvents.TYPING);
+                } else if (command.equalsIgnoreCase("READ")) {
+                    sendEvent(parameter, ChannelEvents.READ);
                 } else if (command.equalsIgnoreCase("EXIT")) {
                     exit(command.toUpperCase());
                 } else if (command.charAt(0) == '@') {
@@ -184,14 +276,14 @@ public class ChatClient {
             request.setCommand(command);
             request.setNickname(parameter);
 
-            String responseJson = sendRpcRequest(request.toString());
-            Response response = mapper.readValue(responseJson, Response.class);
+            Response response = sendRpcRequest(request);
 
             if(response.isStatus()) {
                 nickname = response.getNickname();
                 isLoggedIn = true;
                 System.out.println(response.getMessage());
-                createConsumerConfig();
+                channelConsumerGroup = UUID.randomUUID().toString();
+                if(InboxTopics.ENABLED) addInboxListener();
             } else {
                 System.err.println(response.getMessage());
             }
@@ -207,11 +299,11 @@ public class ChatClient {
             request.setChannelName(parameter);
             request.setNickname(nickname);
 
-            String responseJson = sendRpcRequest(request.toString());
-            Response response = mapper.readValue(responseJson, Response.class);
+            Response response = sendRpcRequest(request);
 
             if(response.isStatus()) {
                 addTopicListener(parameter);
+                addEventListener(parameter);
                 System.out.println(response.getMessage());
             } else
                 System.err.println(response.getMessage());
@@ -227,17 +319,81 @@ public class ChatClient {
             request.setChannelName(parameter);
             request.setNickname(nickname);
 
-            String responseJson = sendRpcRequest(request.toString());
-            Response response = mapper.readValue(responseJson, Response.class);
+            Response response = sendRpcRequest(request);
 
             if(response.isStatus()) {
                 removeTopicListener(parameter);
+                removeEventListener(parameter);
+                System.out.println(response.getMessage());
+            } else
+                System.err.println(response.getMessage());
+        }
+    }
+
+    private void history(String command, String parameter) throws Exception {
+        if(!isLoggedIn) System.err.println("* Please login first!");
+        else if(parameter==null || parameter.isEmpty()) printInvalidCommand();
+        else {
+            String[] parameters = parameter.split(" +");
+            Request request = new Request();
+            request.setCommand(command);
+            request.setChannelName(parameters[0]);
+            request.setNickname(nickname);
+            if(parameters.length > 1) {
+                try {
+                    request.setLimit(Integer.parseInt(parameters[1]));
+                } catch (NumberFormatException e) {
+                    printInvalidCommand();
+                    return;
+                }
+            }
+
+            Response response = sendRpcRequest(request);
+
+            if(response.isStatus()) {
+                System.out.println(response.getMessage());
+                if(response.getMessages()!=null)
+                    for(Message message:response.getMessages())
+                        System.out.println("@" + request.getChannelName() + " " + message.getSender() + ": " + message.getText());
+            } else
+                System.err.println(response.getMessage());
+        }
+    }
+
+    private void presence(String command, String parameter) throws Exception {
+        if(!isLoggedIn) System.err.println("* Please login first!");
+        else if(parameter==null || parameter.isEmpty()) printInvalidCommand();
+        else {
+            Request request = new Request();
+            request.setCommand(command);
+            request.setChannelName(parameter);
+            request.setNickname(nickname);
+
+            Response response = sendRpcRequest(request);
+
+            if(response.isStatus()) {
                 System.out.println(response.getMessage());
+                if(response.getPresence()!=null)
+                    for(Map.Entry<String, String> member:response.getPresence().entrySet())
+                        System.out.println("  " + member.getKey() + " (" + member.getValue() + ")");
             } else
                 System.err.println(response.getMessage());
         }
     }
 
+    /**
+     * Events go straight to the event topic without a response; a lost one is superseded by the next.
+     */
+    private void sendEvent(String channelName, String state) throws IOException {
+        if(!isLoggedIn) System.err.println("* Please login first!");
+        else if(channelName==null || channelName.isEmpty()) printInvalidCommand();
+        else if(!ChannelEvents.ENABLED) System.err.println("* Events are not enabled");
+        else {
+            Message event = new Message(channelName, nickname, state, System.currentTimeMillis());
+            transport.send(ChannelEvents.ingressRecord(nickname, codec.encodeMessage(channelName, event)));
+        }
+    }
+
     private void logout(String command) throws Exception {
         if(!isLoggedIn) System.err.println("* Please login first!");
         else {
@@ -245,13 +401,13 @@ public class ChatClient {
             request.setCommand(command);
             request.setNickname(nickname);
 
-            String responseJson = sendRpcRequest(request.toString());
-            Response response = mapper.readValue(responseJson, Response.class);
+            Response response = sendRpcRequest(request);
 
             if(response.isStatus()) {
                 isLoggedIn = false;
                 nickname = "";
                 removeAllTopicListener();
+                removeAllEventListener();
                 System.out.println(response.getMessage());
             } else {
                 System.err.println(response.getMessage());
@@ -276,12 +432,7 @@ public class ChatClient {
             request.setMessage(message);
             request.setNickname(nickname);
 
-            String responseJson = sendRpcRequest(request.toString());
-            Response response = mapper.readValue(responseJson, Response.class);
-
-            if(!response.isStatus()) {
-                System.err.println(response.getMessage());
-            }
+            sendPipelinedRpcRequest(request);
         }
     }
 
@@ -293,45 +444,78 @@ public class ChatClient {
             request.setMessage(message);
             request.setNickname(nickname);
 
-            String responseJson = sendRpcRequest(request.toString());
-            Response response = mapper.readValue(responseJson, Response.class);
-
-            if(!response.isStatus()) {
-                System.err.println(response.getMessage());
-            }
+            sendPipelinedRpcRequest(request);
         }
     }
 
-    private void addTopicListener(String topic) {
-        ConsumerConnector topicConsumerConnector = Consumer.createJavaConsumerConnector(consumerConfig);
-        topicListenerConsumerConnectorMap.put(topic, topicConsumerConnector);
-
-        Map<String, Integer> topicCountMap = new HashMap<String, Integer>();
-        topicCountMap.put(topic, 1);
+    /**
+     * With inbox delivery the server writes every joined channel's messages to the user's
+     * inbox, so one stream is read for the whole session and joins need no subscription.
+     */
+    private void addInboxListener() {
+        Subscription inbox = transport.subscribe(InboxTopics.topicFor(nickname), channelConsumerGroup, false);
+        channelListenerThread = new MessageConsumerImpl(inbox, Collections.singleton(nickname));
+        channelListenerThread.start();
+    }
 
-        Map<String, List<KafkaStream<byte[], byte[]>>> consumerMap = topicConsumerConnector.createMessageStreams(topicCountMap);
-        KafkaStream<byte[], byte[]> stream = consumerMap.get(topic).get(0);
+    private void addTopicListener(String topic) {
+        if(InboxTopics.ENABLED) return;
+        if(channelListenerThread==null) {
+            joinedChannels = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+            channelSubscription = transport.subscribeTopics(channelConsumerGroup, false);
+            channelListenerThread = new MessageConsumerImpl(channelSubscription, joinedChannels);
+            channelListenerThread.start();
+        }
+        joinedChannels.add(topic);
+        channelSubscription.addTopic(ChannelTopics.topicFor(topic));
+    }
 
-        MessageConsumerImpl topicListenerThread = new MessageConsumerImpl(stream);
-        topicListenerThread.start();
-        topicListenerThreadMap.put(topic, topicListenerThread);
+    private void removeTopicListener(String topic) {
+        if(InboxTopics.ENABLED || channelSubscription==null || !joinedChannels.remove(topic)) return;
+        // A shared topic is kept while another joined channel maps to it
+        String channelTopic = ChannelTopics.topicFor(topic);
+        for(String channelName:joinedChannels) {
+            if(ChannelTopics.topicFor(channelName).equals(channelTopic)) return;
+        }
+        channelSubscription.removeTopic(channelTopic);
     }
 
-    private void removeTopicListener(String topic) throws InterruptedException {
-        topicListenerThreadMap.get(topic).terminate();
-        topicListenerConsumerConnectorMap.get(topic).shutdown();
+    private void removeAllTopicListener() throws InterruptedException {
+        if(channelListenerThread==null) return;
+        channelListenerThread.terminate();
+        channelListenerThread.join();
+        channelListenerThread = null;
+        channelSubscription = null;
+        joinedChannels = null;
+    }
 
-        topicListenerThreadMap.remove(topic);
-        topicListenerConsumerConnectorMap.remove(topic);
+    private void addEventListener(String channelName) {
+        if(!ChannelEvents.ENABLED) return;
+        if(eventListenerThread==null) {
+            eventChannels = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+            eventSubscription = transport.subscribeTopics(UUID.randomUUID().toString(), false);
+            eventListenerThread = new EventConsumerImpl(eventSubscription, eventChannels, nickname);
+            eventListenerThread.start();
+        }
+        eventChannels.add(channelName);
+        eventSubscription.addTopic(ChannelEvents.topicFor(channelName));
     }
 
-    private void removeAllTopicListener() throws InterruptedException {
-        for(String topic:topicListenerThreadMap.keySet()) {
-            topicListenerThreadMap.get(topic).terminate();
-            topicListenerConsumerConnectorMap.get(topic).shutdown();
+    private void removeEventListener(String channelName) {
+        if(eventSubscription==null || !eventChannels.remove(channelName)) return;
+        String eventTopic = ChannelEvents.topicFor(channelName);
+        for(String other:eventChannels) {
+            if(ChannelEvents.topicFor(other).equals(eventTopic)) return;
         }
+        eventSubscription.removeTopic(eventTopic);
+    }
 
-        topicListenerThreadMap.clear();
-        topicListenerConsumerConnectorMap.clear();
+    private void removeAllEventListener() throws InterruptedException {
+        if(eventListenerThread==null) return;
+        eventListenerThread.terminate();
+        eventListenerThread.join();
+        eventListenerThread = null;
+        eventSubscription = null;
+        eventChannels = null;
     }
 }
@@ -1,314 +1,1287 @@
 package com.edmundophie.chat;
 
+import com.edmundophie.cluster.ClusterCoordinator;
+import com.edmundophie.cluster.PartitionListener;
+import com.edmundophie.cluster.Partitioner;
+import com.edmundophie.codec.Codec;
+import com.edmundophie.codec.Codecs;
+import com.edmundophie.log.Log;
+import com.edmundophie.rpc.Command;
 import com.edmundophie.rpc.Request;
 import com.edmundophie.rpc.Response;
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import kafka.consumer.Consumer;
-import kafka.consumer.ConsumerConfig;
-import kafka.consumer.ConsumerIterator;
-import kafka.consumer.KafkaStream;
-import kafka.javaapi.consumer.ConsumerConnector;
-import kafka.javaapi.producer.Producer;
-import kafka.message.MessageAndMetadata;
-import kafka.producer.KeyedMessage;
-import kafka.producer.ProducerConfig;
-
-import java.io.IOException;
+import com.edmundophie.store.SegmentedLog;
+import com.edmundophie.transport.KafkaTransport;
+import com.edmundophie.transport.MultiStreamSubscription;
+import com.edmundophie.transport.MultiTopicSubscription;
+import com.edmundophie.transport.Record;
+import com.edmundophie.transport.Subscription;
+import com.edmundophie.transport.Transport;
+
+import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
 
 /**
  * Created by edmundophie on 10/16/15.
  */
-public class ChatServer {
-    private static Producer responseProducer;
+public class ChatServer implements PartitionListener {
     private final static String BROKER_LIST = "localhost:9092";
-    private final static String PRODUCER_TYPE= "sync";
-    private final static String SERIALIZER = "kafka.serializer.StringEncoder";
-    private final static String REQUEST_REQUIRED_ACK = "1";
     private final static String RPC_REQUEST_TOPIC_NAME = "rpcRequestTopic";
     private final static String ZOOKEEPER_SERVER = "localhost:2181";
     private final static String RPC_RESPONSE_TOPIC_NAME = "rpcResponseTopic";
+    private final static String REPLY_TOPIC_PREFIX = RPC_RESPONSE_TOPIC_NAME + "-";
+    private final static Pattern REPLY_TOPIC_PATTERN = Pattern.compile(Pattern.quote(REPLY_TOPIC_PREFIX) + "[a-zA-Z0-9._-]{1,200}");
     private final static String SERVER_CONSUMER_GROUP = "server-consumer-group";
-    private final static int MAX_GENERATED_RANDOM_ACCOUNT_INT = 99999;
+    private final static String HEARTBEAT_TOPIC_NAME = "serverHeartbeatTopic";
+    private final static String TRANSFER_TOPIC_NAME = "serverTransferTopic";
+    private final static int REQUEST_LANE_COUNT = Integer.getInteger("chat.server.lanes", Runtime.getRuntime().availableProcessors());
+    private final static int REQUEST_LANE_CAPACITY = Integer.getInteger("chat.server.laneCapacity", 1024);
+    private final static KafkaTransport.Durability PUBLISH_DURABILITY = KafkaTransport.Durability.valueOf(System.getProperty("chat.server.publishDurability", "LEADER").toUpperCase());
+    private final static boolean PUBLISH_ASYNC = Boolean.getBoolean("chat.server.publishAsync");
+    private final static int PUBLISH_BATCH_SIZE = Integer.getInteger("chat.server.publishBatchSize", 200);
+    private final static int PUBLISH_LINGER_MS = Integer.getInteger("chat.server.publishLingerMs", 5);
+    private final static int HISTORY_SIZE = Integer.getInteger("chat.server.historySize", 100);
+    private final static long HISTORY_BYTES = Long.getLong("chat.server.historyBytes", 64L * 1024 * 1024);
+    private final static int MAX_HISTORY = Math.max(1, Integer.getInteger("chat.server.maxHistory", Math.max(HISTORY_SIZE, 1000)));
+    private final static String LOG_DIR = System.getProperty("chat.server.logDir");
+    private final static int LOG_SEGMENT_BYTES = Integer.getInteger("chat.server.logSegmentBytes", 1024 * 1024);
+    private final static SegmentedLog.FsyncPolicy LOG_FSYNC = SegmentedLog.FsyncPolicy.valueOf(System.getProperty("chat.server.logFsync", "INTERVAL").toUpperCase());
+    private final static long LOG_FSYNC_INTERVAL_MS = Long.getLong("chat.server.logFsyncIntervalMs", 1000L);
+    private final static long LOG_RETENTION_BYTES = Long.getLong("chat.server.logRetentionBytes", -1L);
+    private final static long LOG_RETENTION_MS = Long.getLong("chat.server.logRetentionMs", 7L * 24 * 60 * 60 * 1000);
+    private final static int LOG_OPEN_CHANNELS = Integer.getInteger("chat.server.logOpenChannels", 1024);
+    private final static String STATE_DIR = System.getProperty("chat.server.stateDir");
+    private final static long SNAPSHOT_INTERVAL_MS = Long.getLong("chat.server.snapshotIntervalMs", 60000L);
+    private final static String INSTANCE_ID = System.getProperty("chat.server.instanceId", UUID.randomUUID().toString());
+    private final static long HEARTBEAT_INTERVAL_MS = Long.getLong("chat.server.heartbeatMs", 1000L);
+    private final static long HANDOFF_TIMEOUT_MS = Long.getLong("chat.server.handoffTimeoutMs", 10000L);
+    private final static int CONSUMER_STREAMS = Integer.getInteger("chat.server.consumerStreams", 1);
+    private final static long COMMIT_INTERVAL_MS = Long.getLong("chat.server.commitIntervalMs", 1000L);
+    private final static int FANOUT_THREADS = Integer.getInteger("chat.server.fanoutThreads", Runtime.getRuntime().availableProcessors());
+    private final static int FANOUT_BATCH_SIZE = Integer.getInteger("chat.server.fanoutBatchSize", 500);
+    private final static int MAX_SESSIONS = Integer.getInteger("chat.server.maxSessions", SessionRegistry.UNLIMITED);
+    private final static long METRICS_INTERVAL_MS = Long.getLong("chat.server.metricsIntervalMs", 60000L);
+    private final static double USER_RATE = Double.parseDouble(System.getProperty("chat.server.userRate", "0"));
+    private final static int USER_BURST = Integer.getInteger("chat.server.userBurst", 20);
+    private final static double CHANNEL_RATE = Double.parseDouble(System.getProperty("chat.server.channelRate", "0"));
+    private final static int CHANNEL_BURST = Integer.getInteger("chat.server.channelBurst", 100);
+    private final static int ADMISSION_QUEUE_DEPTH = Integer.getInteger("chat.server.admissionQueueDepth", 0);
+    private final static long ADMISSION_RETRY_MS = Long.getLong("chat.server.admissionRetryMs", 100L);
+    private final static long RATE_LIMIT_SWEEP_MS = 10000;
+    private final static int MAX_BATCH_SIZE = Integer.getInteger("chat.server.maxBatchSize", 1000);
+    private final static long SESSION_LEASE_MS = Long.getLong("chat.server.sessionLeaseMs", 0L);
+    private final static long REAPER_TICK_MS = Long.getLong("chat.server.reaperTickMs", 1000L);
+    private final static int REAPER_SLOTS = 512;
+    private final static long IDLE_MS = Long.getLong("chat.server.idleMs", 60000L);
+    private final static int PRESENCE_LIMIT = Integer.getInteger("chat.server.presenceLimit", 1000);
+    private final static long EVENT_WINDOW_MS = Long.getLong("chat.server.eventWindowMs", 50L);
+    private final static int EVENT_MAX_PENDING = Integer.getInteger("chat.server.eventMaxPending", 100000);
 
-    private static Map<String, User> userMap;
-    private static Map<String, Channel> channelMap;
+    // A User is only mutated from the request lane its nickname hashes to
+    private final SessionRegistry sessions = new SessionRegistry(MAX_SESSIONS);
+    private final MembershipIndex membership = new MembershipIndex();
+    private final HistoryStore historyStore = new HistoryStore(HISTORY_SIZE, HISTORY_BYTES);
+    private final Codec channelCodec = Codecs.configured();
+    private MessageLog messageLog;
+    private SessionStore sessionStore;
 
-    private ConsumerConnector consumerConnector;
-    private ConsumerIterator<byte[], byte[]> consumerIterator;
-    private ObjectMapper mapper;
+    private final Transport rpcTransport;
+    private final Transport channelTransport;
+    private final RequestDispatcher dispatcher;
+    private final ServerMetrics metrics;
+    private final String instanceId;
+    private final int partitionCount;
+    private final ClusterCoordinator coordinator;
+    private final SessionRegistry.NicknameFilter nicknameFilter;
+    private final ConcurrentMap<Integer, RequestStream> streams = new ConcurrentHashMap<Integer, RequestStream>();
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    // Runs the offset commits and the rate limiter sweeps
+    private final ScheduledExecutorService scheduler;
+    private final RateLimiter userLimiter = new RateLimiter(USER_RATE, USER_BURST);
+    private final RateLimiter channelLimiter = new RateLimiter(CHANNEL_RATE, CHANNEL_BURST);
+    private final InboxFanOut fanOut;
+    // Null unless sessions have leases
+    private final SessionReaper reaper;
+    private MultiTopicSubscription fanOutSubscription;
+    private Thread fanOutReader;
+    // Null unless chat.events is set
+    private final EventCoalescer events;
+    private Subscription eventSubscription;
+    private Thread eventReader;
 
-    public ChatServer() {
-        initResponseProducer();
-        initRequestConsumer();
-        mapper = new ObjectMapper();
+    public ChatServer(Transport rpcTransport, Transport channelTransport) throws IOException {
+        this(rpcTransport, channelTransport, INSTANCE_ID, Partitioner.CONFIGURED_COUNT);
     }
 
-    public static void main(String[] args) throws JsonProcessingException {
-        System.out.println("- Starting server...");
-        initConfiguration();
-        ChatServer server = new ChatServer();
-        server.start();
-        server.shutdown();
-        responseProducer.close();
+    /**
+     * Serves requests from rpcTransport and publishes channel messages through channelTransport.
+     * Messages are also persisted when chat.server.logDir is set, and users and memberships
+     * are restored from and saved to chat.server.stateDir when it is set.
+     * <p>
+     * With more than one partition the server is one instance of a cluster: users are
+     * partitioned by nickname, each instance serves the request topics of the partitions
+     * a ClusterCoordinator assigns to it and hands their sessions over when they move.
+     * Every instance of a cluster needs its own instanceId and stateDir.
+     */
+    public ChatServer(Transport rpcTransport, Transport channelTransport, String instanceId, int partitionCount) throws IOException {
+        this(rpcTransport, channelTransport, channelTransport, instanceId, partitionCount);
     }
 
-    public static void initConfiguration() {
-        userMap =  new HashMap<String, User>();
-        channelMap =  new HashMap<String, Channel>();
-    }
+    /**
+     * Publishes ephemeral events through eventTransport, which may trade durability for latency.
+     */
+    public ChatServer(Transport rpcTransport, Transport channelTransport, Transport eventTransport, String instanceId, int partitionCount) throws IOException {
+        this.rpcTransport = rpcTransport;
+        this.channelTransport = channelTransport;
+        this.instanceId = instanceId;
+        this.partitionCount = Math.max(1, partitionCount);
+        dispatcher = new RequestDispatcher(REQUEST_LANE_COUNT, REQUEST_LANE_CAPACITY);
+        metrics = new ServerMetrics(dispatcher, sessions, membership);
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "chat-server-scheduler");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        events = ChannelEvents.ENABLED ? new EventCoalescer(eventTransport, channelCodec, EVENT_MAX_PENDING, metrics) : null;
+        fanOut = InboxTopics.ENABLED ? new InboxFanOut(channelTransport, membership, FANOUT_THREADS, FANOUT_BATCH_SIZE) : null;
+        if(fanOut!=null && this.partitionCount > 1 && !ChannelTopics.isShared())
+            throw new IllegalStateException("Inbox delivery in a cluster needs shared channel topics (chat.channelTopics)");
+        reaper = SESSION_LEASE_MS > 0 ? new SessionReaper(sessions, REAPER_TICK_MS, REAPER_SLOTS, new SessionReaper.ExpiryHandler() {
+            public void expired(User user) {
+                expireSession(user);
+            }
+        }, System.currentTimeMillis()) : null;
+        openStorage();
+        // Restored sessions get a fresh lease; the time the server was down is not the clients' fault
+        for(User user:sessions.getUsers())
+            startLease(user);
 
-    private void initResponseProducer() {
-        Properties props = new Properties();
-        props.put("metadata.broker.list", BROKER_LIST);
-        props.put("request.required.acks", REQUEST_REQUIRED_ACK);
-        props.put("producer.type", PRODUCER_TYPE);
-        props.put("serializer.class", SERIALIZER);
-        props.put("retry.backoff.ms", "500");
+        if(this.partitionCount==1) {
+            coordinator = null;
+            // Subscribe right away so requests sent before start() are queued, not dropped
+            streams.put(0, new RequestStream(RPC_REQUEST_TOPIC_NAME));
+        } else {
+            coordinator = new ClusterCoordinator(rpcTransport, HEARTBEAT_TOPIC_NAME, TRANSFER_TOPIC_NAME, instanceId,
+                    this.partitionCount, HEARTBEAT_INTERVAL_MS, HANDOFF_TIMEOUT_MS, this);
+        }
+        // In a cluster a generated nickname must fall in a partition served here,
+        // or the user's next requests would go to another instance
+        nicknameFilter = coordinator==null ? null : new SessionRegistry.NicknameFilter() {
+            public boolean accept(String nickname) {
+                return coordinator.isActive(Partitioner.partitionFor(nickname, ChatServer.this.partitionCount));
+            }
+        };
+    }
 
-        ProducerConfig config = new ProducerConfig(props);
-        responseProducer = new Producer(config);
+    public static void main(String[] args) throws Exception {
+        Log.info("- Starting server...");
+        Transport rpcTransport = new KafkaTransport(BROKER_LIST, ZOOKEEPER_SERVER);
+        Transport publishTransport = new KafkaTransport(BROKER_LIST, ZOOKEEPER_SERVER, PUBLISH_DURABILITY, PUBLISH_ASYNC, PUBLISH_BATCH_SIZE, PUBLISH_LINGER_MS);
+        // Events are superseded by the next one, so they are sent without waiting for the broker
+        Transport eventTransport = new KafkaTransport(BROKER_LIST, ZOOKEEPER_SERVER, KafkaTransport.Durability.NONE, true, PUBLISH_BATCH_SIZE, PUBLISH_LINGER_MS);
 
+        final ChatServer server = new ChatServer(rpcTransport, publishTransport, eventTransport, INSTANCE_ID, Partitioner.CONFIGURED_COUNT);
+        // Hand the partitions over to the other instances instead of letting them time out
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            public void run() {
+                try {
+                    server.shutdown();
+                } catch (Exception e) {
+                    Log.error("- Failed to shut down", e);
+                }
+            }
+        }));
+        server.start();
+        rpcTransport.close();
+        publishTransport.close();
+        eventTransport.close();
     }
 
-    private void initRequestConsumer() {
-        Properties props = new Properties();
-        props.put("zookeeper.connect", ZOOKEEPER_SERVER);
-        props.put("group.id", SERVER_CONSUMER_GROUP);
-        props.put("zookeeper.session.timeout.ms", "400");
-        props.put("zookeeper.sync.time.ms", "200");
-        props.put("auto.commit.interval.ms", "1000");
-        props.put("auto.offset.reset", "largest");
+    private void openStorage() throws IOException {
+        if(LOG_DIR!=null)
+            messageLog = new MessageLog(new File(LOG_DIR), LOG_SEGMENT_BYTES, LOG_FSYNC, LOG_FSYNC_INTERVAL_MS, LOG_RETENTION_BYTES, LOG_RETENTION_MS,
+                    LOG_OPEN_CHANNELS);
+        if(STATE_DIR!=null) {
+            long start = System.nanoTime();
+            sessionStore = new SessionStore(new File(STATE_DIR), LOG_SEGMENT_BYTES, LOG_FSYNC);
+            sessionStore.start(sessions, membership, SNAPSHOT_INTERVAL_MS, LOG_FSYNC_INTERVAL_MS);
+            Log.info("- Restored " + sessions.size() + " user(s) in " + membership.getChannelCount() + " channel(s) in "
+                    + (System.nanoTime() - start) / 1000000 + " ms");
+        }
+    }
 
-        ConsumerConfig config = new ConsumerConfig(props);
-        consumerConnector = Consumer.createJavaConsumerConnector(config);
+    /**
+     * Snapshots the session state and closes the persistent stores.
+     */
+    private void closeStorage() throws IOException {
+        if(messageLog!=null) {
+            messageLog.close();
+            messageLog = null;
+        }
+        if(sessionStore!=null) {
+            sessionStore.snapshot();
+            sessionStore.close();
+            sessionStore = null;
+        }
+    }
 
-        Map<String, Integer> topicCountMap = new HashMap<String, Integer>();
-        topicCountMap.put(RPC_REQUEST_TOPIC_NAME, 1);
+    public MembershipIndex getMembership() {
+        return membership;
+    }
 
-        Map<String, List<KafkaStream<byte[], byte[]>>> consumerMap = consumerConnector.createMessageStreams(topicCountMap);
-        KafkaStream<byte[], byte[]> stream = consumerMap.get(RPC_REQUEST_TOPIC_NAME).get(0);
+    public HistoryStore getHistoryStore() {
+        return historyStore;
+    }
 
-        consumerIterator = stream.iterator();
+    public ServerMetrics getMetrics() {
+        return metrics;
     }
 
-    private static void sendRpcResponse(String message, String corrId) {
-        KeyedMessage<String, String> msg = new KeyedMessage<String, String>(RPC_RESPONSE_TOPIC_NAME, corrId, message);
-        responseProducer.send(msg);
+    public int getUserCount() {
+        return sessions.size();
     }
 
-    private static void sendMessageToTopic(String message, String topic) {
-        KeyedMessage<String, String> msg = new KeyedMessage<String, String>(topic, message);
-        responseProducer.send(msg);
+    public SessionRegistry getSessions() {
+        return sessions;
     }
 
-    private void start() throws JsonProcessingException {
-        System.out.println("- Server started");
+    /**
+     * The partitions this instance serves, or null when it is not partitioned.
+     */
+    public BitSet getActivePartitions() {
+        return coordinator==null ? null : coordinator.getActivePartitions();
+    }
 
-        String requestMessage;
-        String corrId;
+    private void sendRpcResponse(Response response, Codec codec, String corrId, String replyTo) throws IOException {
+        byte[] payload = codec.encodeResponse(response);
+        metrics.recordResponseBytes(payload.length);
+        rpcTransport.send(new Record(getResponseTopic(replyTo), corrId, payload));
+    }
 
-        while (true) {
-            if(consumerIterator.hasNext()) {
-                MessageAndMetadata<byte[], byte[]> request = consumerIterator.next();
-                corrId = new String(request.key());
+    /**
+     * Only valid topic names under the response topic prefix are honoured so a request
+     * can't make the server publish into a channel topic.
+     */
+    private static String getResponseTopic(String replyTo) {
+        if(replyTo!=null && REPLY_TOPIC_PATTERN.matcher(replyTo).matches())
+            return replyTo;
+        return RPC_RESPONSE_TOPIC_NAME;
+    }
 
-                requestMessage = new String(request.message());
-                String responseMessage = processRequest(requestMessage);
-                sendRpcResponse(responseMessage, corrId);
+    /**
+     * Serves requests until {@link #shutdown()} is called.
+     */
+    public void start() throws InterruptedException {
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    commitOffsets();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (RuntimeException e) {
+                    Log.warn("- Failed to commit request offsets", e);
+                }
             }
+        }, COMMIT_INTERVAL_MS, COMMIT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        if(reaper!=null) {
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    reaper.advance(System.currentTimeMillis());
+                }
+            }, REAPER_TICK_MS, REAPER_TICK_MS, TimeUnit.MILLISECONDS);
+        }
+        if(channelLimiter.isEnabled()) {
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    channelLimiter.sweep(System.nanoTime());
+                }
+            }, RATE_LIMIT_SWEEP_MS, RATE_LIMIT_SWEEP_MS, TimeUnit.MILLISECONDS);
+        }
+        metrics.start(instanceId, METRICS_INTERVAL_MS);
+        if(events!=null) {
+            events.start(EVENT_WINDOW_MS);
+            startEventReader();
         }
-    }
 
-    private void shutdown() {
-        consumerConnector.shutdown();
+        Log.info("- Sessions: " + sessions.describeCapacity());
+        if(coordinator==null) {
+            Log.info("- Server started with " + dispatcher.getLaneCount() + " request lane(s), "
+                    + CONSUMER_STREAMS + " consumer stream(s)");
+            streams.get(0).activate();
+        } else {
+            Log.info("- Server " + coordinator.getInstanceId() + " started with " + dispatcher.getLaneCount()
+                    + " request lane(s), " + partitionCount + " partition(s) in the cluster");
+            coordinator.start();
+            if(fanOut!=null) startFanOutReader();
+        }
+        stopped.await();
     }
 
-    private String processRequest(String requestMessage) throws JsonProcessingException {
-        Request request = null;
+    private void handleRecord(Record message) throws IOException {
+        final String corrId = message.getKey();
+        // Answer in the codec the client used, so JSON and binary clients can coexist
+        final Codec codec = Codecs.detect(message.getPayload());
+        final Request request;
+
+        metrics.recordRequestBytes(message.getPayload().length);
         try {
-            request = mapper.readValue(requestMessage, Request.class);
+            request = codec.decodeRequest(message.getPayload());
         } catch (IOException e) {
+            metrics.recordError();
             Response response = new Response();
             response.putStatus(false);
             response.setMessage("* Server Encountered An Error On Processing Message!");
-            return mapper.writeValueAsString(response);
-        }
-
-        if (request.getCommand().equalsIgnoreCase("NICK")) {
-            return login(request.getNickname());
-        } else if (request.getCommand().equalsIgnoreCase("JOIN")) {
-            return join(request.getNickname(), request.getChannelName());
-        } else if (request.getCommand().equalsIgnoreCase("LEAVE")) {
-            return leave(request.getNickname(), request.getChannelName());
-        } else if (request.getCommand().equalsIgnoreCase("LOGOUT")) {
-            return logout(request.getNickname());
-        } else if (request.getCommand().equalsIgnoreCase("EXIT")) {
-            return exit(request.getNickname());
-        } else if (request.getCommand().equalsIgnoreCase("SEND")) {
-            return sendMessage(request.getNickname(), request.getChannelName(), request.getMessage());
-        } else if (request.getCommand().equalsIgnoreCase("BROADCAST")) {
-            return broadcastMessage(request.getNickname(), request.getMessage());
-        } else {
+            sendRpcResponse(response, codec, corrId, null);
+            return;
+        }
+
+        String partitionKey = request.getNickname()==null || request.getNickname().isEmpty() ? corrId : request.getNickname();
+        final Command command = Command.fromName(request.getCommand());
+        // Messages, alone or in a batch, are refused up front while the user's lane is backed up;
+        // other commands change state the client relies on, so they wait for room in the lane instead
+        if(ADMISSION_QUEUE_DEPTH > 0 && publishes(command, request)
+                && dispatcher.getQueuedCount(partitionKey) >= ADMISSION_QUEUE_DEPTH) {
+            sendRpcResponse(throttled(TimeUnit.MILLISECONDS.toNanos(ADMISSION_RETRY_MS)), codec, corrId, request.getReplyTo());
+            return;
+        }
+        dispatcher.dispatch(partitionKey, new Runnable() {
+            public void run() {
+                Response response;
+                long start = System.nanoTime();
+                try {
+                    response = processRequest(request);
+                    if(command==null) metrics.recordUnknownRequest();
+                    else metrics.recordRequest(command, System.nanoTime() - start);
+                } catch (RuntimeException e) {
+                    metrics.recordError();
+                    Log.warn("- Failed to process " + request.getCommand() + " from " + request.getNickname(), e);
+                    // Still answer so the client doesn't wait for its timeout
+                    response = new Response();
+                    response.putStatus(false);
+                    response.setMessage("* Server Encountered An Error On Processing Message!");
+                }
+
+                try {
+                    sendRpcResponse(response, codec, corrId, request.getReplyTo());
+                } catch (Exception e) {
+                    metrics.recordError();
+                    Log.warn("- Failed to send the response to " + request.getNickname(), e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Whether the request sends a message: a SEND or BROADCAST, or a BATCH with one of them.
+     */
+    private static boolean publishes(Command command, Request request) {
+        if(command==Command.SEND || command==Command.BROADCAST) return true;
+        if(command!=Command.BATCH || request.getOperations()==null) return false;
+        for(Request operation:request.getOperations()) {
+            Command operationCommand = operation==null ? null : Command.fromName(operation.getCommand());
+            if(operationCommand==Command.SEND || operationCommand==Command.BROADCAST) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Hands the partitions over to the other instances, stops consuming requests, waits for
+     * the queued ones to be answered and closes the persistent stores.
+     */
+    public void shutdown() throws InterruptedException, IOException {
+        if(stopped.getCount()==0) return;
+        if(coordinator!=null) {
+            coordinator.leave(HANDOFF_TIMEOUT_MS);
+            coordinator.close();
+        }
+        stop(true);
+    }
+
+    /**
+     * Stops at once without handing partitions over, as if the process had died.
+     * The other instances start its partitions empty once they miss its heartbeats.
+     */
+    public void halt() throws InterruptedException, IOException {
+        if(stopped.getCount()==0) return;
+        if(coordinator!=null) coordinator.close();
+        stop(false);
+    }
+
+    private void stop(boolean commit) throws InterruptedException, IOException {
+        scheduler.shutdown();
+        scheduler.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        for(RequestStream stream:streams.values())
+            stream.close(commit);
+        streams.clear();
+        dispatcher.shutdown();
+        if(fanOutReader!=null) {
+            fanOutSubscription.close();
+            fanOutReader.join();
+        }
+        if(fanOut!=null) fanOut.shutdown();
+        if(eventReader!=null) {
+            eventSubscription.close();
+            eventReader.join();
+        }
+        if(events!=null) events.close();
+        metrics.stop();
+        closeStorage();
+        stopped.countDown();
+    }
+
+    public void onAcquire(int partition) {
+        streams.put(partition, new RequestStream(Partitioner.requestTopic(RPC_REQUEST_TOPIC_NAME, partition, partitionCount)));
+    }
+
+    public void onActivate(int partition, byte[] state) {
+        try {
+            if(state!=null) importPartition(state);
+        } catch (Exception e) {
+            Log.warn("- Failed to restore partition " + partition, e);
+        }
+        RequestStream stream = streams.get(partition);
+        if(stream!=null) stream.activate();
+        Log.info("- Serving partition " + partition + (state==null ? "" : " with handed over sessions"));
+    }
+
+    public byte[] onRelease(int partition) {
+        try {
+            RequestStream stream = streams.remove(partition);
+            // Requests already taken from the topic must see the state before it leaves
+            if(stream!=null) stream.close(true);
+            dispatcher.awaitIdle();
+            Log.info("- Released partition " + partition);
+            return exportPartition(partition);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Removes the users of a partition and returns them with their channels.
+     * <pre>
+     * state : userCount (nickname logoutTimestamp channelCount channelName*)*
+     * </pre>
+     */
+    private byte[] exportPartition(int partition) throws IOException {
+        List<User> users = new ArrayList<User>();
+        List<String[]> channels = new ArrayList<String[]>();
+        for(User user:sessions.getUsers()) {
+            if(Partitioner.partitionFor(user.getNickname(), partitionCount)!=partition) continue;
+            if(!sessions.remove(user)) continue;
+            users.add(user);
+            channels.add(membership.getJoinedChannels(user));
+            membership.leaveAll(user);
+            if(sessionStore!=null) sessionStore.recordLogout(user.getNickname());
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(users.size());
+        for(int i=0; i<users.size(); ++i) {
+            out.writeUTF(users.get(i).getNickname());
+            out.writeLong(users.get(i).getLogoutTimestamp());
+            out.writeInt(channels.get(i).length);
+            for(String channelName:channels.get(i))
+                out.writeUTF(channelName);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Restores users exported by another instance, replacing any local session with the same
+     * nickname. Each user is restored on its request lane, as requests would change it.
+     */
+    private void importPartition(byte[] state) throws IOException, InterruptedException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(state));
+        int userCount = in.readInt();
+        for(int i=0; i<userCount; ++i) {
+            final User user = new User(in.readUTF());
+            user.setLogoutTimestamp(in.readLong());
+            final String[] channelNames = new String[in.readInt()];
+            for(int j=0; j<channelNames.length; ++j)
+                channelNames[j] = in.readUTF();
+
+            dispatcher.dispatch(user.getNickname(), new Runnable() {
+                public void run() {
+                    User previous = sessions.restore(user);
+                    if(previous!=null) membership.leaveAll(previous);
+                    startLease(user);
+                    if(sessionStore!=null) sessionStore.recordLogin(user.getNickname());
+                    for(String channelName:channelNames) {
+                        membership.join(user, channelName);
+                        if(sessionStore!=null) sessionStore.recordJoin(user.getNickname(), channelName);
+                    }
+                }
+            });
+        }
+        dispatcher.awaitIdle();
+    }
+
+    /**
+     * Acknowledges the requests taken so far once they have been processed. The streams stop
+     * taking requests while the lanes drain, so a commit never covers a request that is still
+     * queued: after a crash the group resumes with the first unanswered request. Streams that
+     * took nothing since their last commit, or whose commits store nothing, are not paused, so
+     * an idle server or one on InMemoryTransport never stops its lanes. The 0.8 consumer can
+     * only commit the position each stream has read up to, not an offset per lane, so a commit
+     * still has to wait until every lane has drained.
+     */
+    private void commitOffsets() throws InterruptedException {
+        List<RequestStream> paused = new ArrayList<RequestStream>();
+        for(RequestStream stream:streams.values())
+            if(stream.needsCommit()) paused.add(stream);
+        if(paused.isEmpty()) return;
+        for(RequestStream stream:paused)
+            stream.pause();
+        try {
+            dispatcher.awaitIdle();
+            for(RequestStream stream:paused)
+                stream.commit();
+        } finally {
+            for(RequestStream stream:paused)
+                stream.resume();
+        }
+    }
+
+    /**
+     * Consumes one request topic with chat.server.consumerStreams threads. Clients key requests
+     * by nickname, so a user's requests all come out of one stream in order. It subscribes at
+     * once, so the topic's requests are held for this instance, but only processes them once
+     * activated.
+     */
+    private class RequestStream {
+        private final MultiStreamSubscription subscription;
+        private final CountDownLatch activated = new CountDownLatch(1);
+        // Held shared while a request is taken and dispatched, exclusively to stop taking them
+        private final ReentrantReadWriteLock gate = new ReentrantReadWriteLock();
+        private final List<Thread> threads = new ArrayList<Thread>();
+        private volatile boolean closed;
+        // Set when a request is taken, cleared by commit(); only tracked if commits are durable
+        private volatile boolean uncommitted;
+
+        RequestStream(final String topic) {
+            subscription = rpcTransport.subscribe(topic, SERVER_CONSUMER_GROUP, false, CONSUMER_STREAMS);
+            for(int i=0; i<subscription.getStreams().size(); ++i) {
+                final Subscription stream = subscription.getStreams().get(i);
+                Thread thread = new Thread(new Runnable() {
+                    public void run() {
+                        consume(stream);
+                    }
+                }, "request-consumer-" + topic + "-" + i);
+                thread.setDaemon(true);
+                thread.start();
+                threads.add(thread);
+            }
+        }
+
+        void activate() {
+            activated.countDown();
+        }
+
+        private void consume(Subscription stream) {
+            try {
+                activated.await();
+            } catch (InterruptedException e) {
+                return;
+            }
+            // hasNext() blocks until a request arrives and returns false once the subscription is closed
+            while (stream.hasNext()) {
+                gate.readLock().lock();
+                try {
+                    // Left unread, so it stays uncommitted and goes to the next consumer
+                    if(closed) return;
+                    Record record = stream.next();
+                    if(!uncommitted && subscription.isCommitDurable()) uncommitted = true;
+                    handleRecord(record);
+                } catch (Exception e) {
+                    metrics.recordError();
+                    Log.warn("- Failed to take a request", e);
+                } finally {
+                    gate.readLock().unlock();
+                }
+            }
+        }
+
+        void pause() {
+            gate.writeLock().lock();
+        }
+
+        void resume() {
+            gate.writeLock().unlock();
+        }
+
+        boolean needsCommit() {
+            return uncommitted && !closed;
+        }
+
+        /**
+         * Called while paused, so no request is taken between clearing the flag and committing.
+         */
+        void commit() {
+            if(closed) return;
+            uncommitted = false;
+            subscription.commit();
+        }
+
+        /**
+         * Stops taking requests. With commit, waits for the ones taken to be processed and
+         * acknowledges them first.
+         */
+        void close(boolean commit) throws InterruptedException {
+            pause();
+            try {
+                if(commit) {
+                    dispatcher.awaitIdle();
+                    subscription.commit();
+                }
+                closed = true;
+                subscription.close();
+            } finally {
+                resume();
+            }
+            activated.countDown();
+            for(Thread thread:threads)
+                thread.join();
+        }
+    }
+    public Response processRequest(Request request) {
+        Command command = Command.fromName(request.getCommand());
+        if(command==null) {
             Response response = new Response();
             response.putStatus(false);
             response.setMessage("* Unknown Message Command!");
-            return mapper.writeValueAsString(response);
+            return response;
+        }
+        if(command!=Command.NICK && command!=Command.LOGOUT && command!=Command.EXIT) {
+            // After a failover or an expired lease the server may have no session for this user
+            User user = sessions.get(request.getNickname());
+            if(user==null) {
+                Response response = new Response();
+                response.putStatus(false);
+                response.setMessage("* Please login first!");
+                return response;
+            }
+            renewLease(user, command!=Command.HEARTBEAT);
+        }
+
+        switch (command) {
+            case NICK:
+                return login(request.getNickname());
+            case JOIN:
+                return join(request.getNickname(), request.getChannelName());
+            case LEAVE:
+                return leave(request.getNickname(), request.getChannelName());
+            case LOGOUT:
+                return logout(request.getNickname());
+            case EXIT:
+                return exit(request.getNickname());
+            case SEND:
+                return sendMessage(request.getNickname(), request.getChannelName(), request.getMessage());
+            case HISTORY:
+                return history(request.getNickname(), request.getChannelName(), request.getLimit(), request.getSince());
+            case BATCH:
+                return batch(request.getNickname(), request.getOperations());
+            case HEARTBEAT:
+                return new Response(true, "", null);
+            case PRESENCE:
+                return presence(request.getNickname(), request.getChannelName(), request.getLimit());
+            default:
+                return broadcastMessage(request.getNickname(), request.getMessage());
         }
     }
 
-    private String login(String nickname) {
-        System.out.println("- Login method invoked");
+    public Response login(String nickname) {
+        Log.debug("- Login method invoked");
         StringBuilder message = new StringBuilder();
 
-        if(nickname==null || nickname.isEmpty() || userMap.containsKey(nickname)) {
-            if(userMap.containsKey(nickname)) message.append("* Username exist!\n");
-            nickname = generateRandomNickname();
-            message.append("* Random user generated\n");
+        User user = null;
+        if(nickname!=null && !nickname.isEmpty()) {
+            user = sessions.claim(nickname);
+            if(user==null && !sessions.isFull()) message.append("* Username exist!\n");
+        }
+        if(user==null && !sessions.isFull()) {
+            user = sessions.claimGenerated(nicknameFilter);
+            if(user!=null) message.append("* Random user generated\n");
         }
+        if(user==null) {
+            Log.warn("- Login refused: " + sessions.describeCapacity());
+            return new Response(false, sessions.isFull() ? "* Server is full, please try again later" : "* No nickname available, please try again", null);
+        }
+        nickname = user.getNickname();
+        startLease(user);
+        if(sessionStore!=null) sessionStore.recordLogin(nickname);
         message.append("* Successfully logged in as " + nickname);
 
-        userMap.put(nickname, new User(nickname));
-
-        Response response = new Response(true, message.toString(), nickname);
-        return response.toString();
-    }
-
-    private static String generateRandomNickname() {
-        String newNickname;
-        Random random = new Random();
-        do {
-            newNickname = "user" + random.nextInt(MAX_GENERATED_RANDOM_ACCOUNT_INT);
-        } while(userMap.containsKey(newNickname));
-
-        return newNickname;
+        return new Response(true, message.toString(), nickname);
     }
 
-    public static String join(String nickname, String channelName) {
-        System.out.println("- " + nickname + " requested to join #" + channelName);
+    public Response join(String nickname, String channelName) {
+        Log.debug("- ", nickname, " requested to join #", channelName);
+        if(!ChannelTopics.isValidName(channelName))
+            return new Response(false, "* Channel names may only use letters, digits, '.', '_' and '-', up to "
+                    + ChannelTopics.MAX_NAME_LENGTH + " characters", null);
 
-        List userChannelList = userMap.get(nickname).getJoinedChannel();
+        User user = sessions.get(nickname);
         StringBuilder message = new StringBuilder();
         Response response = new Response();
 
-        if(userChannelList.contains(channelName)) {
+        if(membership.isMember(user, channelName)) {
             message.append("* You are already a member of #" + channelName);
             response.putStatus(false);
         } else {
-            if(!channelMap.containsKey(channelName)) {
-                channelMap.put(channelName, new Channel(channelName));
+            if(membership.join(user, channelName)) {
                 message.append("* Created new channel #" + channelName + "\n");
             }
+            if(sessionStore!=null) sessionStore.recordJoin(nickname, channelName);
+            if(events!=null) events.offer(new Message(channelName, nickname, ChannelEvents.ONLINE, System.currentTimeMillis()));
 
-            userChannelList.add(channelName);
             message.append("* #" + channelName + " joined successfully");
             response.putStatus(true);
         }
 
         response.setMessage(message.toString());
-        return response.toString();
+        return response;
     }
 
-    public static String leave(String nickname, String channelName) {
-        System.out.println("- " + nickname + " request to leave #" + channelName);
+    public Response leave(String nickname, String channelName) {
+        Log.debug("- ", nickname, " request to leave #", channelName);
 
         StringBuilder message = new StringBuilder();
         Response response = new Response();
 
-        if(!userMap.get(nickname).getJoinedChannel().contains(channelName)) {
-            System.err.println("- Failed to leave channel. " + nickname + " is not a member of #" + channelName);
+        if(!membership.leave(sessions.get(nickname), channelName)) {
+            Log.debug("- Failed to leave channel. ", nickname, " is not a member of #", channelName);
             message.append("* Failed to leave.\n* You are not a member of #" + channelName);
             response.putStatus(false);
         } else {
-            userMap.get(nickname).getJoinedChannel().remove(channelName);
+            if(sessionStore!=null) sessionStore.recordLeave(nickname, channelName);
+            if(events!=null) events.offer(new Message(channelName, nickname, ChannelEvents.OFFLINE, System.currentTimeMillis()));
             response.putStatus(true);
             message.append("* You are no longer a member of #" + channelName);
         }
 
         response.setMessage(message.toString());
-        return response.toString();
+        return response;
     }
 
 
-    public static String logout(String nickname) {
-        System.out.println("- " + nickname + " requested to logout");
-        userMap.remove(nickname);
+    public Response logout(String nickname) {
+        Log.debug("- ", nickname, " requested to logout");
+        User user = sessions.remove(nickname);
+        userLimiter.remove(nickname);
+        if(user!=null) {
+            if(events!=null) {
+                long now = System.currentTimeMillis();
+                for(String channelName:membership.getJoinedChannels(user))
+                    events.offer(new Message(channelName, nickname, ChannelEvents.OFFLINE, now));
+            }
+            membership.leaveAll(user);
+            if(sessionStore!=null) sessionStore.recordLogout(nickname);
+        }
 
         Response response = new Response();
         response.putStatus(true);
         response.setMessage("* " + nickname + " have been logged out");
 
-        return response.toString();
+        return response;
     }
 
-    public static String exit(String nickname) {
+    public Response exit(String nickname) {
         return logout(nickname);
     }
 
 
-    public static String sendMessage(String nickname, String channelName, String message) {
-        System.out.println("- " + nickname + " sends a message to #" + channelName);
+    public Response sendMessage(String nickname, String channelName, String message) {
+        return sendMessage(nickname, channelName, message, null);
+    }
+
+    /**
+     * @param deferred if not null, the message is added to it to be published later instead of published now
+     */
+    private Response sendMessage(String nickname, String channelName, String message, List<PendingMessage> deferred) {
+        Log.debug("- ", nickname, " sends a message to #", channelName);
         StringBuilder returnedMessage = new StringBuilder();
         Response response = new Response();
 
-        List<String> userChannelList = userMap.get(nickname).getJoinedChannel();
-        if(!userChannelList.contains(channelName)) {
-            System.err.println("- Failed to send " + nickname + " message to #" + channelName + ". User is not a member of the channel.");
+        if(!membership.isMember(sessions.get(nickname), channelName)) {
+            Log.debug("- Failed to send ", nickname, " message to #", channelName, ". User is not a member of the channel.");
             returnedMessage.append("* You are not a member of #" + channelName);
             response.putStatus(false);
         } else {
-            try {
-                Message msg = new Message(nickname, message);
+            Response throttled = throttle(nickname, Collections.singleton(channelName));
+            if(throttled!=null) return throttled;
+            Message msg = new Message(nickname, message);
+            if(deferred!=null) deferred.add(new PendingMessage(msg, Collections.singletonList(channelName), response));
+            else try {
                 distributeMessage(msg, channelName);
             } catch (IOException e) {
-                e.printStackTrace();
+                metrics.recordError();
+                Log.warn("- Failed to publish a message of " + nickname, e);
                 response.putStatus(false);
-                response.setMessage("* Server Encountered An Error On Publishing the Message");
-                return response.toString();
+                response.setMessage("* Server Encountered An Error On Publishing the Message\n* " + e.getMessage());
+                return response;
             }
             response.putStatus(true);
         }
 
         response.setMessage(returnedMessage.toString());
-        return response.toString();
+        return response;
+    }
+
+    public Response broadcastMessage(String nickname, String message) {
+        return broadcastMessage(nickname, message, null);
     }
 
-    public static String broadcastMessage(String nickname, String message) {
-        System.out.println("- " + nickname + " broadcasts a message");
+    private Response broadcastMessage(String nickname, String message, List<PendingMessage> deferred) {
+        Log.debug("- ", nickname, " broadcasts a message");
         StringBuilder returnedMessage = new StringBuilder();
         Response response = new Response();
 
-        List<String> userChannelList = userMap.get(nickname).getJoinedChannel();
-        if(userChannelList.size()==0) {
-            System.err.println("- Failed to send " + nickname + " message. No channel found.");
+        Set<String> userChannelList = sessions.get(nickname).getJoinedChannel();
+        if(userChannelList.isEmpty()) {
+            Log.debug("- Failed to send ", nickname, " message. No channel found.");
             returnedMessage.append("* Failed to send the message\n* You haven't join any channel yet");
             response.putStatus(false);
         } else {
-            try {
-                Message msg = new Message(nickname, message);
+            Response throttled = throttle(nickname, userChannelList);
+            if(throttled!=null) return throttled;
+            Message msg = new Message(nickname, message);
+            // Copied, as later operations of the batch may leave channels
+            if(deferred!=null) deferred.add(new PendingMessage(msg, new ArrayList<String>(userChannelList), response));
+            else try {
                 distributeMessage(msg, userChannelList);
             } catch (IOException e) {
-                e.printStackTrace();
+                metrics.recordError();
+                Log.warn("- Failed to publish a message of " + nickname, e);
                 response.putStatus(false);
-                response.setMessage("* Server Encountered An Error On Publishing the Message");
-                return response.toString();
+                response.setMessage("* Server Encountered An Error On Publishing the Message\n* " + e.getMessage());
+                return response;
             }
             response.putStatus(true);
         }
 
         response.setMessage(returnedMessage.toString());
-        return response.toString();
+        return response;
+    }
+
+    /**
+     * Applies the operations of a BATCH in order and answers them all in one response. The
+     * batch runs as a single task of the user's lane, so none of the user's other requests
+     * interleave with it. The messages it sends are published together after the last
+     * operation, as one producer send; if that fails, every message of the batch is
+     * reported as failed. A HISTORY in the batch therefore doesn't see them yet.
+     */
+    public Response batch(String nickname, List<Request> operations) {
+        Log.debug("- ", nickname, " sent a batch");
+        if(operations==null || operations.isEmpty())
+            return new Response(false, "* The batch has no operations", null);
+        if(operations.size() > MAX_BATCH_SIZE)
+            return new Response(false, "* A batch can have at most " + MAX_BATCH_SIZE + " operations", null);
+
+        List<Response> responses = new ArrayList<Response>(operations.size());
+        List<PendingMessage> pending = new ArrayList<PendingMessage>();
+        for(Request operation:operations) {
+            long start = System.nanoTime();
+            Command command = Command.fromName(operation.getCommand());
+            Response response;
+            if(command==null) {
+                metrics.recordUnknownRequest();
+                response = new Response(false, "* Unknown Message Command!", null);
+            } else {
+                switch (command) {
+                    case JOIN:
+                        response = join(nickname, operation.getChannelName());
+                        break;
+                    case LEAVE:
+                        response = leave(nickname, operation.getChannelName());
+                        break;
+                    case SEND:
+                        response = sendMessage(nickname, operation.getChannelName(), operation.getMessage(), pending);
+                        break;
+                    case BROADCAST:
+                        response = broadcastMessage(nickname, operation.getMessage(), pending);
+                        break;
+                    case HISTORY:
+                        response = history(nickname, operation.getChannelName(), operation.getLimit(), operation.getSince());
+                        break;
+                    case PRESENCE:
+                        response = presence(nickname, operation.getChannelName(), operation.getLimit());
+                        break;
+                    default:
+                        response = new Response(false, "* " + command + " can't be part of a batch", null);
+                        break;
+                }
+                metrics.recordRequest(command, System.nanoTime() - start);
+            }
+            responses.add(response);
+        }
+
+        if(!pending.isEmpty()) {
+            try {
+                distributeMessages(pending);
+            } catch (IOException e) {
+                metrics.recordError();
+                Log.warn("- Failed to publish the batched messages of " + nickname, e);
+                for(PendingMessage message:pending) {
+                    message.response.putStatus(false);
+                    message.response.setMessage("* Server Encountered An Error On Publishing the Message\n* " + e.getMessage());
+                }
+            }
+        }
+
+        int succeeded = 0;
+        for(Response response:responses)
+            if(response.isStatus()) ++succeeded;
+        Response response = new Response(true, "* " + succeeded + " of " + responses.size() + " operation(s) succeeded", null);
+        response.setResponses(responses);
+        return response;
+    }
+
+    /**
+     * Lists the members of a channel the user is in, with whether each is online or idle: idle
+     * members sent nothing but heartbeats for chat.server.idleMs. In a cluster only the members
+     * served by this instance are listed.
+     */
+    public Response presence(String nickname, String channelName, Integer limit) {
+        Log.debug("- ", nickname, " requested the presence of #", channelName);
+        if(!membership.isMember(sessions.get(nickname), channelName))
+            return new Response(false, "* You are not a member of #" + channelName, null);
+
+        int max = limit==null || limit < 1 ? PRESENCE_LIMIT : Math.min(limit, PRESENCE_LIMIT);
+        long now = System.currentTimeMillis();
+        Map<String, String> presence = new LinkedHashMap<String, String>();
+        int online = 0;
+        for(String member:membership.getMembers(channelName)) {
+            if(presence.size() >= max) break;
+            User memberUser = sessions.get(member);
+            if(memberUser==null) continue;
+            String state = memberUser.getPresence(now, IDLE_MS);
+            if(User.ONLINE.equals(state)) ++online;
+            presence.put(member, state);
+        }
+
+        Response response = new Response(true, "* " + presence.size() + " of " + membership.getMemberCount(channelName)
+                + " member(s) of #" + channelName + " listed, " + online + " online", null);
+        response.setPresence(presence);
+        return response;
+    }
+
+    /**
+     * Gives a new session its lease and hands it to the reaper. Also marks it active.
+     */
+    private void startLease(User user) {
+        long now = System.currentTimeMillis();
+        user.setLastActiveTimestamp(now);
+        if(reaper==null) return;
+        user.setLogoutTimestamp(now + SESSION_LEASE_MS);
+        reaper.schedule(user);
+    }
+
+    /**
+     * Extends the lease of a session on any request. Heartbeats keep a session alive without
+     * marking the user active.
+     */
+    private void renewLease(User user, boolean active) {
+        long now = System.currentTimeMillis();
+        if(active) user.setLastActiveTimestamp(now);
+        if(reaper!=null) user.setLogoutTimestamp(now + SESSION_LEASE_MS);
+    }
+
+    /**
+     * Logs out a session the reaper found expired. This happens on the user's lane, like a
+     * LOGOUT, where a request may have renewed the lease in the meantime.
+     */
+    private void expireSession(final User user) {
+        dispatcher.dispatch(user.getNickname(), new Runnable() {
+            public void run() {
+                if(sessions.get(user.getNickname())!=user) return;
+                if(user.getLogoutTimestamp() > System.currentTimeMillis()) {
+                    reaper.schedule(user);
+                    return;
+                }
+                Log.debug("- The session of ", user.getNickname(), " expired");
+                logout(user.getNickname());
+                metrics.recordExpiredSession();
+            }
+        });
+    }
+
+    /**
+     * Takes a token per channel from the sender's bucket and one from each channel's bucket,
+     * so a broadcast costs as much as sending to each channel. Returns the response for a
+     * throttled message, or null if it may be sent.
+     */
+    private Response throttle(String nickname, Collection<String> channelNames) {
+        long now = System.nanoTime();
+        long wait = userLimiter.tryAcquire(nickname, channelNames.size(), now);
+        if(wait > 0) return throttled(wait);
+        if(!channelLimiter.isEnabled()) return null;
+
+        List<String> acquired = new ArrayList<String>(channelNames.size());
+        for(String channelName:channelNames) {
+            wait = channelLimiter.tryAcquire(channelName, 1, now);
+            if(wait > 0) {
+                // Nothing is sent, so nothing is charged
+                for(String acquiredChannel:acquired)
+                    channelLimiter.release(acquiredChannel, 1);
+                userLimiter.release(nickname, channelNames.size());
+                return throttled(wait);
+            }
+            acquired.add(channelName);
+        }
+        return null;
+    }
+
+    private Response throttled(long waitNanos) {
+        metrics.recordThrottled();
+        long retryAfterMs = Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitNanos + 999999));
+        Response response = new Response(false, "* Throttled, retry after " + retryAfterMs + " ms", null);
+        response.setRetryAfterMs(retryAfterMs);
+        return response;
+    }
+
+    /**
+     * Returns the latest messages of a channel the user is a member of, oldest first.
+     * Without a limit the whole in-memory history is returned; with since only messages
+     * sent after that time (in milliseconds) are. The limit is capped at chat.server.maxHistory.
+     * The in-memory history is tried first. The message log, if enabled, only serves requests
+     * that need messages the in-memory history dropped or never had, e.g. from before a restart.
+     */
+    public Response history(String nickname, String channelName, Integer limit, Long since) {
+        Log.debug("- ", nickname, " requested the history of #", channelName);
+        Response response = new Response();
+
+        if(!membership.isMember(sessions.get(nickname), channelName)) {
+            Log.debug("- Failed to read #", channelName, " history for ", nickname, ". User is not a member of the channel.");
+            response.putStatus(false);
+            response.setMessage("* You are not a member of #" + channelName);
+            return response;
+        }
+
+        if(limit!=null && limit < 1) {
+            response.putStatus(false);
+            response.setMessage("* The history limit must be at least 1");
+            return response;
+        }
+        int count = Math.min(limit==null ? historyStore.getCapacityPerChannel() : limit, MAX_HISTORY);
+        List<Message> messages = since==null ? historyStore.getLatest(channelName, count) : historyStore.getSince(channelName, since, count);
+        if(messageLog!=null && !historyStore.isComplete(channelName, since==null ? Long.MIN_VALUE : since, count, messages.size())) {
+            try {
+                messages = since==null ? messageLog.getLatest(channelName, count) : messageLog.getSince(channelName, since, count);
+            } catch (IOException e) {
+                Log.warn("- Failed to read the history of #" + channelName, e);
+            }
+        }
+        response.putStatus(true);
+        response.setMessage("* " + messages.size() + " message(s) in #" + channelName);
+        response.setMessages(messages);
+        return response;
+    }
+
+    /**
+     * In a cluster a channel's members are spread over the instances, so with inbox delivery
+     * every instance reads the shared channel topics and fans each message out to the members
+     * it serves. A single server fans out directly when the message is sent.
+     */
+    private void startFanOutReader() {
+        fanOutSubscription = channelTransport.subscribeTopics("fanout-" + coordinator.getInstanceId(), false);
+        for(int i=0; i<ChannelTopics.SHARED_TOPIC_COUNT; ++i)
+            fanOutSubscription.addTopic(ChannelTopics.topicFor(i));
+        fanOutReader = new Thread(new Runnable() {
+            public void run() {
+                while (fanOutSubscription.hasNext()) {
+                    Record record = fanOutSubscription.next();
+                    if(record.getKey()==null) continue;
+                    try {
+                        long start = System.nanoTime();
+                        int recipients = fanOut.deliver(record.getKey(), record.getPayload());
+                        metrics.recordPublish(recipients, (long) recipients * record.getPayload().length, System.nanoTime() - start);
+                    } catch (IOException e) {
+                        metrics.recordError();
+                        Log.warn("- Failed to deliver a message of #" + record.getKey() + " to the inboxes: " + e.getMessage());
+                    }
+                }
+            }
+        }, "inbox-fanout-reader");
+        fanOutReader.setDaemon(true);
+        fanOutReader.start();
+    }
+
+    /**
+     * Reads the events clients send. Every instance reads all of them and takes those of the
+     * users it serves; the others belong to another instance. Events of users outside the
+     * channel or with a state clients may not send are dropped.
+     */
+    private void startEventReader() {
+        eventSubscription = rpcTransport.subscribe(ChannelEvents.INGRESS_TOPIC, "events-" + instanceId, false);
+        eventReader = new Thread(new Runnable() {
+            public void run() {
+                while (eventSubscription.hasNext()) {
+                    Record record = eventSubscription.next();
+                    // Any client can write this topic, so a malformed record must not end the reader
+                    try {
+                        acceptEvent(record);
+                    } catch (RuntimeException e) {
+                        metrics.recordEventsDropped(1);
+                        Log.debug("- Dropped a malformed event: ", String.valueOf(e));
+                    }
+                }
+            }
+        }, "event-reader");
+        eventReader.setDaemon(true);
+        eventReader.start();
+    }
+
+    private void acceptEvent(Record record) {
+        String sender = record.getKey();
+        final User user = sender==null ? null : sessions.get(sender);
+        if(user==null) return;
+        Message event;
+        try {
+            event = Codecs.detect(record.getPayload()).decodeMessage(record.getPayload());
+        } catch (IOException e) {
+            metrics.recordEventsDropped(1);
+            return;
+        }
+        String channelName = event.getChannelName();
+        if(channelName==null || !ChannelEvents.isClientState(event.getText())
+                || !membership.getMembers(channelName).contains(sender)) {
+            metrics.recordEventsDropped(1);
+            return;
+        }
+        // Typing or reading is activity, though not a request. The renewal runs on the user's
+        // lane like any other change to a User; renewing more often than a reaper tick is moot
+        if(System.currentTimeMillis() - user.getLastActiveTimestamp() >= REAPER_TICK_MS) {
+            dispatcher.dispatch(sender, new Runnable() {
+                public void run() {
+                    if(sessions.get(user.getNickname())==user) renewLease(user, true);
+                }
+            });
+        }
+        events.offer(new Message(channelName, sender, event.getText(), System.currentTimeMillis()));
+    }
+
+    private boolean isFanningOutDirectly() {
+        return fanOut!=null && coordinator==null;
     }
 
-    public static void distributeMessage(Message message, List<String> userChannelList) throws IOException {
+    public void distributeMessage(Message message, Collection<String> userChannelList) throws IOException {
+        long start = System.nanoTime();
+        long bytes = 0;
+        int records;
+        if(isFanningOutDirectly()) {
+            List<String> channelNames = new ArrayList<String>(userChannelList);
+            List<byte[]> payloads = new ArrayList<byte[]>(channelNames.size());
+            for(String channelName:channelNames) {
+                byte[] payload = channelCodec.encodeMessage(channelName, message);
+                payloads.add(payload);
+                bytes += payload.length;
+            }
+            records = fanOut.deliver(channelNames, payloads);
+        } else {
+            List<Record> batch = new ArrayList<Record>(userChannelList.size());
+            for(String channelName:userChannelList) {
+                byte[] payload = channelCodec.encodeMessage(channelName, message);
+                batch.add(ChannelTopics.record(channelName, payload));
+                bytes += payload.length;
+            }
+            channelTransport.send(batch);
+            records = batch.size();
+        }
+        metrics.recordPublish(records, bytes, System.nanoTime() - start);
         for(String channelName:userChannelList) {
-            distributeMessage(message, channelName);
+            appendToHistory(channelName, message);
+        }
+    }
+
+    /**
+     * Publishes the messages of a batch. On channel topics all of them go out in one send;
+     * with direct inbox delivery the fan-out already batches each message.
+     */
+    private void distributeMessages(List<PendingMessage> pending) throws IOException {
+        if(isFanningOutDirectly()) {
+            for(PendingMessage message:pending)
+                distributeMessage(message.message, message.channelNames);
+            return;
+        }
+
+        long start = System.nanoTime();
+        List<Record> batch = new ArrayList<Record>();
+        long[] bytes = new long[pending.size()];
+        for(int i=0; i<pending.size(); ++i) {
+            PendingMessage message = pending.get(i);
+            for(String channelName:message.channelNames) {
+                byte[] payload = channelCodec.encodeMessage(channelName, message.message);
+                batch.add(ChannelTopics.record(channelName, payload));
+                bytes[i] += payload.length;
+            }
+        }
+        channelTransport.send(batch);
+        long elapsed = System.nanoTime() - start;
+        for(int i=0; i<pending.size(); ++i) {
+            PendingMessage message = pending.get(i);
+            metrics.recordPublish(message.channelNames.size(), bytes[i], elapsed);
+            for(String channelName:message.channelNames) {
+                appendToHistory(channelName, message.message);
+            }
+        }
+    }
+
+    public void distributeMessage(Message message, String channelName) throws IOException {
+        long start = System.nanoTime();
+        byte[] payload = channelCodec.encodeMessage(channelName, message);
+        int records = 1;
+        if(isFanningOutDirectly())
+            records = fanOut.deliver(channelName, payload);
+        else
+            channelTransport.send(ChannelTopics.record(channelName, payload));
+        metrics.recordPublish(records, payload.length, System.nanoTime() - start);
+        appendToHistory(channelName, message);
+    }
+
+    /**
+     * Keeps a message that was already published in the in-memory history and the channel's
+     * log. The message has reached the channel, so a failed log append is logged and counted
+     * instead of being reported to the sender as a failed publish.
+     */
+    private void appendToHistory(String channelName, Message message) {
+        historyStore.append(channelName, message, messageLog!=null && messageLog.hasChannel(channelName));
+        if(messageLog==null) return;
+        try {
+            messageLog.append(channelName, message);
+        } catch (IOException e) {
+            metrics.recordLogAppendFailure();
+            Log.warn("- Failed to log a message of channel " + channelName + ": " + e.getMessage());
         }
     }
 
-    public static void distributeMessage(Message message, String channelName) throws IOException {
-        String enrichedMessage = "@" + channelName + " " + message.getSender()+ ": " + message.getText();
-        sendMessageToTopic(enrichedMessage, channelName);
+    /**
+     * A message of a batch waiting to be published, with the response that reports it.
+     */
+    private static class PendingMessage {
+        private final Message message;
+        private final Collection<String> channelNames;
+        private final Response response;
+
+        PendingMessage(Message message, Collection<String> channelNames, Response response) {
+            this.message = message;
+            this.channelNames = channelNames;
+            this.response = response;
+        }
     }
 }
@@ -0,0 +1,113 @@
+package com.edmundophie.chat;
+
+import com.edmundophie.codec.Codec;
+import com.edmundophie.log.Log;
+import com.edmundophie.transport.Record;
+import com.edmundophie.transport.Transport;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merges ephemeral events and publishes them every window. Only the latest event per
+ * sender and channel is kept, so a user typing and stopping within a window costs one
+ * record, and the pending events never outnumber the active senders. Offering is a single
+ * put into a concurrent map. A flush removes each event it publishes only if no newer one
+ * replaced it meanwhile, so concurrent offers are never lost to a flush.
+ * <p>
+ * Delivery is best effort: when the pending events reach maxPending new senders are
+ * dropped, and a failed send is not retried.
+ */
+public class EventCoalescer {
+    private final Transport transport;
+    private final Codec codec;
+    private final int maxPending;
+    private final ServerMetrics metrics;
+    private final ConcurrentMap<String, Message> pending = new ConcurrentHashMap<String, Message>();
+    private ScheduledExecutorService flusher;
+
+    public EventCoalescer(Transport transport, Codec codec, int maxPending, ServerMetrics metrics) {
+        this.transport = transport;
+        this.codec = codec;
+        this.maxPending = maxPending;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Queues the event for the next flush, replacing a pending event of the same sender and
+     * channel. Returns false if the event was dropped.
+     */
+    public boolean offer(Message event) {
+        String key = event.getChannelName() + '\n' + event.getSender();
+        if(pending.size() >= maxPending && !pending.containsKey(key)) {
+            metrics.recordEventsDropped(1);
+            return false;
+        }
+        metrics.recordEvent();
+        if(pending.put(key, event)!=null) metrics.recordEventCoalesced();
+        return true;
+    }
+
+    /**
+     * Publishes the pending events in one send.
+     *
+     * @return the number of events published
+     */
+    public int flush() {
+        if(pending.isEmpty()) return 0;
+        List<Record> batch = new ArrayList<Record>(pending.size());
+        for(Map.Entry<String, Message> entry:pending.entrySet()) {
+            Message event = entry.getValue();
+            if(!pending.remove(entry.getKey(), event)) continue;
+            try {
+                batch.add(ChannelEvents.record(event.getChannelName(), codec.encodeMessage(event.getChannelName(), event)));
+            } catch (IOException e) {
+                metrics.recordEventsDropped(1);
+            }
+        }
+        if(batch.isEmpty()) return 0;
+        try {
+            transport.send(batch);
+        } catch (IOException e) {
+            metrics.recordEventsDropped(batch.size());
+            Log.debug("- Dropped ", String.valueOf(batch.size()), " event(s): ", e.getMessage());
+            return 0;
+        }
+        metrics.recordEventsPublished(batch.size());
+        return batch.size();
+    }
+
+    public void start(long windowMs) {
+        flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "event-flush");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        flusher.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    flush();
+                } catch (RuntimeException e) {
+                    Log.warn("- Failed to publish events", e);
+                }
+            }
+        }, windowMs, windowMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops flushing. Pending events are dropped.
+     */
+    public void close() {
+        if(flusher!=null) flusher.shutdownNow();
+    }
+}
@@ -0,0 +1,37 @@
+package com.edmundophie.chat;
+
+import com.edmundophie.transport.Record;
+import com.edmundophie.transport.Subscription;
+
+import java.util.Set;
+
+/**
+ * Prints the ephemeral events of the joined channels, such as "* alice is typing in #general".
+ * The user's own events are skipped.
+ */
+public class EventConsumerImpl extends MessageConsumerImpl {
+    private final String nickname;
+
+    public EventConsumerImpl(Subscription subscription, Set<String> channelNames, String nickname) {
+        super(subscription, channelNames);
+        this.nickname = nickname;
+    }
+
+    protected boolean isFor(Record record, Set<String> channelNames) {
+        return ChannelEvents.isFor(record, channelNames);
+    }
+
+    protected String format(Message event) {
+        if(nickname.equals(event.getSender())) return null;
+        String state = event.getText();
+        if(ChannelEvents.TYPING.equals(state))
+            return "* " + event.getSender() + " is typing in #" + event.getChannelName();
+        if(ChannelEvents.READ.equals(state))
+            return "* " + event.getSender() + " read #" + event.getChannelName();
+        if(ChannelEvents.ONLINE.equals(state))
+            return "* " + event.getSender() + " is online in #" + event.getChannelName();
+        if(ChannelEvents.OFFLINE.equals(state))
+            return "* " + event.getSender() + " left #" + event.getChannelName();
+        return "* " + event.getSender() + " is " + state + " in #" + event.getChannelName();
+    }
+}
@@ -0,0 +1,139 @@
+package com.edmundophie.chat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * In-memory backlog of the latest messages per channel. Each channel keeps at most
+ * capacityPerChannel messages; once all channels together hold more than byteBudget
+ * bytes, counting each channel's ring and bookkeeping as well as its messages, the
+ * least recently used channels lose their history until usage drops below a low
+ * watermark, so eviction runs rarely and never on every append. isComplete() tells
+ * whether a read may have missed messages the store dropped, so callers only go to
+ * slower storage when they have to.
+ */
+public class HistoryStore {
+    private static final double LOW_WATERMARK = 0.9;
+
+    private final int capacityPerChannel;
+    private final long byteBudget;
+    private final ConcurrentMap<String, ChannelHistory> histories = new ConcurrentHashMap<String, ChannelHistory>();
+    private final AtomicLong totalBytes = new AtomicLong();
+    private final AtomicLong clock = new AtomicLong();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+
+    public HistoryStore(int capacityPerChannel, long byteBudget) {
+        if(capacityPerChannel < 1)
+            throw new IllegalArgumentException("History capacity must be positive");
+        this.capacityPerChannel = capacityPerChannel;
+        this.byteBudget = byteBudget;
+    }
+
+    /**
+     * @param hasOlder whether the channel may have messages from before the store kept its
+     *                 history, e.g. in a persistent log; only used when the history is created
+     */
+    public void append(String channelName, Message message, boolean hasOlder) {
+        while (true) {
+            ChannelHistory history = histories.get(channelName);
+            if(history==null) {
+                ChannelHistory newHistory = new ChannelHistory(capacityPerChannel, hasOlder);
+                history = histories.putIfAbsent(channelName, newHistory);
+                if(history==null) history = newHistory;
+            }
+            history.touch(clock.incrementAndGet());
+            long delta = history.append(message);
+            if(delta >= 0) {
+                if(totalBytes.addAndGet(delta) > byteBudget)
+                    evict();
+                return;
+            }
+            // Evicted concurrently; start a fresh history
+            histories.remove(channelName, history);
+        }
+    }
+
+    /**
+     * Returns up to limit of the latest messages of the channel, oldest first.
+     */
+    public List<Message> getLatest(String channelName, int limit) {
+        return getSince(channelName, Long.MIN_VALUE, limit);
+    }
+
+    /**
+     * Returns up to limit of the latest messages sent after the given time, oldest first.
+     */
+    public List<Message> getSince(String channelName, long since, int limit) {
+        ChannelHistory history = histories.get(channelName);
+        if(history==null || limit <= 0) return Collections.emptyList();
+        history.touch(clock.incrementAndGet());
+        return history.read(channelName, Math.min(limit, capacityPerChannel), since);
+    }
+
+    /**
+     * Whether a getSince or getLatest (since Long.MIN_VALUE) read of the channel that
+     * returned found messages got all the messages it asked for. False when the store has
+     * no history of the channel or dropped messages newer than since.
+     */
+    public boolean isComplete(String channelName, long since, int limit, int found) {
+        ChannelHistory history = histories.get(channelName);
+        return history!=null && history.isComplete(since, limit, found);
+    }
+
+    public int getCapacityPerChannel() {
+        return capacityPerChannel;
+    }
+
+    public long getTotalBytes() {
+        return totalBytes.get();
+    }
+
+    public int getChannelCount() {
+        return histories.size();
+    }
+
+    private void evict() {
+        // One thread evicts at a time; the others keep appending
+        if(!evictionLock.tryLock()) return;
+        try {
+            long target = (long) (byteBudget * LOW_WATERMARK);
+            if(totalBytes.get() <= byteBudget) return;
+
+            // Access times are snapshotted so concurrent touches can't reorder the sort
+            List<Candidate> coldestFirst = new ArrayList<Candidate>(histories.size());
+            for(Map.Entry<String, ChannelHistory> entry:histories.entrySet())
+                coldestFirst.add(new Candidate(entry.getKey(), entry.getValue()));
+            Collections.sort(coldestFirst);
+
+            for(Candidate candidate:coldestFirst) {
+                if(totalBytes.get() <= target) break;
+                histories.remove(candidate.channelName, candidate.history);
+                totalBytes.addAndGet(-candidate.history.evict());
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private static class Candidate implements Comparable<Candidate> {
+        private final String channelName;
+        private final ChannelHistory history;
+        private final long lastAccess;
+
+        Candidate(String channelName, ChannelHistory history) {
+            this.channelName = channelName;
+            this.history = history;
+            this.lastAccess = history.getLastAccess();
+        }
+
+        public int compareTo(Candidate o) {
+            return lastAccess < o.lastAccess ? -1 : lastAccess==o.lastAccess ? 0 : 1;
+        }
+    }
+}
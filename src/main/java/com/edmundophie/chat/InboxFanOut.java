@@ -0,0 +1,103 @@
+package com.edmundophie.chat;
+
+import com.edmundophie.transport.Record;
+import com.edmundophie.transport.Transport;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes channel messages to the inboxes of the channels' members instead of the channel
+ * topics. A message to several channels, like a broadcast, is written once per recipient,
+ * however many of the channels the recipient shares with the sender. The payload of each
+ * channel is encoded once and shared by all its recipients' records.
+ * <p>
+ * Recipients are sent in batches of batchSize records; larger fan-outs send their batches in
+ * parallel on the fan-out threads. deliver() returns once every batch has been sent, so a
+ * sender's messages reach each inbox in the order they were sent.
+ */
+public class InboxFanOut {
+    private final Transport transport;
+    private final MembershipIndex membership;
+    private final int batchSize;
+    private final ExecutorService executor;
+
+    public InboxFanOut(Transport transport, MembershipIndex membership, int threads, int batchSize) {
+        this.transport = transport;
+        this.membership = membership;
+        this.batchSize = Math.max(1, batchSize);
+        executor = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+            private final AtomicInteger created = new AtomicInteger();
+
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "inbox-fanout-" + created.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public int deliver(String channelName, byte[] payload) throws IOException {
+        return deliver(Collections.singletonList(channelName), Collections.singletonList(payload));
+    }
+
+    /**
+     * @param payloads the encoded message for each channel, in the same order
+     * @return the number of inbox records written
+     */
+    public int deliver(List<String> channelNames, List<byte[]> payloads) throws IOException {
+        List<Record> records;
+        if(channelNames.size()==1) {
+            Set<String> members = membership.getMembers(channelNames.get(0));
+            records = new ArrayList<Record>(members.size());
+            for(String nickname:members)
+                records.add(InboxTopics.record(nickname, payloads.get(0)));
+        } else {
+            // A recipient gets the message as sent to the first channel it shares with the sender
+            Set<String> recipients = new HashSet<String>();
+            records = new ArrayList<Record>();
+            for(int i=0; i<channelNames.size(); ++i) {
+                for(String nickname:membership.getMembers(channelNames.get(i))) {
+                    if(recipients.add(nickname))
+                        records.add(InboxTopics.record(nickname, payloads.get(i)));
+                }
+            }
+        }
+
+        if(records.size() <= batchSize) {
+            if(!records.isEmpty()) transport.send(records);
+            return records.size();
+        }
+
+        List<Future<?>> batches = new ArrayList<Future<?>>();
+        for(int from=0; from<records.size(); from+=batchSize) {
+            final List<Record> batch = records.subList(from, Math.min(records.size(), from + batchSize));
+            batches.add(executor.submit(new Callable<Void>() {
+                public Void call() throws IOException {
+                    transport.send(batch);
+                    return null;
+                }
+            }));
+        }
+        IOException failure = null;
+        for(Future<?> batch:batches) {
+            try {
+                batch.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while delivering to inboxes", e);
+            } catch (ExecutionException e) {
+                if(failure==null)
+                    failure = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+            }
+        }
+        if(failure!=null) throw failure;
+        return records.size();
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,37 @@
+package com.edmundophie.chat;
+
+import com.edmundophie.transport.Record;
+
+import java.util.Set;
+
+/**
+ * Maps users to the inbox topics the server delivers their channel messages to when
+ * chat.delivery=inbox. The users share chat.inboxTopics topics inbox-0 .. inbox-(N-1);
+ * records are keyed by the recipient's nickname, which keeps a user's inbox in one
+ * partition and in order, and lets a client skip other users' records without decoding.
+ * Servers and clients must use the same settings.
+ */
+public final class InboxTopics {
+    public static final boolean ENABLED = "inbox".equalsIgnoreCase(System.getProperty("chat.delivery", "channel"));
+    public static final int TOPIC_COUNT = Math.max(1, Integer.getInteger("chat.inboxTopics", 64));
+    private static final String TOPIC_PREFIX = "inbox-";
+
+    private InboxTopics() {
+    }
+
+    public static String topicFor(String nickname) {
+        return TOPIC_PREFIX + (nickname.hashCode() & 0x7fffffff) % TOPIC_COUNT;
+    }
+
+    public static Record record(String nickname, byte[] payload) {
+        return new Record(topicFor(nickname), nickname, payload);
+    }
+
+    /**
+     * Whether a record is addressed to one of the users, on that user's inbox topic.
+     */
+    public static boolean isFor(Record record, Set<String> nicknames) {
+        String nickname = record.getKey();
+        return nickname!=null && nicknames.contains(nickname) && topicFor(nickname).equals(record.getTopic());
+    }
+}
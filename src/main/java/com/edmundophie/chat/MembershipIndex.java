@@ -0,0 +1,141 @@
+package com.edmundophie.chat;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Channel membership indexed both ways: each User holds the set of channels it joined
+ * and each Channel holds the set of its members. A user's side is only changed from the
+ * request lane of that user, under the user's lock so a snapshot can copy it; a channel's
+ * side is changed under the channel's lock, so a channel that loses its last member is
+ * removed without racing a concurrent join.
+ */
+public class MembershipIndex {
+    private final ConcurrentMap<String, Channel> channelMap = new ConcurrentHashMap<String, Channel>();
+
+    /**
+     * Adds the user to the channel, creating the channel if needed.
+     * Returns true when a new channel was created.
+     */
+    public boolean join(User user, String channelName) {
+        boolean created = false;
+        while (true) {
+            Channel channel = channelMap.get(channelName);
+            if(channel==null) {
+                Channel newChannel = new Channel(channelName);
+                channel = channelMap.putIfAbsent(channelName, newChannel);
+                if(channel==null) {
+                    channel = newChannel;
+                    created = true;
+                }
+            }
+            if(channel.addMember(user.getNickname())) break;
+            // The channel emptied and retired concurrently; retry with a fresh one
+            channelMap.remove(channelName, channel);
+        }
+        synchronized (user) {
+            user.getJoinedChannel().add(channelName);
+        }
+        return created;
+    }
+
+    /**
+     * Removes the user from the channel. Returns false if the user was not a member.
+     */
+    public boolean leave(User user, String channelName) {
+        synchronized (user) {
+            if(!user.getJoinedChannel().remove(channelName)) return false;
+        }
+        removeMember(channelName, user.getNickname());
+        return true;
+    }
+
+    /**
+     * Removes the user from every channel it joined, e.g. on logout.
+     */
+    public void leaveAll(User user) {
+        List<String> joinedChannels;
+        synchronized (user) {
+            joinedChannels = new ArrayList<String>(user.getJoinedChannel());
+            user.getJoinedChannel().clear();
+        }
+        for(String channelName:joinedChannels)
+            removeMember(channelName, user.getNickname());
+    }
+
+    private void removeMember(String channelName, String nickname) {
+        Channel channel = channelMap.get(channelName);
+        if(channel!=null && channel.removeMember(nickname))
+            channelMap.remove(channelName, channel);
+    }
+
+    /**
+     * Copies the channels of a user, safe to call from any thread.
+     */
+    public String[] getJoinedChannels(User user) {
+        synchronized (user) {
+            return user.getJoinedChannel().toArray(new String[user.getJoinedChannel().size()]);
+        }
+    }
+
+    /**
+     * Creates a channel while the index is being loaded, before any request is served.
+     */
+    Channel restoreChannel(String channelName, int expectedMembers) {
+        Channel channel = new Channel(channelName, expectedMembers);
+        channelMap.put(channelName, channel);
+        return channel;
+    }
+
+    /**
+     * Adds a member while the index is being loaded, before any request is served.
+     */
+    void restoreMember(User user, Channel channel) {
+        channel.restoreMember(user.getNickname());
+        user.getJoinedChannel().add(channel.getChannelName());
+    }
+
+    /**
+     * Publishes the members of the restored channels and drops channels that were
+     * restored without members.
+     */
+    void finishRestore() {
+        for(Channel channel:channelMap.values())
+            if(!channel.publishRestored())
+                channelMap.remove(channel.getChannelName(), channel);
+    }
+
+    public boolean isMember(User user, String channelName) {
+        return user.getJoinedChannel().contains(channelName);
+    }
+
+    public Channel getChannel(String channelName) {
+        return channelMap.get(channelName);
+    }
+
+    public Set<String> getMembers(String channelName) {
+        Channel channel = channelMap.get(channelName);
+        return channel==null ? Collections.<String>emptySet() : channel.getMembers();
+    }
+
+    public int getMemberCount(String channelName) {
+        Channel channel = channelMap.get(channelName);
+        return channel==null ? 0 : channel.getMemberCount();
+    }
+
+    /**
+     * A weakly consistent view of the live channels, safe to iterate while members change.
+     */
+    public Collection<Channel> getChannels() {
+        return Collections.unmodifiableCollection(channelMap.values());
+    }
+
+    public int getChannelCount() {
+        return channelMap.size();
+    }
+}
@@ -7,6 +7,7 @@ public class Message implements Comparable<Message>{
     private String sender;
     private String text;
     private long timestamp;
+    private String channelName;
 
     public Message() {
     }
@@ -17,6 +18,13 @@ public class Message implements Comparable<Message>{
         this.timestamp = System.currentTimeMillis();
     }
 
+    public Message(String channelName, String sender, String text, long timestamp) {
+        this.channelName = channelName;
+        this.sender = sender;
+        this.text = text;
+        this.timestamp = timestamp;
+    }
+
     public String getSender() {
         return sender;
     }
@@ -41,6 +49,14 @@ public class Message implements Comparable<Message>{
         this.timestamp = timestamp;
     }
 
+    public String getChannelName() {
+        return channelName;
+    }
+
+    public void setChannelName(String channelName) {
+        this.channelName = channelName;
+    }
+
     public int compareTo(Message o) {
         return (this.timestamp<=o.getTimestamp())?-1:1;
     }
@@ -1,28 +1,77 @@
 package com.edmundophie.chat;
 
-import kafka.consumer.ConsumerIterator;
-import kafka.consumer.KafkaStream;
+import com.edmundophie.codec.Codecs;
+import com.edmundophie.transport.Record;
+import com.edmundophie.transport.Subscription;
+
+import java.io.IOException;
+import java.util.Set;
 
 /**
  * Created by edmundophie on 10/16/15.
  */
 public class MessageConsumerImpl extends Thread{
-    private KafkaStream stream;
+    private Subscription subscription;
+    private Set<String> channelNames;
     private volatile boolean isRunning = true;
 
-    public MessageConsumerImpl(KafkaStream stream) {
-        this.stream = stream;
+    public MessageConsumerImpl(Subscription subscription) {
+        this(subscription, null);
+    }
+
+    /**
+     * Only prints the records of the given names: the joined channels, or the user of an
+     * inbox topic. The set may change while the thread runs.
+     */
+    public MessageConsumerImpl(Subscription subscription, Set<String> channelNames) {
+        this.subscription = subscription;
+        this.channelNames = channelNames;
     }
 
     public void run() {
-        ConsumerIterator<byte[], byte[]> it = stream.iterator();
-        while (isRunning) {
-            if(it.hasNext())
-                System.out.println(new String(it.next().message()));
+        // hasNext() parks the thread until a message arrives and returns false
+        // once the subscription is closed, so an idle listener costs no CPU
+        while (isRunning && subscription.hasNext()) {
+            Record record = subscription.next();
+            // Anyone can write these topics; a malformed record is skipped rather than ending the listener
+            try {
+                if(isRunning && (channelNames==null || isFor(record, channelNames))) {
+                    String line = format(record.getPayload());
+                    if(line!=null) System.out.println(line);
+                }
+            } catch (RuntimeException e) {
+                continue;
+            }
+        }
+    }
+
+    /**
+     * Whether the record belongs to one of the names, checked by key and by topic.
+     */
+    protected boolean isFor(Record record, Set<String> names) {
+        return InboxTopics.ENABLED ? InboxTopics.isFor(record, names) : ChannelTopics.isFor(record, names);
+    }
+
+    private String format(byte[] payload) {
+        try {
+            return format(Codecs.detect(payload).decodeMessage(payload));
+        } catch (IOException e) {
+            return new String(payload);
         }
     }
 
+    /**
+     * The line printed for a message, or null to skip it.
+     */
+    protected String format(Message message) {
+        return "@" + message.getChannelName() + " " + message.getSender() + ": " + message.getText();
+    }
+
+    /**
+     * Stops printing messages and closes the subscription, which releases the blocked thread.
+     */
     public void terminate() {
         isRunning = false;
+        subscription.close();
     }
 }
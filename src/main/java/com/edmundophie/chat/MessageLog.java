@@ -0,0 +1,263 @@
+package com.edmundophie.chat;
+
+import com.edmundophie.store.RecordVisitor;
+import com.edmundophie.store.SegmentedLog;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persistent channel messages: one SegmentedLog per channel in a subdirectory of the
+ * base directory. Each open log keeps its active segment mapped, so only up to
+ * maxOpenLogs channel logs are kept open; opening another closes the least recently used
+ * one, whose mapping is released once it is garbage collected. Logs are opened, and
+ * recovered, when a channel is first written or read after startup or after being closed.
+ * A background thread forces dirty logs on the fsync interval and applies retention to the
+ * open logs; a closed channel's log is trimmed when it is opened again.
+ */
+public class MessageLog {
+    private static final long RETENTION_CHECK_MS = 60000;
+
+    private final File directory;
+    private final int segmentBytes;
+    private final SegmentedLog.FsyncPolicy fsyncPolicy;
+    private final long retentionBytes;
+    private final long retentionMs;
+    private final int maxOpenLogs;
+    private final Set<String> channels = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final ConcurrentMap<String, OpenLog> logs = new ConcurrentHashMap<String, OpenLog>();
+    private final ScheduledExecutorService maintenance;
+    private volatile boolean closed;
+
+    public MessageLog(File directory, int segmentBytes, SegmentedLog.FsyncPolicy fsyncPolicy, long fsyncIntervalMs,
+                      long retentionBytes, long retentionMs, int maxOpenLogs) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.fsyncPolicy = fsyncPolicy;
+        this.retentionBytes = retentionBytes;
+        this.retentionMs = retentionMs;
+        this.maxOpenLogs = Math.max(1, maxOpenLogs);
+
+        if(!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Failed to create message log directory " + directory);
+        File[] channelDirectories = directory.listFiles();
+        if(channelDirectories!=null)
+            for(File channelDirectory:channelDirectories)
+                if(channelDirectory.isDirectory())
+                    channels.add(fromDirectoryName(channelDirectory.getName()));
+
+        maintenance = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "message-log-maintenance");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        if(fsyncPolicy==SegmentedLog.FsyncPolicy.INTERVAL) {
+            maintenance.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    for(OpenLog open:logs.values())
+                        open.log.flush();
+                }
+            }, fsyncIntervalMs, fsyncIntervalMs, TimeUnit.MILLISECONDS);
+        }
+        maintenance.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                long now = System.currentTimeMillis();
+                for(OpenLog open:logs.values())
+                    open.log.applyRetention(now);
+            }
+        }, RETENTION_CHECK_MS, RETENTION_CHECK_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private static class OpenLog {
+        private final SegmentedLog log;
+        private volatile long lastUsed;
+
+        private OpenLog(SegmentedLog log) {
+            this.log = log;
+        }
+    }
+
+    /**
+     * Returns the channel's log, opening it if needed, or null if the channel has no log
+     * and create is false.
+     */
+    private SegmentedLog getLog(String channelName, boolean create) throws IOException {
+        OpenLog open = logs.get(channelName);
+        if(open==null) {
+            if(!create && !channels.contains(channelName)) return null;
+            // Opening a log touches the file system, so it is done once under a lock
+            synchronized (logs) {
+                if(closed) throw new IOException("Message log is closed");
+                open = logs.get(channelName);
+                if(open==null) {
+                    if(logs.size() >= maxOpenLogs)
+                        closeLeastRecentlyUsed();
+                    SegmentedLog log = new SegmentedLog(new File(directory, toDirectoryName(channelName)), segmentBytes,
+                            fsyncPolicy, retentionBytes, retentionMs);
+                    log.applyRetention(System.currentTimeMillis());
+                    open = new OpenLog(log);
+                    logs.put(channelName, open);
+                    channels.add(channelName);
+                }
+            }
+        }
+        open.lastUsed = System.nanoTime();
+        return open.log;
+    }
+
+    /**
+     * Closes the open log used longest ago. Runs under the logs lock, so the channel can't
+     * be reopened before its old log is closed and stops appending.
+     */
+    private void closeLeastRecentlyUsed() {
+        Map.Entry<String, OpenLog> eldest = null;
+        for(Map.Entry<String, OpenLog> entry:logs.entrySet())
+            if(eldest==null || entry.getValue().lastUsed - eldest.getValue().lastUsed < 0)
+                eldest = entry;
+        if(eldest==null) return;
+        logs.remove(eldest.getKey());
+        eldest.getValue().log.close();
+    }
+
+    /**
+     * Whether the channel has a log, from this run or an earlier one.
+     */
+    public boolean hasChannel(String channelName) {
+        return channels.contains(channelName);
+    }
+
+    public void append(String channelName, Message message) throws IOException {
+        byte[] payload = ChannelHistory.encode(message.getSender(), message.getText());
+        while (true) {
+            SegmentedLog log = getLog(channelName, true);
+            try {
+                log.append(message.getTimestamp(), payload);
+                return;
+            } catch (IOException e) {
+                // Closed to make room for another channel after it was looked up; reopen it
+                if(closed || !log.isClosed()) throw e;
+            }
+        }
+    }
+
+    /**
+     * Returns up to limit of the latest messages of the channel, oldest first.
+     */
+    public List<Message> getLatest(String channelName, int limit) throws IOException {
+        if(limit <= 0) return Collections.emptyList();
+        SegmentedLog log = getLog(channelName, false);
+        if(log==null) return Collections.emptyList();
+
+        // Sized by what the log holds rather than by the requested limit
+        long fromOffset = Math.max(log.getStartOffset(), log.getNextOffset() - limit);
+        int available = (int) (log.getNextOffset() - fromOffset);
+        final List<ByteBuffer> payloads = new ArrayList<ByteBuffer>(available);
+        final List<Long> timestamps = new ArrayList<Long>(available);
+        log.read(fromOffset, limit, new RecordVisitor() {
+            public void visit(long offset, long timestamp, ByteBuffer payload) {
+                payloads.add(payload);
+                timestamps.add(timestamp);
+            }
+        });
+        return decode(channelName, payloads, timestamps);
+    }
+
+    /**
+     * Returns up to limit of the latest messages sent after the given time, oldest first.
+     * Only the selected records are decoded; the scan itself reads the mapped files in place.
+     */
+    public List<Message> getSince(String channelName, final long since, final int limit) throws IOException {
+        if(limit <= 0) return Collections.emptyList();
+        SegmentedLog log = getLog(channelName, false);
+        if(log==null) return Collections.emptyList();
+
+        final Deque<ByteBuffer> payloads = new ArrayDeque<ByteBuffer>();
+        final Deque<Long> timestamps = new ArrayDeque<Long>();
+        log.read(log.findOffset(since), Integer.MAX_VALUE, new RecordVisitor() {
+            public void visit(long offset, long timestamp, ByteBuffer payload) {
+                if(timestamp <= since) return;
+                payloads.addLast(payload);
+                timestamps.addLast(timestamp);
+                if(payloads.size() > limit) {
+                    payloads.removeFirst();
+                    timestamps.removeFirst();
+                }
+            }
+        });
+        return decode(channelName, payloads, timestamps);
+    }
+
+    private static List<Message> decode(String channelName, Iterable<ByteBuffer> payloads, Iterable<Long> timestamps) {
+        List<Message> messages = new ArrayList<Message>();
+        Iterator<Long> timestamp = timestamps.iterator();
+        for(ByteBuffer payload:payloads)
+            messages.add(ChannelHistory.decode(channelName, timestamp.next(), payload));
+        return messages;
+    }
+
+    public void close() {
+        maintenance.shutdownNow();
+        synchronized (logs) {
+            closed = true;
+            for(OpenLog open:logs.values())
+                open.log.close();
+            logs.clear();
+        }
+    }
+
+    /**
+     * Channel names become directory names by escaping every byte outside [A-Za-z0-9_-]
+     * as %XX, so any name maps to one safe, reversible directory name.
+     */
+    static String toDirectoryName(String channelName) {
+        StringBuilder name = new StringBuilder();
+        try {
+            for(byte b:channelName.getBytes("UTF-8")) {
+                char c = (char) (b & 0xFF);
+                if((c>='a' && c<='z') || (c>='A' && c<='Z') || (c>='0' && c<='9') || c=='_' || c=='-')
+                    name.append(c);
+                else
+                    name.append('%').append(String.format("%02X", b & 0xFF));
+            }
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        return name.toString();
+    }
+
+    static String fromDirectoryName(String name) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for(int i=0; i<name.length(); ++i) {
+            char c = name.charAt(i);
+            if(c=='%' && i + 2 < name.length()) {
+                bytes.write(Integer.parseInt(name.substring(i + 1, i + 3), 16));
+                i += 2;
+            } else
+                bytes.write(c);
+        }
+        try {
+            return bytes.toString("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
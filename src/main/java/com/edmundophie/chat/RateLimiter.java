@@ -0,0 +1,95 @@
+package com.edmundophie.chat;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token buckets by key, e.g. one per nickname or per channel. Each bucket is a single
+ * AtomicLong holding the time its tokens run out (the generic cell rate algorithm), so
+ * taking a token is one compare-and-set and needs no lock or refill thread. A bucket
+ * holds up to burst tokens and refills at permitsPerSecond; a full bucket carries no
+ * state and is dropped by sweep().
+ */
+public class RateLimiter {
+    private final long nanosPerPermit;
+    private final long burstNanos;
+    private final int burst;
+    private final ConcurrentMap<String, AtomicLong> buckets = new ConcurrentHashMap<String, AtomicLong>();
+
+    /**
+     * @param permitsPerSecond 0 or less disables the limiter
+     */
+    public RateLimiter(double permitsPerSecond, int burst) {
+        this.burst = Math.max(1, burst);
+        nanosPerPermit = permitsPerSecond > 0 ? (long) Math.max(1, TimeUnit.SECONDS.toNanos(1) / permitsPerSecond) : 0;
+        burstNanos = nanosPerPermit * this.burst;
+    }
+
+    public boolean isEnabled() {
+        return nanosPerPermit > 0;
+    }
+
+    /**
+     * Takes cost tokens from the key's bucket. A cost above the burst takes the whole
+     * burst, so a large request is slowed down rather than never allowed.
+     *
+     * @return 0 if the tokens were taken, otherwise the nanoseconds until they will be there
+     */
+    public long tryAcquire(String key, int cost, long nowNanos) {
+        if(!isEnabled()) return 0;
+        AtomicLong bucket = buckets.get(key);
+        if(bucket==null) {
+            AtomicLong created = new AtomicLong(nowNanos);
+            bucket = buckets.putIfAbsent(key, created);
+            if(bucket==null) bucket = created;
+        }
+        long increment = nanosPerPermit * Math.min(Math.max(1, cost), burst);
+        while (true) {
+            long emptyAt = bucket.get();
+            long newEmptyAt = Math.max(emptyAt, nowNanos) + increment;
+            long wait = newEmptyAt - nowNanos - burstNanos;
+            if(wait > 0) return wait;
+            if(bucket.compareAndSet(emptyAt, newEmptyAt)) return 0;
+        }
+    }
+
+    /**
+     * Gives back tokens taken by tryAcquire, when the request they were taken for was refused anyway.
+     */
+    public void release(String key, int cost) {
+        if(!isEnabled()) return;
+        AtomicLong bucket = buckets.get(key);
+        if(bucket!=null) bucket.addAndGet(-nanosPerPermit * Math.min(Math.max(1, cost), burst));
+    }
+
+    public void remove(String key) {
+        buckets.remove(key);
+    }
+
+    /**
+     * Drops the buckets that have refilled completely. A token taken from a bucket while it
+     * is dropped is lost, which at worst lets one extra request of that key through.
+     *
+     * @return the number of buckets dropped
+     */
+    public int sweep(long nowNanos) {
+        int dropped = 0;
+        Iterator<Map.Entry<String, AtomicLong>> entries = buckets.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<String, AtomicLong> entry = entries.next();
+            if(entry.getValue().get() <= nowNanos) {
+                entries.remove();
+                ++dropped;
+            }
+        }
+        return dropped;
+    }
+
+    public int size() {
+        return buckets.size();
+    }
+}
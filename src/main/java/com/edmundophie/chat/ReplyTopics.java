@@ -0,0 +1,25 @@
+package com.edmundophie.chat;
+
+/**
+ * The topics servers send RPC responses to in the default "client" reply mode: a fixed pool
+ * of chat.replyTopics topics rpcResponseTopic-0 .. rpcResponseTopic-(N-1). A client reads the
+ * topic its id hashes to from its current end, and keeps only the responses keyed by the
+ * correlation ids it is waiting for. The pool's size is fixed, so starting clients creates
+ * no topics on the broker, while each client reads about 1/N of all responses.
+ */
+public final class ReplyTopics {
+    public static final int TOPIC_COUNT = Math.max(1, Integer.getInteger("chat.replyTopics", 16));
+    public static final String SHARED_TOPIC = "rpcResponseTopic";
+    private static final String TOPIC_PREFIX = SHARED_TOPIC + "-";
+
+    private ReplyTopics() {
+    }
+
+    public static String topicFor(String clientId) {
+        return topicFor(clientId.hashCode() & 0x7fffffff);
+    }
+
+    public static String topicFor(int index) {
+        return TOPIC_PREFIX + index % TOPIC_COUNT;
+    }
+}
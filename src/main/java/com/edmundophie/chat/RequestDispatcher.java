@@ -0,0 +1,110 @@
+package com.edmundophie.chat;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hash-partitions requests onto single-threaded worker lanes.
+ * Every request with the same partition key (the nickname) lands on the same lane,
+ * so a user's commands are processed in the order they were consumed.
+ */
+public class RequestDispatcher {
+    private final ThreadPoolExecutor[] lanes;
+
+    public RequestDispatcher(int laneCount, int laneCapacity) {
+        if(laneCount < 1)
+            throw new IllegalArgumentException("Lane count must be at least 1");
+
+        lanes = new ThreadPoolExecutor[laneCount];
+        for(int i=0; i<laneCount; ++i) {
+            lanes[i] = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(laneCapacity),
+                    new LaneThreadFactory(i),
+                    new BlockingEnqueuePolicy());
+        }
+    }
+
+    public void dispatch(String partitionKey, Runnable task) {
+        lanes[laneFor(partitionKey)].execute(task);
+    }
+
+    public int laneFor(String partitionKey) {
+        if(partitionKey==null) return 0;
+        return (partitionKey.hashCode() & 0x7fffffff) % lanes.length;
+    }
+
+    public int getLaneCount() {
+        return lanes.length;
+    }
+
+    /**
+     * The number of requests waiting in the lanes, not counting the ones being processed.
+     */
+    public int getQueuedCount() {
+        int queued = 0;
+        for(ThreadPoolExecutor lane:lanes)
+            queued += lane.getQueue().size();
+        return queued;
+    }
+
+    /**
+     * The number of requests waiting in the lane of the partition key.
+     */
+    public int getQueuedCount(String partitionKey) {
+        return lanes[laneFor(partitionKey)].getQueue().size();
+    }
+
+    /**
+     * Waits until every lane has run the requests dispatched to it so far.
+     */
+    public void awaitIdle() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(lanes.length);
+        for(ThreadPoolExecutor lane:lanes) {
+            lane.execute(new Runnable() {
+                public void run() {
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+    }
+
+    public void shutdown() throws InterruptedException {
+        for(ThreadPoolExecutor lane:lanes)
+            lane.shutdown();
+        for(ThreadPoolExecutor lane:lanes)
+            lane.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Blocks the consumer thread while a lane is full instead of dropping
+     * or running the request out of order.
+     */
+    private static class BlockingEnqueuePolicy implements RejectedExecutionHandler {
+        public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+            if(executor.isShutdown())
+                throw new RejectedExecutionException("Dispatcher is shut down");
+            try {
+                executor.getQueue().put(task);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException(e);
+            }
+        }
+    }
+
+    private static class LaneThreadFactory implements ThreadFactory {
+        private final int laneIndex;
+        private final AtomicInteger created = new AtomicInteger();
+
+        LaneThreadFactory(int laneIndex) {
+            this.laneIndex = laneIndex;
+        }
+
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "request-lane-" + laneIndex + "-" + created.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
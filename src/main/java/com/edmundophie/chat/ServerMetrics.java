@@ -0,0 +1,306 @@
+package com.edmundophie.chat;
+
+import com.edmundophie.log.Log;
+import com.edmundophie.metrics.LatencyHistogram;
+import com.edmundophie.rpc.Command;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Request, publish and session metrics of one server. Recording is lock-free: counters are
+ * striped LongAdders and latencies go to lock-free histograms, so the request lanes never
+ * contend on them. Gauges such as queue depth and active users are read from the live
+ * structures when asked for.
+ * <p>
+ * The metrics are published over JMX and, every chat.server.metricsIntervalMs, printed as
+ * a text table at INFO level.
+ */
+public class ServerMetrics implements ServerMetricsMXBean {
+    private static final Command[] COMMANDS = Command.values();
+
+    private final LongAdder[] requests = new LongAdder[COMMANDS.length];
+    private final LatencyHistogram[] processing = new LatencyHistogram[COMMANDS.length];
+    private final LongAdder unknownRequests = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder throttled = new LongAdder();
+    private final LongAdder expiredSessions = new LongAdder();
+    private final LongAdder events = new LongAdder();
+    private final LongAdder coalescedEvents = new LongAdder();
+    private final LongAdder publishedEvents = new LongAdder();
+    private final LongAdder droppedEvents = new LongAdder();
+    private final LongAdder logAppendFailures = new LongAdder();
+    private final LatencyHistogram publishLatency = new LatencyHistogram();
+    private final LatencyHistogram fanOut = new LatencyHistogram();
+    private final LongAdder requestBytes = new LongAdder();
+    private final LongAdder responseBytes = new LongAdder();
+    private final LongAdder publishedBytes = new LongAdder();
+
+    private final RequestDispatcher dispatcher;
+    private final SessionRegistry sessions;
+    private final MembershipIndex membership;
+    private ScheduledExecutorService dumper;
+    private ObjectName registeredName;
+
+    public ServerMetrics(RequestDispatcher dispatcher, SessionRegistry sessions, MembershipIndex membership) {
+        this.dispatcher = dispatcher;
+        this.sessions = sessions;
+        this.membership = membership;
+        for(int i=0; i<COMMANDS.length; ++i) {
+            requests[i] = new LongAdder();
+            processing[i] = new LatencyHistogram();
+        }
+    }
+
+    public void recordRequest(Command command, long processingNanos) {
+        requests[command.ordinal()].increment();
+        processing[command.ordinal()].record(TimeUnit.NANOSECONDS.toMicros(processingNanos));
+    }
+
+    public void recordUnknownRequest() {
+        unknownRequests.increment();
+    }
+
+    public void recordError() {
+        errors.increment();
+    }
+
+    public void recordThrottled() {
+        throttled.increment();
+    }
+
+    public void recordExpiredSession() {
+        expiredSessions.increment();
+    }
+
+    public void recordEvent() {
+        events.increment();
+    }
+
+    /**
+     * An event replaced a pending event of the same sender and channel.
+     */
+    public void recordEventCoalesced() {
+        coalescedEvents.increment();
+    }
+
+    public void recordEventsPublished(int count) {
+        publishedEvents.add(count);
+    }
+
+    public void recordEventsDropped(int count) {
+        droppedEvents.add(count);
+    }
+
+    /**
+     * A published message could not be appended to the persistent message log.
+     */
+    public void recordLogAppendFailure() {
+        logAppendFailures.increment();
+    }
+
+    public void recordRequestBytes(int bytes) {
+        requestBytes.add(bytes);
+    }
+
+    public void recordResponseBytes(int bytes) {
+        responseBytes.add(bytes);
+    }
+
+    /**
+     * @param records the records the message was written as: one per channel, or one per recipient with inbox delivery
+     */
+    public void recordPublish(int records, long bytes, long nanos) {
+        fanOut.record(records);
+        publishedBytes.add(bytes);
+        publishLatency.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server and starts the periodic dump,
+     * unless intervalMs is 0.
+     */
+    public void start(String instanceId, long intervalMs) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("com.edmundophie.chat:type=ChatServer,name=" + ObjectName.quote(instanceId));
+            server.registerMBean(this, name);
+            registeredName = name;
+        } catch (JMException e) {
+            Log.warn("- Metrics are not published over JMX: " + e.getMessage());
+        }
+
+        if(intervalMs > 0) {
+            dumper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "metrics-dump");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            dumper.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    Log.info(dump());
+                }
+            }, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public void stop() {
+        if(dumper!=null) {
+            dumper.shutdownNow();
+            dumper = null;
+        }
+        if(registeredName!=null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+            } catch (JMException e) {
+                Log.warn("- Failed to unregister metrics: " + e.getMessage());
+            }
+            registeredName = null;
+        }
+    }
+
+    public Map<String, Long> getRequestCounts() {
+        Map<String, Long> counts = new LinkedHashMap<String, Long>();
+        for(Command command:COMMANDS)
+            counts.put(command.name(), requests[command.ordinal()].sum());
+        return counts;
+    }
+
+    public Map<String, Long> getProcessingP50Micros() {
+        return processingPercentiles(50);
+    }
+
+    public Map<String, Long> getProcessingP99Micros() {
+        return processingPercentiles(99);
+    }
+
+    private Map<String, Long> processingPercentiles(double percentile) {
+        Map<String, Long> values = new LinkedHashMap<String, Long>();
+        for(Command command:COMMANDS)
+            values.put(command.name(), processing[command.ordinal()].getValueAtPercentile(percentile));
+        return values;
+    }
+
+    public long getUnknownRequestCount() {
+        return unknownRequests.sum();
+    }
+
+    public long getErrorCount() {
+        return errors.sum();
+    }
+
+    public long getThrottledCount() {
+        return throttled.sum();
+    }
+
+    public long getExpiredSessionCount() {
+        return expiredSessions.sum();
+    }
+
+    public long getEventCount() {
+        return events.sum();
+    }
+
+    public long getCoalescedEventCount() {
+        return coalescedEvents.sum();
+    }
+
+    public long getPublishedEventCount() {
+        return publishedEvents.sum();
+    }
+
+    public long getDroppedEventCount() {
+        return droppedEvents.sum();
+    }
+
+    public long getLogAppendFailureCount() {
+        return logAppendFailures.sum();
+    }
+
+    public long getPublishCount() {
+        return publishLatency.getCount();
+    }
+
+    public long getPublishP50Micros() {
+        return publishLatency.getValueAtPercentile(50);
+    }
+
+    public long getPublishP99Micros() {
+        return publishLatency.getValueAtPercentile(99);
+    }
+
+    public long getFanOutP50() {
+        return fanOut.getValueAtPercentile(50);
+    }
+
+    public long getFanOutP99() {
+        return fanOut.getValueAtPercentile(99);
+    }
+
+    public long getFanOutMax() {
+        return fanOut.getMax();
+    }
+
+    public long getRequestBytes() {
+        return requestBytes.sum();
+    }
+
+    public long getResponseBytes() {
+        return responseBytes.sum();
+    }
+
+    public long getPublishedBytes() {
+        return publishedBytes.sum();
+    }
+
+    public int getQueuedRequests() {
+        return dispatcher.getQueuedCount();
+    }
+
+    public int getActiveUsers() {
+        return sessions.size();
+    }
+
+    public int getActiveChannels() {
+        return membership.getChannelCount();
+    }
+
+    public int getRemainingSessionCapacity() {
+        return sessions.getRemainingCapacity();
+    }
+
+    public String dump() {
+        StringBuilder text = new StringBuilder();
+        text.append(String.format("- Metrics: users=%d channels=%d queued=%d unknown=%d errors=%d throttled=%d expired=%d bytes in=%d out=%d published=%d%n",
+                getActiveUsers(), getActiveChannels(), getQueuedRequests(), getUnknownRequestCount(), getErrorCount(), getThrottledCount(), getExpiredSessionCount(),
+                getRequestBytes(), getResponseBytes(), getPublishedBytes()));
+        text.append(String.format("  %-10s %10s %10s %10s %10s%n", "command", "count", "p50(us)", "p99(us)", "max(us)"));
+        for(Command command:COMMANDS) {
+            LatencyHistogram histogram = processing[command.ordinal()];
+            long count = requests[command.ordinal()].sum();
+            if(count==0) continue;
+            text.append(String.format("  %-10s %10d %10d %10d %10d%n", command.name(), count,
+                    histogram.getValueAtPercentile(50), histogram.getValueAtPercentile(99), histogram.getMax()));
+        }
+        text.append(String.format("  %-10s %10d %10d %10d %10d%n", "publish", getPublishCount(),
+                getPublishP50Micros(), getPublishP99Micros(), publishLatency.getMax()));
+        text.append(String.format("  fan-out p50=%d p99=%d max=%d record(s) per message", getFanOutP50(), getFanOutP99(), getFanOutMax()));
+        if(getEventCount() > 0 || getDroppedEventCount() > 0)
+            text.append(String.format("%n  events in=%d merged=%d out=%d dropped=%d", getEventCount(), getCoalescedEventCount(),
+                    getPublishedEventCount(), getDroppedEventCount()));
+        if(getLogAppendFailureCount() > 0)
+            text.append(String.format("%n  message log append failures=%d", getLogAppendFailureCount()));
+        return text.toString();
+    }
+}
@@ -0,0 +1,62 @@
+package com.edmundophie.chat;
+
+import java.util.Map;
+
+/**
+ * The JMX view of a server's metrics, registered as
+ * com.edmundophie.chat:type=ChatServer,name=&lt;instanceId&gt;. Counts and histograms
+ * cover the whole life of the server; latencies are in microseconds.
+ */
+public interface ServerMetricsMXBean {
+    Map<String, Long> getRequestCounts();
+
+    Map<String, Long> getProcessingP50Micros();
+
+    Map<String, Long> getProcessingP99Micros();
+
+    long getUnknownRequestCount();
+
+    long getErrorCount();
+
+    long getThrottledCount();
+
+    long getExpiredSessionCount();
+
+    long getEventCount();
+
+    long getCoalescedEventCount();
+
+    long getPublishedEventCount();
+
+    long getDroppedEventCount();
+
+    long getLogAppendFailureCount();
+
+    long getPublishCount();
+
+    long getPublishP50Micros();
+
+    long getPublishP99Micros();
+
+    long getFanOutP50();
+
+    long getFanOutP99();
+
+    long getFanOutMax();
+
+    long getRequestBytes();
+
+    long getResponseBytes();
+
+    long getPublishedBytes();
+
+    int getQueuedRequests();
+
+    int getActiveUsers();
+
+    int getActiveChannels();
+
+    int getRemainingSessionCapacity();
+
+    String dump();
+}
@@ -0,0 +1,104 @@
+package com.edmundophie.chat;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Expires sessions whose lease ran out, i.e. whose logoutTimestamp has passed. Sessions are
+ * kept in a hashed timer wheel: each slot holds the sessions due in the ticks that map to it,
+ * so a tick only looks at one slot instead of at every user.
+ * <p>
+ * Renewing a lease only moves the user's logoutTimestamp forward. The session stays in its
+ * slot and is moved to the slot of its new deadline when the old one comes up, so renewals
+ * cost nothing here. A tick thus visits the sessions that expire plus those renewed since
+ * they were last visited, which is at most once per session and lease.
+ */
+public class SessionReaper {
+    /**
+     * Called for each session found expired, on the thread that advances the reaper.
+     */
+    public interface ExpiryHandler {
+        void expired(User user);
+    }
+
+    private final SessionRegistry sessions;
+    private final long tickMs;
+    private final Queue<User>[] slots;
+    private final int mask;
+    private final ExpiryHandler handler;
+    private final AtomicInteger size = new AtomicInteger();
+    // The first tick not processed yet; only changed by the advancing thread
+    private long nextTick;
+
+    /**
+     * @param slotCount rounded up to a power of two; a rotation of the wheel should exceed the lease
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public SessionReaper(SessionRegistry sessions, long tickMs, int slotCount, ExpiryHandler handler, long nowMs) {
+        this.sessions = sessions;
+        this.tickMs = Math.max(1, tickMs);
+        this.handler = handler;
+        int count = Integer.highestOneBit(Math.max(1, slotCount - 1)) << 1;
+        slots = new Queue[count];
+        for(int i=0; i<count; ++i)
+            slots[i] = new ConcurrentLinkedQueue<User>();
+        mask = count - 1;
+        nextTick = tickOf(nowMs);
+    }
+
+    /**
+     * Starts watching the lease of a new session. Safe to call from any thread.
+     */
+    public void schedule(User user) {
+        slots[(int) (tickOf(user.getLogoutTimestamp()) & mask)].add(user);
+        size.incrementAndGet();
+    }
+
+    /**
+     * Processes the ticks that passed up to nowMs. Sessions that logged out or were replaced
+     * are dropped, renewed ones moved to the slot of their new deadline and expired ones
+     * handed to the handler. Must be called from one thread at a time.
+     *
+     * @return the number of expired sessions
+     */
+    public int advance(long nowMs) {
+        long currentTick = tickOf(nowMs);
+        // After a long pause every slot is due, but once is enough
+        if(currentTick - nextTick > slots.length) nextTick = currentTick - slots.length;
+        int expired = 0;
+        // A tick is processed once all of its deadlines passed
+        for(; nextTick < currentTick; ++nextTick)
+            expired += expireSlot(slots[(int) (nextTick & mask)], nowMs);
+        return expired;
+    }
+
+    private int expireSlot(Queue<User> slot, long nowMs) {
+        int expired = 0;
+        // Sessions put back into this slot while it is drained wait for the next rotation
+        for(int remaining=slot.size(); remaining>0; --remaining) {
+            User user = slot.poll();
+            if(user==null) break;
+            size.decrementAndGet();
+            if(sessions.get(user.getNickname())!=user) continue;
+            if(user.getLogoutTimestamp() > nowMs)
+                schedule(user);
+            else {
+                handler.expired(user);
+                ++expired;
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * The number of sessions in the wheel, including ones that have logged out since.
+     */
+    public int size() {
+        return size.get();
+    }
+
+    private long tickOf(long timeMs) {
+        return timeMs / tickMs;
+    }
+}
@@ -0,0 +1,217 @@
+package com.edmundophie.chat;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The logged in users by nickname. A nickname is claimed atomically, so two logins racing
+ * for the same name get exactly one session, and the number of sessions can be capped.
+ * <p>
+ * Generated nicknames are "user" followed by a number in base 36. The numbers come from
+ * striped counters: stripe i hands out i, i + S, i + 2S, ... so threads on different stripes
+ * never share a counter and never produce the same name. Whenever a nickname of that form is
+ * claimed or restored, its stripe is moved past it, so a generated name only finds its
+ * nickname taken when an explicit login raced it. Generation therefore costs the same
+ * however many sessions exist, and the name space is only bounded by a long.
+ */
+public class SessionRegistry {
+    public static final int UNLIMITED = Integer.MAX_VALUE;
+
+    private static final String GENERATED_PREFIX = "user";
+    private static final int GENERATED_RADIX = 36;
+    // Longer numbers may not fit in a long
+    private static final int GENERATED_MAX_DIGITS = 12;
+    private static final int MAX_GENERATION_ATTEMPTS = 1024;
+
+    private final ConcurrentMap<String, User> sessions;
+    private final int maxSessions;
+    private final AtomicInteger sessionCount = new AtomicInteger();
+    private final AtomicLong[] stripes;
+    private final AtomicLong generated = new AtomicLong();
+    private final AtomicLong generationConflicts = new AtomicLong();
+
+    /**
+     * Decides whether a generated nickname may be used, e.g. whether it falls in a partition
+     * this server serves.
+     */
+    public interface NicknameFilter {
+        boolean accept(String nickname);
+    }
+
+    public SessionRegistry(int maxSessions) {
+        this(maxSessions, Runtime.getRuntime().availableProcessors() * 4);
+    }
+
+    public SessionRegistry(int maxSessions, int stripeCount) {
+        if(maxSessions < 1)
+            throw new IllegalArgumentException("Session limit must be at least 1");
+        this.maxSessions = maxSessions;
+        sessions = new ConcurrentHashMap<String, User>(16, 0.75f, Math.max(16, stripeCount));
+        stripes = new AtomicLong[Math.max(1, stripeCount)];
+        for(int i=0; i<stripes.length; ++i)
+            stripes[i] = new AtomicLong();
+    }
+
+    public User get(String nickname) {
+        return nickname==null ? null : sessions.get(nickname);
+    }
+
+    public boolean contains(String nickname) {
+        return nickname!=null && sessions.containsKey(nickname);
+    }
+
+    /**
+     * Creates a session for the nickname. Returns null if the nickname is taken or the
+     * registry is full; isFull() tells the two apart.
+     */
+    public User claim(String nickname) {
+        if(!reserve()) return null;
+        User user = new User(nickname);
+        if(sessions.putIfAbsent(nickname, user)!=null) {
+            sessionCount.decrementAndGet();
+            return null;
+        }
+        observe(nickname);
+        return user;
+    }
+
+    /**
+     * Creates a session with a generated nickname the filter accepts. Returns null if the
+     * registry is full or the filter rejected every attempt.
+     */
+    public User claimGenerated(NicknameFilter filter) {
+        int stripe = stripeOfCurrentThread();
+        for(int attempt=0; attempt<MAX_GENERATION_ATTEMPTS; ++attempt) {
+            String nickname = GENERATED_PREFIX + Long.toString(stripes[stripe].getAndIncrement() * stripes.length + stripe, GENERATED_RADIX);
+            if(filter!=null && !filter.accept(nickname)) continue;
+            User user = claim(nickname);
+            if(user!=null) {
+                generated.incrementAndGet();
+                return user;
+            }
+            if(isFull()) return null;
+            generationConflicts.incrementAndGet();
+        }
+        return null;
+    }
+
+    /**
+     * Puts a session restored from a snapshot, journal or another instance, replacing any
+     * session with the same nickname. Restored sessions are not subject to the limit.
+     * Returns the replaced session.
+     */
+    public User restore(User user) {
+        User previous = sessions.put(user.getNickname(), user);
+        if(previous==null) sessionCount.incrementAndGet();
+        observe(user.getNickname());
+        return previous;
+    }
+
+    public User remove(String nickname) {
+        User user = sessions.remove(nickname);
+        if(user!=null) sessionCount.decrementAndGet();
+        return user;
+    }
+
+    /**
+     * Removes the session only if it is still the given one.
+     */
+    public boolean remove(User user) {
+        if(!sessions.remove(user.getNickname(), user)) return false;
+        sessionCount.decrementAndGet();
+        return true;
+    }
+
+    /**
+     * A live view of the sessions, weakly consistent while they change.
+     */
+    public Collection<User> getUsers() {
+        return Collections.unmodifiableCollection(sessions.values());
+    }
+
+    public int size() {
+        return sessionCount.get();
+    }
+
+    public int getMaxSessions() {
+        return maxSessions;
+    }
+
+    public int getRemainingCapacity() {
+        return maxSessions==UNLIMITED ? UNLIMITED : Math.max(0, maxSessions - sessionCount.get());
+    }
+
+    public boolean isFull() {
+        return sessionCount.get() >= maxSessions;
+    }
+
+    /**
+     * The number of sessions created with a generated nickname.
+     */
+    public long getGeneratedCount() {
+        return generated.get();
+    }
+
+    /**
+     * The number of generated nicknames that were taken by a concurrent explicit login.
+     */
+    public long getGenerationConflicts() {
+        return generationConflicts.get();
+    }
+
+    public String describeCapacity() {
+        return size() + " session(s) of " + (maxSessions==UNLIMITED ? "unlimited" : String.valueOf(maxSessions))
+                + ", " + getGeneratedCount() + " generated nickname(s), " + getGenerationConflicts() + " generation conflict(s)";
+    }
+
+    private boolean reserve() {
+        int count;
+        do {
+            count = sessionCount.get();
+            if(count >= maxSessions) return false;
+        } while(!sessionCount.compareAndSet(count, count + 1));
+        return true;
+    }
+
+    private int stripeOfCurrentThread() {
+        long id = Thread.currentThread().getId();
+        return (int) ((id ^ (id >>> 32)) & 0x7fffffff) % stripes.length;
+    }
+
+    /**
+     * Moves the stripe that would generate the nickname past it.
+     */
+    private void observe(String nickname) {
+        long number = parseGenerated(nickname);
+        if(number < 0) return;
+        AtomicLong stripe = stripes[(int) (number % stripes.length)];
+        long next = number / stripes.length + 1;
+        long current;
+        do {
+            current = stripe.get();
+            if(current >= next) return;
+        } while(!stripe.compareAndSet(current, next));
+    }
+
+    /**
+     * The number of a nickname in the generated form, or -1 for any other nickname.
+     */
+    private static long parseGenerated(String nickname) {
+        int digits = nickname.length() - GENERATED_PREFIX.length();
+        if(!nickname.startsWith(GENERATED_PREFIX) || digits < 1 || digits > GENERATED_MAX_DIGITS) return -1;
+        // The generator never writes leading zeros
+        if(digits > 1 && nickname.charAt(GENERATED_PREFIX.length())=='0') return -1;
+        long number = 0;
+        for(int i=GENERATED_PREFIX.length(); i<nickname.length(); ++i) {
+            char c = nickname.charAt(i);
+            int digit = c >= '0' && c <= '9' ? c - '0' : c >= 'a' && c <= 'z' ? c - 'a' + 10 : -1;
+            if(digit < 0) return -1;
+            number = number * GENERATED_RADIX + digit;
+        }
+        return number;
+    }
+}
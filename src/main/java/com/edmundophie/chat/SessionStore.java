@@ -0,0 +1,430 @@
+package com.edmundophie.chat;
+
+import com.edmundophie.log.Log;
+import com.edmundophie.store.RecordVisitor;
+import com.edmundophie.store.SegmentedLog;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps users and channel memberships across restarts with periodic snapshots and a
+ * journal of the changes in between. The journal is a SegmentedLog of NICK/JOIN/LEAVE/LOGOUT
+ * records appended after each change is applied. A snapshot is taken on a background thread
+ * while requests keep changing the state: it first notes the journal's next offset, then
+ * copies the live maps. Every change it may miss is in the journal from that offset, and
+ * replaying a change is idempotent, so loading the snapshot and replaying the journal from
+ * its offset restores the latest state.
+ * <pre>
+ * snapshot : MAGIC VERSION journalOffset(8) channelCount (channelName memberCount)*
+ *            userCount (nickname logoutTimestamp(8) joinedCount channelIndex*)* crc32(4)
+ * journal  : op nickname [channelName]
+ * </pre>
+ * Counts and indexes are varints and strings are a varint length followed by UTF-8 bytes.
+ * Memberships refer to channels by their position in the channel table, so loading them
+ * needs no string decoding or lookups by name, and members are collected in plain sets
+ * that the membership index publishes once the snapshot is loaded.
+ */
+public class SessionStore {
+    private static final int MAGIC = 0x43534e50;
+    private static final byte VERSION = 1;
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String SNAPSHOT_SUFFIX = ".bin";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final byte NICK = 1;
+    private static final byte JOIN = 2;
+    private static final byte LEAVE = 3;
+    private static final byte LOGOUT = 4;
+
+    private final File directory;
+    private final SegmentedLog journal;
+    private final SegmentedLog.FsyncPolicy fsyncPolicy;
+    private final ScheduledExecutorService snapshotter;
+    private SessionRegistry sessions;
+    private MembershipIndex membership;
+
+    public SessionStore(File directory, int journalSegmentBytes, SegmentedLog.FsyncPolicy fsyncPolicy) throws IOException {
+        this.directory = directory;
+        this.fsyncPolicy = fsyncPolicy;
+        if(!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Failed to create state directory " + directory);
+        journal = new SegmentedLog(new File(directory, "journal"), journalSegmentBytes, fsyncPolicy, -1, -1);
+        snapshotter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "session-snapshot");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Loads the newest snapshot and replays the journal into the given state, then
+     * snapshots it every snapshotIntervalMs. With the INTERVAL fsync policy the journal
+     * is forced every fsyncIntervalMs.
+     */
+    public void start(SessionRegistry sessions, MembershipIndex membership, long snapshotIntervalMs, long fsyncIntervalMs) throws IOException {
+        this.sessions = sessions;
+        this.membership = membership;
+
+        File snapshot = findLatestSnapshot();
+        long journalOffset = snapshot==null ? journal.getStartOffset() : loadSnapshot(snapshot);
+        replayJournal(journalOffset);
+
+        snapshotter.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    snapshot();
+                } catch (Exception e) {
+                    Log.warn("- Failed to snapshot the sessions", e);
+                }
+            }
+        }, snapshotIntervalMs, snapshotIntervalMs, TimeUnit.MILLISECONDS);
+        if(fsyncPolicy==SegmentedLog.FsyncPolicy.INTERVAL) {
+            snapshotter.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    journal.flush();
+                }
+            }, fsyncIntervalMs, fsyncIntervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public void recordLogin(String nickname) {
+        append(NICK, nickname, null);
+    }
+
+    public void recordJoin(String nickname, String channelName) {
+        append(JOIN, nickname, channelName);
+    }
+
+    public void recordLeave(String nickname, String channelName) {
+        append(LEAVE, nickname, channelName);
+    }
+
+    public void recordLogout(String nickname) {
+        append(LOGOUT, nickname, null);
+    }
+
+    private void append(byte op, String nickname, String channelName) {
+        Writer record = new Writer(32);
+        record.writeByte(op);
+        record.writeString(nickname);
+        if(channelName!=null) record.writeString(channelName);
+        try {
+            journal.append(System.currentTimeMillis(), record.toByteArray());
+        } catch (IOException e) {
+            // The change is applied either way; it is only lost if the server restarts before the next snapshot
+            Log.warn("- Failed to journal a session change", e);
+        }
+    }
+
+    /**
+     * Writes a snapshot of the current state and drops the snapshots and journal segments it replaces.
+     */
+    public synchronized void snapshot() throws IOException {
+        long journalOffset = journal.getNextOffset();
+        Writer writer = new Writer(1 << 16);
+        writer.writeInt(MAGIC);
+        writer.writeByte(VERSION);
+        writer.writeLong(journalOffset);
+
+        File temporary = new File(directory, SNAPSHOT_PREFIX + journalOffset + SNAPSHOT_SUFFIX + ".tmp");
+        FileOutputStream file = new FileOutputStream(temporary);
+        try {
+            writer.attach(file);
+            // Sizes of concurrent maps are estimates, so the entries are copied out to count them
+            Channel[] channels = membership.getChannels().toArray(new Channel[0]);
+            Map<String, Integer> channelIndex = new HashMap<String, Integer>(channels.length * 2);
+            writer.writeVarInt(channels.length);
+            for(int i=0; i<channels.length; ++i) {
+                writer.writeString(channels[i].getChannelName());
+                writer.writeVarInt(channels[i].getMemberCount());
+                channelIndex.put(channels[i].getChannelName(), i);
+            }
+
+            User[] users = sessions.getUsers().toArray(new User[0]);
+            writer.writeVarInt(users.length);
+            int[] joined = new int[16];
+            for(User user:users) {
+                writer.writeString(user.getNickname());
+                writer.writeLong(user.getLogoutTimestamp());
+
+                // Channels created after the channel table was written are left to the journal
+                int joinedCount = 0;
+                for(String channelName:membership.getJoinedChannels(user)) {
+                    Integer index = channelIndex.get(channelName);
+                    if(index==null) continue;
+                    if(joinedCount==joined.length) joined = Arrays.copyOf(joined, joinedCount * 2);
+                    joined[joinedCount++] = index;
+                }
+                writer.writeVarInt(joinedCount);
+                for(int i=0; i<joinedCount; ++i)
+                    writer.writeVarInt(joined[i]);
+            }
+            writer.finish();
+            file.getChannel().force(true);
+        } finally {
+            file.close();
+        }
+
+        File snapshot = new File(directory, SNAPSHOT_PREFIX + journalOffset + SNAPSHOT_SUFFIX);
+        if(!temporary.renameTo(snapshot))
+            throw new IOException("Failed to write " + snapshot);
+
+        for(File old:listSnapshots())
+            if(!old.equals(snapshot)) old.delete();
+        journal.deleteBefore(journalOffset);
+    }
+
+    private long loadSnapshot(File snapshot) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(snapshot, "r");
+        try {
+            ByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            Reader reader = new Reader(buffer);
+            if(buffer.remaining() < 17 || reader.readInt()!=MAGIC || reader.readByte()!=VERSION)
+                throw new IOException("Unsupported snapshot " + snapshot);
+            if(!reader.checksumMatches())
+                throw new IOException("Corrupt snapshot " + snapshot);
+            long journalOffset = reader.readLong();
+
+            Channel[] channels = new Channel[reader.readVarInt()];
+            for(int i=0; i<channels.length; ++i) {
+                String channelName = reader.readString();
+                channels[i] = membership.restoreChannel(channelName, reader.readVarInt());
+            }
+
+            int userCount = reader.readVarInt();
+            for(int i=0; i<userCount; ++i) {
+                String nickname = reader.readString();
+                User user = new User(nickname, new LinkedHashSet<String>(), reader.readLong());
+                sessions.restore(user);
+                int joinedCount = reader.readVarInt();
+                for(int j=0; j<joinedCount; ++j)
+                    membership.restoreMember(user, channels[reader.readVarInt()]);
+            }
+            membership.finishRestore();
+            return journalOffset;
+        } finally {
+            file.close();
+        }
+    }
+
+    private void replayJournal(long fromOffset) throws IOException {
+        journal.read(fromOffset, Integer.MAX_VALUE, new RecordVisitor() {
+            public void visit(long offset, long timestamp, ByteBuffer payload) {
+                Reader reader = new Reader(payload);
+                byte op = reader.readByte();
+                String nickname = reader.readString();
+                User user;
+                switch (op) {
+                    case NICK:
+                        if(!sessions.contains(nickname)) sessions.restore(new User(nickname));
+                        break;
+                    case JOIN:
+                        String joined = reader.readString();
+                        user = sessions.get(nickname);
+                        if(user!=null && !membership.isMember(user, joined))
+                            membership.join(user, joined);
+                        break;
+                    case LEAVE:
+                        user = sessions.get(nickname);
+                        if(user!=null) membership.leave(user, reader.readString());
+                        break;
+                    case LOGOUT:
+                        user = sessions.remove(nickname);
+                        if(user!=null) membership.leaveAll(user);
+                        break;
+                    default:
+                        break;
+                }
+            }
+        });
+    }
+
+    private File findLatestSnapshot() {
+        File latest = null;
+        long latestOffset = -1;
+        for(File snapshot:listSnapshots()) {
+            String name = snapshot.getName();
+            long offset = Long.parseLong(name.substring(SNAPSHOT_PREFIX.length(), name.length() - SNAPSHOT_SUFFIX.length()));
+            if(offset > latestOffset) {
+                latest = snapshot;
+                latestOffset = offset;
+            }
+        }
+        return latest;
+    }
+
+    private File[] listSnapshots() {
+        File[] files = directory.listFiles();
+        if(files==null) return new File[0];
+        int count = 0;
+        for(File file:files) {
+            String name = file.getName();
+            if(name.startsWith(SNAPSHOT_PREFIX) && name.endsWith(SNAPSHOT_SUFFIX))
+                files[count++] = file;
+            else if(name.startsWith(SNAPSHOT_PREFIX) && name.endsWith(".tmp"))
+                file.delete();
+        }
+        return Arrays.copyOf(files, count);
+    }
+
+    /**
+     * Stops snapshotting and closes the journal. Call snapshot() before, once requests
+     * have stopped, so the next start doesn't have to replay the journal.
+     */
+    public void close() {
+        snapshotter.shutdownNow();
+        journal.close();
+    }
+
+    /**
+     * Growable byte buffer that can also stream to a file, checksumming what it writes.
+     */
+    private static class Writer {
+        private byte[] buffer;
+        private int position;
+        private OutputStream out;
+        private final CRC32 crc = new CRC32();
+
+        Writer(int capacity) {
+            buffer = new byte[capacity];
+        }
+
+        void attach(OutputStream out) throws IOException {
+            this.out = out;
+            drain();
+        }
+
+        void writeByte(int value) {
+            ensureCapacity(1);
+            buffer[position++] = (byte) value;
+        }
+
+        void writeInt(int value) {
+            ensureCapacity(4);
+            for(int shift=24; shift>=0; shift-=8)
+                buffer[position++] = (byte) (value >>> shift);
+        }
+
+        void writeLong(long value) {
+            ensureCapacity(8);
+            for(int shift=56; shift>=0; shift-=8)
+                buffer[position++] = (byte) (value >>> shift);
+        }
+
+        void writeVarInt(int value) {
+            ensureCapacity(5);
+            while((value & ~0x7F) != 0) {
+                buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[position++] = (byte) value;
+        }
+
+        void writeString(String value) {
+            byte[] bytes = value.getBytes(UTF_8);
+            writeVarInt(bytes.length);
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, buffer, position, bytes.length);
+            position += bytes.length;
+        }
+
+        private void ensureCapacity(int extra) {
+            if(position + extra <= buffer.length) return;
+            if(out!=null) {
+                try {
+                    drain();
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+                if(position + extra <= buffer.length) return;
+            }
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + extra));
+        }
+
+        private void drain() throws IOException {
+            crc.update(buffer, 0, position);
+            out.write(buffer, 0, position);
+            position = 0;
+        }
+
+        void finish() throws IOException {
+            drain();
+            int checksum = (int) crc.getValue();
+            out.write(new byte[]{(byte) (checksum >>> 24), (byte) (checksum >>> 16), (byte) (checksum >>> 8), (byte) checksum});
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buffer, position);
+        }
+    }
+
+    private static class Reader {
+        private final ByteBuffer buffer;
+
+        Reader(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        byte readByte() {
+            return buffer.get();
+        }
+
+        int readInt() {
+            return buffer.getInt();
+        }
+
+        long readLong() {
+            return buffer.getLong();
+        }
+
+        int readVarInt() {
+            int value = 0;
+            for(int shift=0; ; shift+=7) {
+                byte b = buffer.get();
+                value |= (b & 0x7F) << shift;
+                if((b & 0x80)==0) return value;
+            }
+        }
+
+        String readString() {
+            int length = readVarInt();
+            String value;
+            if(buffer.hasArray()) {
+                value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, UTF_8);
+                buffer.position(buffer.position() + length);
+            } else {
+                byte[] bytes = new byte[length];
+                buffer.get(bytes);
+                value = new String(bytes, UTF_8);
+            }
+            return value;
+        }
+
+        boolean checksumMatches() {
+            ByteBuffer content = buffer.duplicate();
+            content.position(0);
+            content.limit(buffer.limit() - 4);
+            CRC32 crc = new CRC32();
+            crc.update(content);
+            return (int) crc.getValue()==buffer.getInt(buffer.limit() - 4);
+        }
+    }
+}
@@ -1,28 +1,33 @@
 package com.edmundophie.chat;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.LinkedHashSet;
+import java.util.Set;
 
 /**
  * Created by edmundophie on 9/17/15.
  */
 public class User {
+    public static final String ONLINE = "online";
+    public static final String IDLE = "idle";
+
     private String nickname;
-    private List<String> joinedChannel;
-    private long logoutTimestamp;
+    private Set<String> joinedChannel;
+    // When the session's lease runs out, 0 when it has none; written by the user's lane, read by the reaper
+    private volatile long logoutTimestamp;
+    private volatile long lastActiveTimestamp;
 
     public User() {
-        joinedChannel = new ArrayList<String>();
+        joinedChannel = new LinkedHashSet<String>();
         logoutTimestamp = 0;
     }
 
     public User(String nickname) {
         this.nickname = nickname;
-        joinedChannel = new ArrayList<String>();
+        joinedChannel = new LinkedHashSet<String>();
         logoutTimestamp = 0;
     };
 
-    public User(String nickname, List<String> joinedChannel, long logoutTimestamp) {
+    public User(String nickname, Set<String> joinedChannel, long logoutTimestamp) {
         this.nickname = nickname;
         this.joinedChannel = joinedChannel;
         this.logoutTimestamp = logoutTimestamp;
@@ -36,11 +41,29 @@ public class User {
         this.logoutTimestamp = logoutTimestamp;
     }
 
-    public List<String> getJoinedChannel() {
+    /**
+     * The last time the user did more than keep the session alive. Not persisted.
+     */
+    public long getLastActiveTimestamp() {
+        return lastActiveTimestamp;
+    }
+
+    public void setLastActiveTimestamp(long lastActiveTimestamp) {
+        this.lastActiveTimestamp = lastActiveTimestamp;
+    }
+
+    /**
+     * ONLINE if the user was active within idleMs of nowMs, otherwise IDLE.
+     */
+    public String getPresence(long nowMs, long idleMs) {
+        return nowMs - lastActiveTimestamp < idleMs ? ONLINE : IDLE;
+    }
+
+    public Set<String> getJoinedChannel() {
         return joinedChannel;
     }
 
-    public void setJoinedChannel(List<String> joinedChannel) {
+    public void setJoinedChannel(Set<String> joinedChannel) {
         this.joinedChannel = joinedChannel;
     }
 
@@ -0,0 +1,391 @@
+package com.edmundophie.cluster;
+
+import com.edmundophie.log.Log;
+import com.edmundophie.transport.Record;
+import com.edmundophie.transport.Subscription;
+import com.edmundophie.transport.Transport;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spreads a fixed number of partitions over the server instances that are alive.
+ * Every instance publishes a heartbeat with the partitions it holds and reads everyone
+ * else's; an instance missing three heartbeats is considered dead. Each partition belongs
+ * to the live instance with the highest rendezvous score for it, so an instance joining
+ * or leaving only moves the partitions it wins or held.
+ * <p>
+ * A partition changes hands in three steps. The new owner acquires it and advertises it as
+ * pending. The old owner sees that, releases it and sends its state to the new owner on the
+ * transfer topic. The new owner activates it with that state. When no live instance holds
+ * the partition, or the handoff takes longer than handoffTimeoutMs, the new owner activates
+ * it without state and the sessions are rebuilt as users log in again.
+ * <pre>
+ * heartbeat : key instanceId, "ALIVE|LEAVING" "|" activePartitions "|" pendingPartitions
+ * transfer  : key targetInstanceId "/" partition, partition state
+ * </pre>
+ */
+public class ClusterCoordinator {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int MISSED_HEARTBEATS = 3;
+    private static final byte NONE = 0;
+    private static final byte PENDING = 1;
+    private static final byte ACTIVE = 2;
+
+    private final Transport transport;
+    private final String heartbeatTopic;
+    private final String transferTopic;
+    private final String instanceId;
+    private final int partitionCount;
+    private final long heartbeatIntervalMs;
+    private final long handoffTimeoutMs;
+    private final PartitionListener listener;
+    private final ConcurrentMap<String, Peer> peers = new ConcurrentHashMap<String, Peer>();
+    private final ConcurrentMap<Integer, byte[]> transfers = new ConcurrentHashMap<Integer, byte[]>();
+    private final ScheduledExecutorService scheduler;
+
+    // Only touched on the scheduler thread
+    private final byte[] states;
+    private final long[] pendingSince;
+    private long startedAt;
+
+    private volatile BitSet activePartitions = new BitSet();
+    private volatile int heldCount;
+    private volatile boolean leaving;
+    private Subscription heartbeatSubscription;
+    private Subscription transferSubscription;
+
+    public ClusterCoordinator(Transport transport, String heartbeatTopic, String transferTopic, String instanceId,
+                              int partitionCount, long heartbeatIntervalMs, long handoffTimeoutMs, PartitionListener listener) {
+        if(instanceId.indexOf('/')>=0)
+            throw new IllegalArgumentException("Instance id must not contain '/'");
+        this.transport = transport;
+        this.heartbeatTopic = heartbeatTopic;
+        this.transferTopic = transferTopic;
+        this.instanceId = instanceId;
+        this.partitionCount = partitionCount;
+        this.heartbeatIntervalMs = heartbeatIntervalMs;
+        this.handoffTimeoutMs = handoffTimeoutMs;
+        this.listener = listener;
+        states = new byte[partitionCount];
+        pendingSince = new long[partitionCount];
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "cluster-coordinator");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Starts heartbeating. Partitions are claimed after two heartbeat intervals,
+     * once the other instances have been heard from.
+     */
+    public void start() {
+        // Every instance reads every heartbeat and every transfer, so each subscribes in its own group
+        heartbeatSubscription = transport.subscribe(heartbeatTopic, instanceId, false);
+        transferSubscription = transport.subscribe(transferTopic, instanceId, false);
+        startReader(heartbeatSubscription, "cluster-heartbeat-reader", true);
+        startReader(transferSubscription, "cluster-transfer-reader", false);
+
+        startedAt = System.currentTimeMillis();
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                sendHeartbeat();
+            }
+        }, 0, heartbeatIntervalMs, TimeUnit.MILLISECONDS);
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    rebalance();
+                } catch (RuntimeException e) {
+                    Log.warn("- Rebalance failed", e);
+                }
+            }
+        }, heartbeatIntervalMs, Math.max(1, heartbeatIntervalMs / 4), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Announces that this instance is leaving and waits up to timeoutMs for the other
+     * instances to take over its partitions. Partitions nobody took are released without
+     * handing their state over.
+     */
+    public void leave(long timeoutMs) throws InterruptedException {
+        leaving = true;
+        scheduler.execute(new Runnable() {
+            public void run() {
+                sendHeartbeat();
+            }
+        });
+
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (heldCount > 0 && System.currentTimeMillis() < deadline && hasLivePeers())
+            Thread.sleep(Math.max(1, heartbeatIntervalMs / 4));
+
+        scheduler.submit(new Runnable() {
+            public void run() {
+                for(int partition=0; partition<partitionCount; ++partition) {
+                    if(states[partition]!=NONE)
+                        release(partition, null);
+                }
+            }
+        });
+    }
+
+    /**
+     * Stops heartbeating without releasing anything. Other instances take the partitions
+     * over once this one is considered dead.
+     */
+    public void close() throws InterruptedException {
+        scheduler.shutdown();
+        scheduler.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        if(heartbeatSubscription!=null) heartbeatSubscription.close();
+        if(transferSubscription!=null) transferSubscription.close();
+    }
+
+    public String getInstanceId() {
+        return instanceId;
+    }
+
+    public int getPartitionCount() {
+        return partitionCount;
+    }
+
+    public boolean isActive(int partition) {
+        return activePartitions.get(partition);
+    }
+
+    /**
+     * The partitions this instance currently serves.
+     */
+    public BitSet getActivePartitions() {
+        return (BitSet) activePartitions.clone();
+    }
+
+    /**
+     * The instance a partition belongs to among the given ones, by rendezvous hashing.
+     */
+    public static String ownerOf(List<String> instanceIds, int partition) {
+        String owner = null;
+        long best = 0;
+        for(String id:instanceIds) {
+            long score = mix(((long) id.hashCode() << 32) | (partition & 0xffffffffL));
+            if(owner==null || score > best || (score==best && id.compareTo(owner) > 0)) {
+                owner = id;
+                best = score;
+            }
+        }
+        return owner;
+    }
+
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        return value ^ (value >>> 33);
+    }
+
+    private void rebalance() {
+        long now = System.currentTimeMillis();
+        if(now - startedAt < 2 * heartbeatIntervalMs) return;
+
+        List<String> view = liveView(now);
+        for(int partition=0; partition<partitionCount; ++partition) {
+            String owner = view.isEmpty() ? null : ownerOf(view, partition);
+            boolean mine = instanceId.equals(owner);
+
+            if(states[partition]==NONE) {
+                if(mine) {
+                    transfers.remove(partition);
+                    listener.onAcquire(partition);
+                    states[partition] = PENDING;
+                    pendingSince[partition] = now;
+                }
+            } else if(states[partition]==PENDING) {
+                byte[] state = transfers.remove(partition);
+                if(!mine) {
+                    release(partition, null);
+                } else if(state!=null) {
+                    activate(partition, state);
+                } else if(!heldActiveElsewhere(partition, now)) {
+                    activate(partition, null);
+                } else if(now - pendingSince[partition] > handoffTimeoutMs) {
+                    Log.warn("- Partition " + partition + " was not handed over in " + handoffTimeoutMs + " ms, starting it empty");
+                    activate(partition, null);
+                }
+            } else if(transfers.containsKey(partition)) {
+                // The handoff lost the race with the old owner's heartbeat and the partition started empty
+                listener.onActivate(partition, transfers.remove(partition));
+            } else if(!mine && owner!=null) {
+                // Hand over once the new owner holds the request topic, so no request is dropped
+                Peer peer = peers.get(owner);
+                if(peer!=null && (peer.active.get(partition) || peer.pending.get(partition)))
+                    release(partition, owner);
+            }
+        }
+        publishStates();
+    }
+
+    private void activate(int partition, byte[] state) {
+        listener.onActivate(partition, state);
+        states[partition] = ACTIVE;
+    }
+
+    private void release(int partition, String target) {
+        boolean wasActive = states[partition]==ACTIVE;
+        states[partition] = NONE;
+        byte[] state = listener.onRelease(partition);
+        publishStates();
+        if(wasActive && target!=null) {
+            try {
+                transport.send(new Record(transferTopic, target + "/" + partition, state));
+            } catch (IOException e) {
+                Log.warn("- Failed to hand partition " + partition + " over to " + target + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private void publishStates() {
+        BitSet active = new BitSet(partitionCount);
+        int held = 0;
+        for(int partition=0; partition<partitionCount; ++partition) {
+            if(states[partition]==ACTIVE) active.set(partition);
+            if(states[partition]!=NONE) ++held;
+        }
+        activePartitions = active;
+        heldCount = held;
+    }
+
+    /**
+     * Live instances that take partitions, sorted. Leaving instances are live but take none.
+     */
+    private List<String> liveView(long now) {
+        List<String> view = new ArrayList<String>();
+        if(!leaving) view.add(instanceId);
+        for(Map.Entry<String, Peer> entry:peers.entrySet()) {
+            Peer peer = entry.getValue();
+            if(isLive(peer, now) && !peer.leaving)
+                view.add(entry.getKey());
+        }
+        Collections.sort(view);
+        return view;
+    }
+
+    private boolean heldActiveElsewhere(int partition, long now) {
+        for(Peer peer:peers.values()) {
+            if(isLive(peer, now) && peer.active.get(partition))
+                return true;
+        }
+        return false;
+    }
+
+    private boolean hasLivePeers() {
+        long now = System.currentTimeMillis();
+        for(Peer peer:peers.values()) {
+            if(isLive(peer, now) && !peer.leaving)
+                return true;
+        }
+        return false;
+    }
+
+    private boolean isLive(Peer peer, long now) {
+        return now - peer.lastSeen <= MISSED_HEARTBEATS * heartbeatIntervalMs;
+    }
+
+    private void sendHeartbeat() {
+        StringBuilder active = new StringBuilder();
+        StringBuilder pending = new StringBuilder();
+        for(int partition=0; partition<partitionCount; ++partition) {
+            StringBuilder list = states[partition]==ACTIVE ? active : states[partition]==PENDING ? pending : null;
+            if(list==null) continue;
+            if(list.length() > 0) list.append(',');
+            list.append(partition);
+        }
+        String heartbeat = (leaving ? "LEAVING" : "ALIVE") + "|" + active + "|" + pending;
+        try {
+            transport.send(new Record(heartbeatTopic, instanceId, heartbeat.getBytes(UTF_8)));
+        } catch (IOException e) {
+            Log.warn("- Failed to send heartbeat: " + e.getMessage());
+        }
+    }
+
+    private void startReader(final Subscription subscription, String name, final boolean heartbeats) {
+        Thread reader = new Thread(new Runnable() {
+            public void run() {
+                while (subscription.hasNext()) {
+                    Record record = subscription.next();
+                    if(record.getKey()==null) continue;
+                    // A dead reader would see every peer expire, so no record may end it
+                    try {
+                        if(heartbeats) onHeartbeat(record);
+                        else onTransfer(record);
+                    } catch (RuntimeException e) {
+                        Log.warn("- Ignoring malformed cluster record from " + record.getKey(), e);
+                    }
+                }
+            }
+        }, name);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private void onHeartbeat(Record record) {
+        if(instanceId.equals(record.getKey()) || record.getPayload()==null) return;
+        String[] fields = new String(record.getPayload(), UTF_8).split("\\|", -1);
+        if(fields.length < 3) return;
+        try {
+            peers.put(record.getKey(), new Peer(System.currentTimeMillis(), "LEAVING".equals(fields[0]), parse(fields[1]), parse(fields[2])));
+        } catch (NumberFormatException e) {
+            Log.warn("- Ignoring malformed heartbeat from " + record.getKey());
+        }
+    }
+
+    private void onTransfer(Record record) {
+        String prefix = instanceId + "/";
+        if(!record.getKey().startsWith(prefix)) return;
+        try {
+            transfers.put(Integer.parseInt(record.getKey().substring(prefix.length())), record.getPayload());
+        } catch (NumberFormatException e) {
+            Log.warn("- Ignoring malformed partition transfer " + record.getKey());
+        }
+    }
+
+    private BitSet parse(String list) {
+        BitSet partitions = new BitSet(partitionCount);
+        if(list.isEmpty()) return partitions;
+        for(String field:list.split(",")) {
+            int partition = Integer.parseInt(field);
+            if(partition < 0 || partition >= partitionCount)
+                throw new NumberFormatException("Partition out of range: " + field);
+            partitions.set(partition);
+        }
+        return partitions;
+    }
+
+    private static class Peer {
+        final long lastSeen;
+        final boolean leaving;
+        final BitSet active;
+        final BitSet pending;
+
+        Peer(long lastSeen, boolean leaving, BitSet active, BitSet pending) {
+            this.lastSeen = lastSeen;
+            this.leaving = leaving;
+            this.active = active;
+            this.pending = pending;
+        }
+    }
+}
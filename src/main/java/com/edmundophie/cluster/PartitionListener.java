@@ -0,0 +1,26 @@
+package com.edmundophie.cluster;
+
+/**
+ * Callbacks through which a ClusterCoordinator moves partitions in and out of an instance.
+ * All calls are made from the coordinator's thread, one at a time.
+ */
+public interface PartitionListener {
+    /**
+     * The partition was assigned here. Start holding its request topic but don't process
+     * requests yet: the previous owner may still be handing over its state.
+     */
+    void onAcquire(int partition);
+
+    /**
+     * Start processing the partition. The state is what the previous owner handed over,
+     * or null if there was no previous owner or it died. If the state arrives after the
+     * partition was started without it, this is called again with it and it is merged in.
+     */
+    void onActivate(int partition, byte[] state);
+
+    /**
+     * Stop processing the partition, finish the requests already taken and return its state
+     * for the next owner. Also called for a partition that was acquired but never activated.
+     */
+    byte[] onRelease(int partition);
+}
@@ -0,0 +1,28 @@
+package com.edmundophie.cluster;
+
+/**
+ * Maps nicknames onto a fixed number of logical partitions and partitions onto request topics.
+ * Clients and servers must agree on the partition count (chat.partitions). With a single
+ * partition the original request topic is used, so an unpartitioned deployment is unchanged.
+ */
+public final class Partitioner {
+    public static final int CONFIGURED_COUNT = Integer.getInteger("chat.partitions", 1);
+
+    private Partitioner() {
+    }
+
+    public static int partitionFor(String nickname, int partitionCount) {
+        if(partitionCount <= 1 || nickname==null) return 0;
+        // String.hashCode is specified, so every JVM agrees; the mix spreads similar names
+        int hash = nickname.hashCode() * 0x9E3779B1;
+        return ((hash ^ (hash >>> 16)) & 0x7fffffff) % partitionCount;
+    }
+
+    public static String requestTopic(String baseTopic, int partition, int partitionCount) {
+        return partitionCount <= 1 ? baseTopic : baseTopic + "." + partition;
+    }
+
+    public static String requestTopicFor(String baseTopic, String nickname, int partitionCount) {
+        return requestTopic(baseTopic, partitionFor(nickname, partitionCount), partitionCount);
+    }
+}
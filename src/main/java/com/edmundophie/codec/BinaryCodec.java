@@ -0,0 +1,351 @@
+package com.edmundophie.codec;
+
+import com.edmundophie.chat.Message;
+import com.edmundophie.rpc.Command;
+import com.edmundophie.rpc.Request;
+import com.edmundophie.rpc.Response;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary wire format. Every frame starts with a version byte and a frame type byte:
+ * <pre>
+ * request  : VERSION 'Q' command [rawCommand if command==0] nickname channelName message replyTo [options]
+ * options  : flags [limit if flags&1] [since(8 bytes) if flags&2] [count (operation request frame)*count if flags&4]
+ * response : VERSION 'R' status nickname message [count (timestamp(8 bytes) sender text)*count [responseOptions]]
+ * responseOptions : flags [retryAfterMs(8 bytes) if flags&1] [count (response frame)*count if flags&4]
+ *                   [count (nickname state)*count if flags&8], flags&2 meaning count 0 stands for no messages
+ * message  : VERSION 'M' timestamp(8 bytes) channelName sender text
+ * </pre>
+ * Strings are a varint of (UTF-8 length + 1) followed by the bytes, 0 meaning null. The
+ * operations of a batch and their responses are nested frames, written like strings and
+ * decoded in place. Nested frames can't nest further: a batch can't hold a batch.
+ * Bracketed trailers are only written when set, so older frames still decode.
+ * Status is 0 (false), 1 (true) or 2 (null). The version byte is below any printable
+ * character so binary frames can't be confused with JSON or text frames.
+ */
+public class BinaryCodec implements Codec {
+    public static final String NAME = "binary";
+    public static final byte VERSION = 1;
+
+    private static final byte REQUEST_FRAME = 'Q';
+    private static final byte RESPONSE_FRAME = 'R';
+    private static final byte MESSAGE_FRAME = 'M';
+    private static final int OPTION_LIMIT = 1;
+    private static final int OPTION_SINCE = 2;
+    private static final int OPTION_OPERATIONS = 4;
+    private static final int RESPONSE_OPTION_RETRY_AFTER = 1;
+    private static final int RESPONSE_OPTION_NO_MESSAGES = 2;
+    private static final int RESPONSE_OPTION_RESPONSES = 4;
+    private static final int RESPONSE_OPTION_PRESENCE = 8;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public String getName() {
+        return NAME;
+    }
+
+    public byte[] encodeRequest(Request request) {
+        FrameWriter writer = new FrameWriter(REQUEST_FRAME, 64);
+        Command command = Command.fromName(request.getCommand());
+        if(command==null) {
+            writer.writeByte(0);
+            writer.writeString(request.getCommand());
+        } else
+            writer.writeByte(command.getCode());
+        writer.writeString(request.getNickname());
+        writer.writeString(request.getChannelName());
+        writer.writeString(request.getMessage());
+        writer.writeString(request.getReplyTo());
+        if(request.getLimit()!=null || request.getSince()!=null || request.getOperations()!=null) {
+            writer.writeByte((request.getLimit()!=null ? OPTION_LIMIT : 0) | (request.getSince()!=null ? OPTION_SINCE : 0)
+                    | (request.getOperations()!=null ? OPTION_OPERATIONS : 0));
+            if(request.getLimit()!=null) writer.writeVarInt(request.getLimit());
+            if(request.getSince()!=null) writer.writeLong(request.getSince());
+            if(request.getOperations()!=null) {
+                writer.writeVarInt(request.getOperations().size());
+                for(Request operation:request.getOperations())
+                    writer.writeBytes(encodeRequest(operation));
+            }
+        }
+        return writer.toByteArray();
+    }
+
+    public Request decodeRequest(byte[] bytes) throws IOException {
+        return decodeRequest(new FrameReader(bytes, 0, bytes.length, REQUEST_FRAME), false);
+    }
+
+    private Request decodeRequest(FrameReader reader, boolean nested) throws IOException {
+        Request request = new Request();
+        byte code = reader.readByte();
+        if(code==0)
+            request.setCommand(reader.readString());
+        else {
+            Command command = Command.fromCode(code);
+            if(command==null) throw new IOException("Unknown command code " + code);
+            request.setCommand(command.name());
+        }
+        request.setNickname(reader.readString());
+        request.setChannelName(reader.readString());
+        request.setMessage(reader.readString());
+        request.setReplyTo(reader.readString());
+        if(reader.hasRemaining()) {
+            byte options = reader.readByte();
+            if((options & OPTION_LIMIT)!=0) request.setLimit(reader.readVarInt());
+            if((options & OPTION_SINCE)!=0) request.setSince(reader.readLong());
+            if((options & OPTION_OPERATIONS)!=0) {
+                if(nested) throw new IOException("A batch operation can't have operations");
+                int count = reader.readCount();
+                List<Request> operations = new ArrayList<Request>(Math.min(count, 1024));
+                for(int i=0; i<count; ++i)
+                    operations.add(decodeRequest(reader.readFrame(REQUEST_FRAME), true));
+                request.setOperations(operations);
+            }
+        }
+        return request;
+    }
+
+    public byte[] encodeResponse(Response response) {
+        FrameWriter writer = new FrameWriter(RESPONSE_FRAME, 64);
+        writer.writeByte(response.getStatus()==null ? 2 : response.isStatus() ? 1 : 0);
+        writer.writeString(response.getNickname());
+        writer.writeString(response.getMessage());
+        if(response.getMessages()!=null) {
+            writer.writeVarInt(response.getMessages().size());
+            for(Message message:response.getMessages()) {
+                writer.writeLong(message.getTimestamp());
+                writer.writeString(message.getSender());
+                writer.writeString(message.getText());
+            }
+        } else if(hasResponseOptions(response))
+            writer.writeVarInt(0);
+        if(hasResponseOptions(response)) {
+            writer.writeByte((response.getRetryAfterMs()!=null ? RESPONSE_OPTION_RETRY_AFTER : 0)
+                    | (response.getMessages()==null ? RESPONSE_OPTION_NO_MESSAGES : 0)
+                    | (response.getResponses()!=null ? RESPONSE_OPTION_RESPONSES : 0)
+                    | (response.getPresence()!=null ? RESPONSE_OPTION_PRESENCE : 0));
+            if(response.getRetryAfterMs()!=null) writer.writeLong(response.getRetryAfterMs());
+            if(response.getResponses()!=null) {
+                writer.writeVarInt(response.getResponses().size());
+                for(Response operationResponse:response.getResponses())
+                    writer.writeBytes(encodeResponse(operationResponse));
+            }
+            if(response.getPresence()!=null) {
+                writer.writeVarInt(response.getPresence().size());
+                for(Map.Entry<String, String> member:response.getPresence().entrySet()) {
+                    writer.writeString(member.getKey());
+                    writer.writeString(member.getValue());
+                }
+            }
+        }
+        return writer.toByteArray();
+    }
+
+    private static boolean hasResponseOptions(Response response) {
+        return response.getRetryAfterMs()!=null || response.getResponses()!=null || response.getPresence()!=null;
+    }
+
+    public Response decodeResponse(byte[] bytes) throws IOException {
+        return decodeResponse(new FrameReader(bytes, 0, bytes.length, RESPONSE_FRAME), false);
+    }
+
+    private Response decodeResponse(FrameReader reader, boolean nested) throws IOException {
+        Response response = new Response();
+        byte status = reader.readByte();
+        if(status!=2) response.putStatus(status==1);
+        response.setNickname(reader.readString());
+        response.setMessage(reader.readString());
+        if(reader.hasRemaining()) {
+            int count = reader.readCount();
+            List<Message> messages = new ArrayList<Message>(Math.min(count, 1024));
+            for(int i=0; i<count; ++i) {
+                long timestamp = reader.readLong();
+                String sender = reader.readString();
+                messages.add(new Message(null, sender, reader.readString(), timestamp));
+            }
+            response.setMessages(messages);
+            if(reader.hasRemaining()) {
+                byte options = reader.readByte();
+                if((options & RESPONSE_OPTION_RETRY_AFTER)!=0) response.setRetryAfterMs(reader.readLong());
+                if((options & RESPONSE_OPTION_NO_MESSAGES)!=0) response.setMessages(null);
+                if((options & RESPONSE_OPTION_RESPONSES)!=0) {
+                    if(nested) throw new IOException("A batch operation response can't have responses");
+                    int responseCount = reader.readCount();
+                    List<Response> responses = new ArrayList<Response>(Math.min(responseCount, 1024));
+                    for(int i=0; i<responseCount; ++i)
+                        responses.add(decodeResponse(reader.readFrame(RESPONSE_FRAME), true));
+                    response.setResponses(responses);
+                }
+                if((options & RESPONSE_OPTION_PRESENCE)!=0) {
+                    int memberCount = reader.readCount();
+                    Map<String, String> presence = new LinkedHashMap<String, String>();
+                    for(int i=0; i<memberCount; ++i)
+                        presence.put(reader.readString(), reader.readString());
+                    response.setPresence(presence);
+                }
+            }
+        }
+        return response;
+    }
+
+    public byte[] encodeMessage(String channelName, Message message) {
+        FrameWriter writer = new FrameWriter(MESSAGE_FRAME, 64);
+        writer.writeLong(message.getTimestamp());
+        writer.writeString(channelName);
+        writer.writeString(message.getSender());
+        writer.writeString(message.getText());
+        return writer.toByteArray();
+    }
+
+    public Message decodeMessage(byte[] bytes) throws IOException {
+        FrameReader reader = new FrameReader(bytes, 0, bytes.length, MESSAGE_FRAME);
+        long timestamp = reader.readLong();
+        String channelName = reader.readString();
+        String sender = reader.readString();
+        String text = reader.readString();
+        return new Message(channelName, sender, text, timestamp);
+    }
+
+    private static class FrameWriter {
+        private byte[] buffer;
+        private int position;
+
+        FrameWriter(byte frameType, int initialCapacity) {
+            buffer = new byte[Math.max(initialCapacity, 16)];
+            buffer[position++] = VERSION;
+            buffer[position++] = frameType;
+        }
+
+        void writeByte(int value) {
+            ensureCapacity(1);
+            buffer[position++] = (byte) value;
+        }
+
+        void writeLong(long value) {
+            ensureCapacity(8);
+            for(int shift=56; shift>=0; shift-=8)
+                buffer[position++] = (byte) (value >>> shift);
+        }
+
+        void writeVarInt(int value) {
+            ensureCapacity(5);
+            while((value & ~0x7F) != 0) {
+                buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[position++] = (byte) value;
+        }
+
+        void writeString(String value) {
+            if(value==null) {
+                writeVarInt(0);
+                return;
+            }
+            writeBytes(value.getBytes(UTF_8));
+        }
+
+        void writeBytes(byte[] bytes) {
+            writeVarInt(bytes.length + 1);
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, buffer, position, bytes.length);
+            position += bytes.length;
+        }
+
+        private void ensureCapacity(int extra) {
+            if(position + extra > buffer.length)
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + extra));
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buffer, position);
+        }
+    }
+
+    /**
+     * Reads the frame in buffer[offset, limit), which may be nested in a larger one.
+     */
+    private static class FrameReader {
+        private final byte[] buffer;
+        private final int limit;
+        private int position;
+
+        FrameReader(byte[] buffer, int offset, int limit, byte expectedFrameType) throws IOException {
+            this.buffer = buffer;
+            this.limit = limit;
+            if(limit - offset < 2 || buffer[offset]!=VERSION)
+                throw new IOException("Unsupported binary frame version");
+            if(buffer[offset + 1]!=expectedFrameType)
+                throw new IOException("Unexpected frame type " + (char) buffer[offset + 1]);
+            position = offset + 2;
+        }
+
+        boolean hasRemaining() {
+            return position < limit;
+        }
+
+        byte readByte() throws IOException {
+            require(1);
+            return buffer[position++];
+        }
+
+        long readLong() throws IOException {
+            require(8);
+            long value = 0;
+            for(int i=0; i<8; ++i)
+                value = (value << 8) | (buffer[position++] & 0xFF);
+            return value;
+        }
+
+        int readVarInt() throws IOException {
+            int value = 0;
+            for(int shift=0; shift<32; shift+=7) {
+                byte b = readByte();
+                value |= (b & 0x7F) << shift;
+                if((b & 0x80)==0) return value;
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        int readCount() throws IOException {
+            int count = readVarInt();
+            if(count < 0) throw new IOException("Negative count");
+            return count;
+        }
+
+        String readString() throws IOException {
+            int length = readVarInt();
+            if(length==0) return null;
+            if(length < 0) throw new IOException("Negative string length");
+            length -= 1;
+            require(length);
+            String value = new String(buffer, position, length, UTF_8);
+            position += length;
+            return value;
+        }
+
+        /**
+         * Returns a reader of the nested frame at the current position and skips past it.
+         */
+        FrameReader readFrame(byte expectedFrameType) throws IOException {
+            int length = readVarInt();
+            if(length < 0) throw new IOException("Negative frame length");
+            if(length==0) throw new IOException("Missing nested frame");
+            length -= 1;
+            require(length);
+            FrameReader frame = new FrameReader(buffer, position, position + length, expectedFrameType);
+            position += length;
+            return frame;
+        }
+
+        private void require(int length) throws IOException {
+            // Written so it can't overflow for lengths close to Integer.MAX_VALUE
+            if(length < 0 || length > limit - position)
+                throw new IOException("Truncated binary frame");
+        }
+    }
+}
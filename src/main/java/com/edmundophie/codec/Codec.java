@@ -0,0 +1,29 @@
+package com.edmundophie.codec;
+
+import com.edmundophie.chat.Message;
+import com.edmundophie.rpc.Request;
+import com.edmundophie.rpc.Response;
+
+import java.io.IOException;
+
+/**
+ * Wire encoding for RPC requests/responses and channel messages.
+ */
+public interface Codec {
+    String getName();
+
+    byte[] encodeRequest(Request request) throws IOException;
+
+    Request decodeRequest(byte[] bytes) throws IOException;
+
+    byte[] encodeResponse(Response response) throws IOException;
+
+    Response decodeResponse(byte[] bytes) throws IOException;
+
+    /**
+     * Encodes a message published to the given channel.
+     */
+    byte[] encodeMessage(String channelName, Message message) throws IOException;
+
+    Message decodeMessage(byte[] bytes) throws IOException;
+}
@@ -0,0 +1,33 @@
+package com.edmundophie.codec;
+
+/**
+ * Codec lookup. Decoders use {@link #detect(byte[])} so JSON and binary
+ * peers can coexist while the binary format is rolled out.
+ */
+public class Codecs {
+    public static final Codec JSON = new JsonCodec();
+    public static final Codec BINARY = new BinaryCodec();
+
+    private Codecs() {
+    }
+
+    public static Codec forName(String name) {
+        if(BinaryCodec.NAME.equalsIgnoreCase(name)) return BINARY;
+        if(JsonCodec.NAME.equalsIgnoreCase(name)) return JSON;
+        throw new IllegalArgumentException("Unknown codec " + name);
+    }
+
+    /**
+     * Returns the codec a frame was written with, judging by its version byte.
+     */
+    public static Codec detect(byte[] bytes) {
+        return bytes.length > 0 && bytes[0]==BinaryCodec.VERSION ? BINARY : JSON;
+    }
+
+    /**
+     * The codec configured with the chat.codec system property, JSON by default.
+     */
+    public static Codec configured() {
+        return forName(System.getProperty("chat.codec", JsonCodec.NAME));
+    }
+}
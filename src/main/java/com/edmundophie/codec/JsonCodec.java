@@ -0,0 +1,52 @@
+package com.edmundophie.codec;
+
+import com.edmundophie.chat.Message;
+import com.edmundophie.rpc.Request;
+import com.edmundophie.rpc.Response;
+import com.edmundophie.rpc.RpcSerialization;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/**
+ * The original wire format: JSON RPC bodies and "@channel sender: text" channel messages.
+ */
+public class JsonCodec implements Codec {
+    public static final String NAME = "json";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public String getName() {
+        return NAME;
+    }
+
+    public byte[] encodeRequest(Request request) throws IOException {
+        return RpcSerialization.writeRequest(request);
+    }
+
+    public Request decodeRequest(byte[] bytes) throws IOException {
+        return RpcSerialization.readRequest(bytes);
+    }
+
+    public byte[] encodeResponse(Response response) throws IOException {
+        return RpcSerialization.writeResponse(response);
+    }
+
+    public Response decodeResponse(byte[] bytes) throws IOException {
+        return RpcSerialization.readResponse(bytes);
+    }
+
+    public byte[] encodeMessage(String channelName, Message message) {
+        return ("@" + channelName + " " + message.getSender() + ": " + message.getText()).getBytes(UTF_8);
+    }
+
+    public Message decodeMessage(byte[] bytes) throws IOException {
+        String text = new String(bytes, UTF_8);
+        int channelEnd = text.indexOf(' ');
+        int senderEnd = text.indexOf(": ", channelEnd + 1);
+        if(!text.startsWith("@") || channelEnd < 0 || senderEnd < 0)
+            throw new IOException("Malformed channel message");
+
+        return new Message(text.substring(1, channelEnd), text.substring(channelEnd + 1, senderEnd),
+                text.substring(senderEnd + 2), 0);
+    }
+}
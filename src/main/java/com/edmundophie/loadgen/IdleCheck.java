@@ -0,0 +1,127 @@
+package com.edmundophie.loadgen;
+
+import com.edmundophie.chat.ChatServer;
+import com.edmundophie.chat.MessageConsumerImpl;
+import com.edmundophie.transport.InMemoryTransport;
+import com.edmundophie.transport.Subscription;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Measures the CPU an idle consumer loop costs, on InMemoryTransport, whose subscriptions
+ * block in hasNext() and return false once closed like the Kafka iterator does. The loop the
+ * consumers had before, which polled hasNext() inside while(true), is measured next to the
+ * current one that loops while hasNext() is true. Each runs with an open but silent
+ * subscription and after its subscription was closed while the loop still runs. Last, the
+ * CPU of a whole idle server with a channel listener is sampled. Thread CPU time comes from
+ * ThreadMXBean. MessageConsumerImplTest checks that an idle listener parks and ends on close.
+ */
+public class IdleCheck {
+    private final static long SAMPLE_MS = Long.getLong("idlecheck.sampleMs", 2000L);
+
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private final PrintStream out;
+
+    public IdleCheck(PrintStream out) {
+        this.out = out;
+    }
+
+    public static void main(String[] args) throws Exception {
+        new IdleCheck(System.out).run();
+    }
+
+    public void run() throws Exception {
+        out.println("# sampleMs=" + SAMPLE_MS + ", CPU in % of one core");
+        out.println(String.format("  %-22s %8s %8s", "loop", "open", "closed"));
+        measureLoop("polling (before)", true);
+        measureLoop("blocking (current)", false);
+        measureServer();
+    }
+
+    private void measureLoop(String name, boolean polling) throws Exception {
+        double open = sampleLoop(polling, false);
+        double closed = sampleLoop(polling, true);
+        out.println(String.format("  %-22s %8.1f %8.1f", name, open, closed));
+    }
+
+    private double sampleLoop(final boolean polling, boolean closeFirst) throws Exception {
+        InMemoryTransport transport = new InMemoryTransport();
+        final Subscription subscription = transport.subscribe("idle", "idle", false);
+        final AtomicBoolean running = new AtomicBoolean(true);
+        Thread loop = new Thread(new Runnable() {
+            public void run() {
+                if(polling) {
+                    while (running.get()) {
+                        if(subscription.hasNext())
+                            subscription.next();
+                    }
+                } else {
+                    while (running.get() && subscription.hasNext())
+                        subscription.next();
+                }
+            }
+        }, "idle-loop");
+        loop.setDaemon(true);
+        loop.start();
+        if(closeFirst) subscription.close();
+        Thread.sleep(100);
+
+        double percent = sampleThread(loop);
+        running.set(false);
+        subscription.close();
+        loop.join(1000);
+        transport.close();
+        return percent;
+    }
+
+    /**
+     * CPU of the thread over SAMPLE_MS; a thread that has exited counts as idle.
+     */
+    private double sampleThread(Thread thread) throws InterruptedException {
+        long before = Math.max(0, threads.getThreadCpuTime(thread.getId()));
+        long start = System.nanoTime();
+        Thread.sleep(SAMPLE_MS);
+        long after = Math.max(0, threads.getThreadCpuTime(thread.getId()));
+        if(!thread.isAlive()) after = Math.max(after, before);
+        return 100.0 * (after - before) / (System.nanoTime() - start);
+    }
+
+    private void measureServer() throws Exception {
+        InMemoryTransport transport = new InMemoryTransport();
+        final ChatServer server = new ChatServer(transport, transport);
+        Thread serverThread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    server.start();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, "idle-server");
+        serverThread.start();
+        MessageConsumerImpl listener = new MessageConsumerImpl(transport.subscribe("idle-channel", "idle", false));
+        listener.start();
+        Thread.sleep(500);
+
+        long before = totalCpu();
+        long start = System.nanoTime();
+        Thread.sleep(SAMPLE_MS);
+        double percent = 100.0 * (totalCpu() - before) / (System.nanoTime() - start);
+        out.println(String.format("  %-22s %8.1f", "idle server + listener", percent));
+
+        listener.terminate();
+        server.shutdown();
+        serverThread.join();
+        transport.close();
+    }
+
+    private long totalCpu() {
+        long total = 0;
+        for(long id:threads.getAllThreadIds())
+            total += Math.max(0, threads.getThreadCpuTime(id));
+        return total;
+    }
+}
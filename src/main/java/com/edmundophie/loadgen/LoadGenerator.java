@@ -0,0 +1,495 @@
+package com.edmundophie.loadgen;
+
+import com.edmundophie.chat.ChannelTopics;
+import com.edmundophie.chat.ChatServer;
+import com.edmundophie.chat.InboxTopics;
+import com.edmundophie.chat.Message;
+import com.edmundophie.chat.ReplyTopics;
+import com.edmundophie.cluster.Partitioner;
+import com.edmundophie.codec.Codec;
+import com.edmundophie.codec.Codecs;
+import com.edmundophie.log.Log;
+import com.edmundophie.metrics.LatencyHistogram;
+import com.edmundophie.rpc.AsyncRpcClient;
+import com.edmundophie.rpc.Command;
+import com.edmundophie.rpc.Request;
+import com.edmundophie.rpc.Response;
+import com.edmundophie.rpc.RpcCallback;
+import com.edmundophie.transport.InMemoryTransport;
+import com.edmundophie.transport.KafkaTransport;
+import com.edmundophie.transport.Record;
+import com.edmundophie.transport.Subscription;
+import com.edmundophie.transport.Transport;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives many virtual chat sessions against a ChatServer and reports RPC and
+ * message delivery latency percentiles. With the default in-memory transport the
+ * server runs in the same JVM; with the kafka transport a running server is targeted.
+ */
+public class LoadGenerator {
+    private final static String BROKER_LIST = "localhost:9092";
+    private final static String ZOOKEEPER_SERVER = "localhost:2181";
+    private final static String RPC_REQUEST_TOPIC_NAME = "rpcRequestTopic";
+    private final static String CHANNEL_PREFIX = "lg-channel-";
+    private final static String MESSAGE_PREFIX = "lg ";
+
+    private final static String TRANSPORT = System.getProperty("loadgen.transport", "memory");
+    private final static int USERS = Integer.getInteger("loadgen.users", 1000);
+    private final static int CHANNELS = Integer.getInteger("loadgen.channels", 100);
+    private final static int CHANNELS_PER_USER = Integer.getInteger("loadgen.channelsPerUser", 3);
+    private final static double ZIPF_EXPONENT = Double.parseDouble(System.getProperty("loadgen.zipfExponent", "1.0"));
+    private final static String MIX = System.getProperty("loadgen.mix", "SEND:70,BROADCAST:5,JOIN:10,LEAVE:10,NICK:5");
+    private final static int THREADS = Integer.getInteger("loadgen.threads", 4);
+    private final static int CONNECTIONS = Integer.getInteger("loadgen.connections", 4);
+    private final static int MAX_IN_FLIGHT = Integer.getInteger("loadgen.maxInFlight", 256);
+    private final static long RPC_TIMEOUT_MS = Long.getLong("loadgen.rpcTimeoutMs", 10000L);
+    private final static int TARGET_RATE = Integer.getInteger("loadgen.rate", 0);
+    private final static int DURATION_SEC = Integer.getInteger("loadgen.durationSec", 30);
+    private final static int OBSERVED_CHANNELS = Integer.getInteger("loadgen.observedChannels", 16);
+    private final static boolean BATCH_SET_UP = Boolean.parseBoolean(System.getProperty("loadgen.batchSetUp", "true"));
+
+    private final Transport transport;
+    private final Codec codec;
+    private final ZipfSampler channelSampler;
+    private final Command[] mixTable;
+    private final String runId;
+
+    private final AsyncRpcClient[] connections;
+    private final String[] replyTopics;
+    private final VirtualUser[] users;
+    private final List<Subscription> observers;
+
+    private final Map<Command, LatencyHistogram> rpcLatency;
+    private final Map<Command, AtomicLong> rejected;
+    private final AtomicLong errors;
+    private final LatencyHistogram deliveryLatency;
+
+    public LoadGenerator(Transport transport) throws IOException {
+        this.transport = transport;
+        codec = Codecs.configured();
+        channelSampler = new ZipfSampler(CHANNELS, ZIPF_EXPONENT);
+        mixTable = parseMix(MIX);
+        runId = UUID.randomUUID().toString().substring(0, 8);
+
+        rpcLatency = new EnumMap<Command, LatencyHistogram>(Command.class);
+        rejected = new EnumMap<Command, AtomicLong>(Command.class);
+        for(Command command:Command.values()) {
+            rpcLatency.put(command, new LatencyHistogram());
+            rejected.put(command, new AtomicLong());
+        }
+        errors = new AtomicLong();
+        deliveryLatency = new LatencyHistogram();
+
+        connections = new AsyncRpcClient[CONNECTIONS];
+        replyTopics = new String[CONNECTIONS];
+        for(int i=0; i<CONNECTIONS; ++i) {
+            replyTopics[i] = ReplyTopics.topicFor(i);
+            Subscription responses = transport.subscribe(replyTopics[i], "loadgen-" + runId + "-" + i, false);
+            connections[i] = new AsyncRpcClient(transport, RPC_REQUEST_TOPIC_NAME, responses, MAX_IN_FLIGHT, RPC_TIMEOUT_MS);
+            try {
+                if(!connections[i].awaitReady(replyTopics[i], RPC_TIMEOUT_MS))
+                    throw new IOException("Not receiving from " + replyTopics[i]);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+        }
+
+        users = new VirtualUser[USERS];
+        for(int i=0; i<USERS; ++i)
+            users[i] = new VirtualUser("lg" + runId + "-" + i, i % CONNECTIONS);
+
+        observers = new ArrayList<Subscription>();
+    }
+
+    public static void main(String[] args) throws Exception {
+        PrintStream out = System.out;
+        Transport transport;
+        ChatServer server = null;
+        Thread serverThread = null;
+
+        if(TRANSPORT.equalsIgnoreCase("kafka")) {
+            transport = new KafkaTransport(BROKER_LIST, ZOOKEEPER_SERVER);
+        } else {
+            // Only the report goes to stdout unless a log level is asked for
+            if(System.getProperty("chat.log.level")==null) Log.setLevel(Log.Level.WARN);
+            transport = new InMemoryTransport();
+            server = new ChatServer(transport, transport);
+            final ChatServer runningServer = server;
+            serverThread = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        runningServer.start();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }, "chat-server");
+            serverThread.start();
+            // A partitioned server claims its partitions after a few heartbeats; requests sent before are lost
+            while (server.getActivePartitions()!=null && server.getActivePartitions().cardinality() < Partitioner.CONFIGURED_COUNT)
+                Thread.sleep(100);
+        }
+
+        LoadGenerator generator = new LoadGenerator(transport);
+        try {
+            generator.run(out);
+            if(server!=null) {
+                out.println();
+                out.println(server.getMetrics().dump());
+            }
+        } finally {
+            generator.close();
+            if(server!=null) {
+                server.shutdown();
+                serverThread.join();
+            }
+            transport.close();
+        }
+    }
+
+    public void run(PrintStream out) throws Exception {
+        out.println("# transport=" + TRANSPORT + " codec=" + codec.getName() + " users=" + USERS + " channels=" + CHANNELS
+                + " channelsPerUser=" + CHANNELS_PER_USER + " zipfExponent=" + ZIPF_EXPONENT + " mix=" + MIX
+                + " threads=" + THREADS + " rate=" + (TARGET_RATE > 0 ? TARGET_RATE + "/s" : "unbounded"));
+
+        startObservers();
+        setUp(out);
+        resetStatistics();
+
+        out.println("# running for " + DURATION_SEC + " s");
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(DURATION_SEC);
+        long startNanos = System.nanoTime();
+        Thread[] workers = new Thread[THREADS];
+        for(int t=0; t<THREADS; ++t) {
+            final int worker = t;
+            workers[t] = new Thread(new Runnable() {
+                public void run() {
+                    drive(worker, deadline);
+                }
+            }, "loadgen-worker-" + t);
+            workers[t].start();
+        }
+
+        long lastCount = 0;
+        long lastReport = System.nanoTime();
+        while (System.nanoTime() < deadline) {
+            Thread.sleep(Math.min(5000, Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()))));
+            long now = System.nanoTime();
+            long count = totalRpcCount();
+            out.printf("  %6.1f s  %10.0f rpc/s  %10.0f delivered/s%n",
+                    (now - startNanos) / 1e9, (count - lastCount) * 1e9 / (now - lastReport), deliveryLatency.getCount() * 1e9 / (now - startNanos));
+            lastCount = count;
+            lastReport = now;
+        }
+        for(Thread worker:workers)
+            worker.join();
+        waitForPendingResponses();
+
+        report(out, System.nanoTime() - startNanos);
+        tearDown();
+    }
+
+    /**
+     * Logs the users in and joins their channels, with one BATCH per user unless
+     * loadgen.batchSetUp is false.
+     */
+    private void setUp(PrintStream out) throws Exception {
+        out.println("# logging in " + USERS + " users" + (BATCH_SET_UP ? ", joining in batches" : ""));
+        long start = System.nanoTime();
+        Random random = new Random(7);
+        for(VirtualUser user:users) {
+            call(user, Command.NICK, null, null);
+            List<Request> joins = new ArrayList<Request>(CHANNELS_PER_USER);
+            for(int i=0; i<CHANNELS_PER_USER; ++i) {
+                String channelName = CHANNEL_PREFIX + channelSampler.sample(random);
+                if(!user.joinedChannels.add(channelName)) continue;
+                if(BATCH_SET_UP) {
+                    Request join = new Request();
+                    join.setCommand(Command.JOIN.name());
+                    join.setChannelName(channelName);
+                    joins.add(join);
+                } else
+                    call(user, Command.JOIN, channelName, null);
+            }
+            if(!joins.isEmpty()) {
+                Request batch = newRequest(user, Command.BATCH, null, null);
+                batch.setOperations(joins);
+                call(user, batch);
+            }
+        }
+        out.println("# set up in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+    }
+
+    private void tearDown() throws Exception {
+        for(VirtualUser user:users)
+            call(user, Command.LOGOUT, null, null);
+    }
+
+    private void drive(int worker, long deadline) {
+        Random random = new Random(worker);
+        long intervalNanos = TARGET_RATE > 0 ? TimeUnit.SECONDS.toNanos(THREADS) / TARGET_RATE : 0;
+        long nextSend = System.nanoTime();
+
+        while (System.nanoTime() < deadline) {
+            if(intervalNanos > 0) {
+                long wait = nextSend - System.nanoTime();
+                if(wait > 0) LockSupport.parkNanos(wait);
+                nextSend += intervalNanos;
+            }
+
+            // Each worker owns a disjoint slice of users so a user's commands are issued in order
+            int index = worker + THREADS * random.nextInt(Math.max(1, (USERS - worker + THREADS - 1) / THREADS));
+            if(index >= USERS) continue;
+
+            try {
+                issue(users[index], random);
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                errors.incrementAndGet();
+            }
+        }
+    }
+
+    private void issue(VirtualUser user, Random random) throws IOException, InterruptedException {
+        Command command = mixTable[random.nextInt(mixTable.length)];
+        if(user.joinedChannels.isEmpty() && (command==Command.SEND || command==Command.BROADCAST || command==Command.LEAVE))
+            command = Command.JOIN;
+
+        switch (command) {
+            case NICK:
+                // Re-login: the session is dropped and established again with fresh memberships
+                sendAsync(user, Command.LOGOUT, null, null);
+                user.joinedChannels.clear();
+                sendAsync(user, Command.NICK, null, null);
+                break;
+            case JOIN:
+                String channelName = CHANNEL_PREFIX + channelSampler.sample(random);
+                if(user.joinedChannels.add(channelName))
+                    sendAsync(user, Command.JOIN, channelName, null);
+                else
+                    sendAsync(user, Command.SEND, channelName, MESSAGE_PREFIX + System.nanoTime());
+                break;
+            case LEAVE:
+                String leaving = user.randomChannel(random);
+                user.joinedChannels.remove(leaving);
+                sendAsync(user, Command.LEAVE, leaving, null);
+                break;
+            case SEND:
+                sendAsync(user, Command.SEND, user.randomChannel(random), MESSAGE_PREFIX + System.nanoTime());
+                break;
+            case BROADCAST:
+                sendAsync(user, Command.BROADCAST, null, MESSAGE_PREFIX + System.nanoTime());
+                break;
+            default:
+                break;
+        }
+    }
+
+    private Request newRequest(VirtualUser user, Command command, String channelName, String message) {
+        Request request = new Request();
+        request.setCommand(command.name());
+        request.setNickname(user.nickname);
+        request.setChannelName(channelName);
+        request.setMessage(message);
+        request.setReplyTo(replyTopics[user.connection]);
+        return request;
+    }
+
+    private static String getRequestTopic(VirtualUser user) {
+        return Partitioner.requestTopicFor(RPC_REQUEST_TOPIC_NAME, user.nickname, Partitioner.CONFIGURED_COUNT);
+    }
+
+    private void sendAsync(VirtualUser user, final Command command, String channelName, String message) throws IOException, InterruptedException {
+        final long start = System.nanoTime();
+        connections[user.connection].sendAsync(getRequestTopic(user), user.nickname, codec.encodeRequest(newRequest(user, command, channelName, message))).addCallback(new RpcCallback() {
+            public void onComplete(byte[] responseBytes, Throwable error) {
+                rpcLatency.get(command).record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+                if(error!=null) {
+                    errors.incrementAndGet();
+                    return;
+                }
+                try {
+                    if(!Codecs.detect(responseBytes).decodeResponse(responseBytes).isStatus())
+                        rejected.get(command).incrementAndGet();
+                } catch (IOException e) {
+                    errors.incrementAndGet();
+                }
+            }
+        });
+    }
+
+    private Response call(VirtualUser user, Command command, String channelName, String message) throws Exception {
+        return call(user, newRequest(user, command, channelName, message));
+    }
+
+    private Response call(VirtualUser user, Request request) throws Exception {
+        byte[] responseBytes;
+        try {
+            responseBytes = connections[user.connection].call(getRequestTopic(user), user.nickname, codec.encodeRequest(request));
+        } catch (TimeoutException e) {
+            errors.incrementAndGet();
+            return null;
+        } catch (ExecutionException e) {
+            errors.incrementAndGet();
+            return null;
+        }
+        return Codecs.detect(responseBytes).decodeResponse(responseBytes);
+    }
+
+    /**
+     * Subscribes to the most popular channels and records how long each
+     * load generator message took from send to delivery. With inbox delivery
+     * the inboxes of as many users are observed instead.
+     */
+    private void startObservers() {
+        String group = "loadgen-observer-" + runId;
+        // The record keys to observe; several of them may map to one topic
+        final Set<String> observedChannels = new HashSet<String>();
+        Set<String> topics = new LinkedHashSet<String>();
+        if(InboxTopics.ENABLED) {
+            for(int i=0; i<Math.min(OBSERVED_CHANNELS, USERS); ++i) {
+                observedChannels.add(users[i].nickname);
+                topics.add(InboxTopics.topicFor(users[i].nickname));
+            }
+        } else {
+            for(int rank=0; rank<Math.min(OBSERVED_CHANNELS, CHANNELS); ++rank) {
+                observedChannels.add(CHANNEL_PREFIX + rank);
+                topics.add(ChannelTopics.topicFor(CHANNEL_PREFIX + rank));
+            }
+        }
+
+        int index = 0;
+        for(String topic:topics) {
+            final Subscription subscription = transport.subscribe(topic, group, false);
+            observers.add(subscription);
+            Thread observer = new Thread(new Runnable() {
+                public void run() {
+                    while (subscription.hasNext()) {
+                        Record record = subscription.next();
+                        if(!(InboxTopics.ENABLED ? InboxTopics.isFor(record, observedChannels) : ChannelTopics.isFor(record, observedChannels)))
+                            continue;
+                        byte[] payload = record.getPayload();
+                        try {
+                            Message message = Codecs.detect(payload).decodeMessage(payload);
+                            String text = message.getText();
+                            if(text!=null && text.startsWith(MESSAGE_PREFIX))
+                                deliveryLatency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - Long.parseLong(text.substring(MESSAGE_PREFIX.length()))));
+                        } catch (IOException e) {
+                            errors.incrementAndGet();
+                        } catch (NumberFormatException e) {
+                            errors.incrementAndGet();
+                        }
+                    }
+                }
+            }, "loadgen-observer-" + index++);
+            observer.setDaemon(true);
+            observer.start();
+        }
+    }
+
+    private void resetStatistics() {
+        for(Command command:Command.values()) {
+            rpcLatency.put(command, new LatencyHistogram());
+            rejected.get(command).set(0);
+        }
+        errors.set(0);
+    }
+
+    private long totalRpcCount() {
+        long total = 0;
+        for(LatencyHistogram histogram:rpcLatency.values())
+            total += histogram.getCount();
+        return total;
+    }
+
+    private void waitForPendingResponses() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + RPC_TIMEOUT_MS;
+        for(AsyncRpcClient connection:connections)
+            while (connection.getPendingCount() > 0 && System.currentTimeMillis() < deadline)
+                Thread.sleep(10);
+    }
+
+    private void report(PrintStream out, long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        out.println();
+        out.printf("%-10s %10s %10s %9s %10s %10s %10s %10s%n", "command", "count", "rate/s", "rejected", "p50(us)", "p99(us)", "p999(us)", "max(us)");
+        for(Command command:Command.values()) {
+            LatencyHistogram histogram = rpcLatency.get(command);
+            if(histogram.getCount()==0) continue;
+            printRow(out, command.name(), histogram, seconds, rejected.get(command).get());
+        }
+        printRow(out, "delivery", deliveryLatency, seconds, 0);
+        out.println("errors/timeouts: " + errors.get());
+    }
+
+    private static void printRow(PrintStream out, String name, LatencyHistogram histogram, double seconds, long rejectedCount) {
+        out.printf("%-10s %10d %10.0f %9d %10d %10d %10d %10d%n", name, histogram.getCount(), histogram.getCount() / seconds, rejectedCount,
+                histogram.getValueAtPercentile(50), histogram.getValueAtPercentile(99), histogram.getValueAtPercentile(99.9), histogram.getMax());
+    }
+
+    public void close() {
+        for(Subscription observer:observers)
+            observer.close();
+        for(AsyncRpcClient connection:connections)
+            connection.close();
+    }
+
+    private static Command[] parseMix(String mix) {
+        List<Command> table = new ArrayList<Command>();
+        for(String entry:mix.split(",")) {
+            String[] parts = entry.trim().split(":");
+            Command command = Command.fromName(parts[0].trim());
+            if(command==null || parts.length!=2)
+                throw new IllegalArgumentException("Invalid mix entry " + entry);
+            for(int i=0; i<Integer.parseInt(parts[1].trim()); ++i)
+                table.add(command);
+        }
+        if(table.isEmpty())
+            throw new IllegalArgumentException("Empty command mix");
+        return table.toArray(new Command[table.size()]);
+    }
+
+    private static class VirtualUser {
+        private final String nickname;
+        private final int connection;
+        // Only touched by the worker thread that owns the user
+        private final List<String> joinedChannelList = new ArrayList<String>();
+        private final Set<String> joinedChannels = new LinkedHashSet<String>() {
+            public boolean add(String channelName) {
+                if(!super.add(channelName)) return false;
+                joinedChannelList.add(channelName);
+                return true;
+            }
+
+            public boolean remove(Object channelName) {
+                joinedChannelList.remove(channelName);
+                return super.remove(channelName);
+            }
+
+            public void clear() {
+                joinedChannelList.clear();
+                super.clear();
+            }
+        };
+
+        VirtualUser(String nickname, int connection) {
+            this.nickname = nickname;
+            this.connection = connection;
+        }
+
+        String randomChannel(Random random) {
+            return joinedChannelList.get(random.nextInt(joinedChannelList.size()));
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.edmundophie.loadgen;
+
+import com.edmundophie.chat.MembershipIndex;
+import com.edmundophie.chat.SessionReaper;
+import com.edmundophie.chat.SessionRegistry;
+import com.edmundophie.chat.SessionStore;
+import com.edmundophie.chat.User;
+import com.edmundophie.store.SegmentedLog;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Reports what a million sessions cost. Several threads claim them, half with explicit and
+ * half with generated nicknames, and the claim rate and heap per session are printed. A
+ * SessionReaper driven by a simulated clock is timed over them, first on ticks without
+ * expiries, then expiring them all. Last, the sessions are joined to channels, written to a
+ * SessionStore snapshot and loaded back into an empty registry, and both are timed. The
+ * correctness of these classes is covered by the tests under src/test.
+ */
+public class SessionCheck {
+    private final static int SESSIONS = Integer.getInteger("sessioncheck.sessions", 1000000);
+    private final static int THREADS = Integer.getInteger("sessioncheck.threads", 4);
+    private final static long LEASE_MS = 1000;
+    private final static long TICK_MS = 10;
+    private final static int JOINS_PER_SESSION = 3;
+    private final static int CHANNELS = 10000;
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("# sessions=" + SESSIONS + " threads=" + THREADS);
+        measureClaims();
+        measureLeases();
+        measureSnapshot();
+    }
+
+    private static void measureClaims() throws Exception {
+        final SessionRegistry registry = new SessionRegistry(SessionRegistry.UNLIMITED);
+        final int perThread = SESSIONS / THREADS;
+        long heapBefore = usedHeap();
+        long start = System.nanoTime();
+        runThreads(new Worker() {
+            public void run(int thread) {
+                for(int i=0; i<perThread; ++i) {
+                    if(i % 2==0) registry.claim("member" + thread + "-" + i);
+                    else registry.claimGenerated(null);
+                }
+            }
+        });
+        long elapsed = System.nanoTime() - start;
+        long heapAfter = usedHeap();
+        int claims = registry.size();
+        System.out.println("# " + registry.describeCapacity() + "; " + claims + " claims in " + elapsed / 1000000 + " ms, "
+                + (long) (claims / (elapsed / 1e9)) + " claims/s, ~" + Math.max(0, heapAfter - heapBefore) / Math.max(1, claims) + " heap bytes/session");
+    }
+
+    private static void measureLeases() {
+        final SessionRegistry registry = new SessionRegistry(SessionRegistry.UNLIMITED);
+        long now = 1000000;
+        SessionReaper reaper = new SessionReaper(registry, TICK_MS, 512, new SessionReaper.ExpiryHandler() {
+            public void expired(User user) {
+                registry.remove(user);
+            }
+        }, now);
+        for(int i=0; i<SESSIONS; ++i) {
+            User user = registry.claim("lease" + i);
+            user.setLogoutTimestamp(now + LEASE_MS);
+            reaper.schedule(user);
+        }
+
+        long start = System.nanoTime();
+        reaper.advance(now + LEASE_MS - TICK_MS);
+        long idleTicksMicros = (System.nanoTime() - start) / 1000;
+        start = System.nanoTime();
+        int expired = reaper.advance(now + LEASE_MS + TICK_MS);
+        long expiryMicros = (System.nanoTime() - start) / 1000;
+        System.out.println("# " + (LEASE_MS / TICK_MS - 1) + " ticks without expiry over " + SESSIONS + " sessions in " + idleTicksMicros
+                + " us, " + expired + " expiries in " + expiryMicros + " us");
+    }
+
+    private static void measureSnapshot() throws IOException {
+        File directory = Files.createTempDirectory("sessioncheck").toFile();
+        try {
+            SessionRegistry registry = new SessionRegistry(SessionRegistry.UNLIMITED);
+            MembershipIndex membership = new MembershipIndex();
+            SessionStore store = new SessionStore(directory, 1 << 20, SegmentedLog.FsyncPolicy.NEVER);
+            store.start(registry, membership, Long.MAX_VALUE, 1000);
+            Random random = new Random(1);
+            for(int i=0; i<SESSIONS; ++i) {
+                User user = registry.claim("snapshot" + i);
+                for(int j=0; j<JOINS_PER_SESSION; ++j)
+                    membership.join(user, "channel" + random.nextInt(CHANNELS));
+            }
+            long start = System.nanoTime();
+            store.snapshot();
+            long writeMs = (System.nanoTime() - start) / 1000000;
+            store.close();
+            registry = null;
+            membership = null;
+            usedHeap();
+
+            SessionRegistry loadedRegistry = new SessionRegistry(SessionRegistry.UNLIMITED);
+            MembershipIndex loadedMembership = new MembershipIndex();
+            SessionStore loadedStore = new SessionStore(directory, 1 << 20, SegmentedLog.FsyncPolicy.NEVER);
+            start = System.nanoTime();
+            loadedStore.start(loadedRegistry, loadedMembership, Long.MAX_VALUE, 1000);
+            long loadMs = (System.nanoTime() - start) / 1000000;
+            loadedStore.close();
+            System.out.println("# snapshot of " + loadedRegistry.size() + " sessions in " + loadedMembership.getChannelCount() + " channels with "
+                    + (long) SESSIONS * JOINS_PER_SESSION + " joins written in " + writeMs + " ms, loaded in " + loadMs + " ms");
+        } finally {
+            delete(directory);
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if(children!=null) {
+            for(File child:children)
+                delete(child);
+        }
+        file.delete();
+    }
+
+    private interface Worker {
+        void run(int thread);
+    }
+
+    private static void runThreads(final Worker worker) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<Thread>();
+        for(int i=0; i<THREADS; ++i) {
+            final int index = i;
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    worker.run(index);
+                }
+            }, "sessioncheck-" + i);
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for(Thread thread:threads)
+            thread.join();
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
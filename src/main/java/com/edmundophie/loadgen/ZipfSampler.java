@@ -0,0 +1,29 @@
+package com.edmundophie.loadgen;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Samples ranks 0..n-1 where rank k has probability proportional to 1/(k+1)^exponent.
+ * An exponent of 0 gives a uniform distribution.
+ */
+public class ZipfSampler {
+    private final double[] cumulative;
+
+    public ZipfSampler(int n, double exponent) {
+        cumulative = new double[n];
+        double sum = 0;
+        for(int k=0; k<n; ++k) {
+            sum += 1.0 / Math.pow(k + 1, exponent);
+            cumulative[k] = sum;
+        }
+        for(int k=0; k<n; ++k)
+            cumulative[k] /= sum;
+    }
+
+    public int sample(Random random) {
+        int index = Arrays.binarySearch(cumulative, random.nextDouble());
+        if(index < 0) index = -index - 1;
+        return Math.min(index, cumulative.length - 1);
+    }
+}
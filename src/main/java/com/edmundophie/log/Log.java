@@ -0,0 +1,106 @@
+package com.edmundophie.log;
+
+import java.io.PrintStream;
+
+/**
+ * Minimal level-gated logging for the server. The level comes from chat.log.level
+ * (ERROR, WARN, INFO or DEBUG, default INFO) and can be changed at runtime. INFO and DEBUG
+ * lines go to stdout, WARN and ERROR lines to stderr.
+ * <p>
+ * The debug methods take a line in up to five parts instead of a concatenated string, so
+ * a disabled call builds nothing and an enabled one writes the parts straight to the
+ * stream. Hot paths should log at DEBUG only.
+ */
+public final class Log {
+    public enum Level {
+        ERROR, WARN, INFO, DEBUG
+    }
+
+    private static volatile Level level = parseLevel(System.getProperty("chat.log.level", "INFO"));
+
+    private Log() {
+    }
+
+    public static Level getLevel() {
+        return level;
+    }
+
+    public static void setLevel(Level newLevel) {
+        level = newLevel;
+    }
+
+    public static boolean isEnabled(Level lineLevel) {
+        return lineLevel.ordinal() <= level.ordinal();
+    }
+
+    public static boolean isDebugEnabled() {
+        return isEnabled(Level.DEBUG);
+    }
+
+    public static void debug(String line) {
+        if(isDebugEnabled()) write(System.out, line, null, null, null, null);
+    }
+
+    public static void debug(String first, String second) {
+        if(isDebugEnabled()) write(System.out, first, second, null, null, null);
+    }
+
+    public static void debug(String first, String second, String third) {
+        if(isDebugEnabled()) write(System.out, first, second, third, null, null);
+    }
+
+    public static void debug(String first, String second, String third, String fourth) {
+        if(isDebugEnabled()) write(System.out, first, second, third, fourth, null);
+    }
+
+    public static void debug(String first, String second, String third, String fourth, String fifth) {
+        if(isDebugEnabled()) write(System.out, first, second, third, fourth, fifth);
+    }
+
+    public static void info(String line) {
+        if(isEnabled(Level.INFO)) write(System.out, line, null, null, null, null);
+    }
+
+    public static void warn(String line) {
+        if(isEnabled(Level.WARN)) write(System.err, line, null, null, null, null);
+    }
+
+    public static void warn(String line, Throwable error) {
+        if(!isEnabled(Level.WARN)) return;
+        PrintStream stream = System.err;
+        synchronized (stream) {
+            write(stream, line, null, null, null, null);
+            error.printStackTrace(stream);
+        }
+    }
+
+    public static void error(String line, Throwable error) {
+        if(!isEnabled(Level.ERROR)) return;
+        PrintStream stream = System.err;
+        synchronized (stream) {
+            write(stream, line, null, null, null, null);
+            error.printStackTrace(stream);
+        }
+    }
+
+    private static void write(PrintStream stream, String first, String second, String third, String fourth, String fifth) {
+        // Locked so the parts of concurrent lines don't interleave
+        synchronized (stream) {
+            stream.print(first);
+            if(second!=null) stream.print(second);
+            if(third!=null) stream.print(third);
+            if(fourth!=null) stream.print(fourth);
+            if(fifth!=null) stream.print(fifth);
+            stream.println();
+        }
+    }
+
+    private static Level parseLevel(String name) {
+        try {
+            return Level.valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("- Unknown log level " + name + ", using INFO");
+            return Level.INFO;
+        }
+    }
+}
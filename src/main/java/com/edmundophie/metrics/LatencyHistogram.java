@@ -0,0 +1,72 @@
+package com.edmundophie.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free log-linear histogram in the style of HdrHistogram. Values are bucketed by
+ * power of two and then linearly into SUB_BUCKETS slots, which bounds the relative
+ * error of a reported percentile to 1/SUB_BUCKETS.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAGNITUDES = 64 - SUB_BUCKET_BITS;
+
+    private final AtomicLongArray counts = new AtomicLongArray((MAGNITUDES + 1) * SUB_BUCKETS);
+
+    public void record(long value) {
+        if(value < 0) value = 0;
+        counts.incrementAndGet(indexOf(value));
+    }
+
+    private static int indexOf(long value) {
+        if(value < SUB_BUCKETS) return (int) value;
+        int magnitude = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> magnitude) - SUB_BUCKETS;
+        return (magnitude + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * Highest value that maps to the bucket, so percentiles never under-report.
+     */
+    private static long highestValueAt(int index) {
+        if(index < SUB_BUCKETS) return index;
+        int magnitude = index / SUB_BUCKETS - 1;
+        long subBucket = index % SUB_BUCKETS + SUB_BUCKETS;
+        return ((subBucket + 1) << magnitude) - 1;
+    }
+
+    public long getCount() {
+        long total = 0;
+        for(int i=0; i<counts.length(); ++i)
+            total += counts.get(i);
+        return total;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     */
+    public long getValueAtPercentile(double percentile) {
+        long[] snapshot = new long[counts.length()];
+        long total = 0;
+        for(int i=0; i<snapshot.length; ++i) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if(total==0) return 0;
+
+        long target = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+        long seen = 0;
+        for(int i=0; i<snapshot.length; ++i) {
+            seen += snapshot[i];
+            if(seen >= target) return highestValueAt(i);
+        }
+        return highestValueAt(snapshot.length - 1);
+    }
+
+    public long getMax() {
+        for(int i=counts.length()-1; i>=0; --i)
+            if(counts.get(i) > 0) return highestValueAt(i);
+        return 0;
+    }
+}
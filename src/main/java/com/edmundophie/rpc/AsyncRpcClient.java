@@ -0,0 +1,193 @@
+package com.edmundophie.rpc;
+
+import com.edmundophie.transport.Record;
+import com.edmundophie.transport.Subscription;
+import com.edmundophie.transport.Transport;
+
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.*;
+
+/**
+ * Pipelined RPC over a Transport. Every request gets a correlation id and an RpcFuture
+ * in the pending table; a single reader thread routes responses to their future
+ * by correlation id. At most maxInFlight requests may be outstanding at once.
+ */
+public class AsyncRpcClient {
+    private static final long PROBE_INTERVAL_MS = 200;
+
+    private final Transport transport;
+    private final String requestTopic;
+    private final Subscription responseSubscription;
+    private final long timeoutMs;
+    private final Semaphore inFlight;
+    private final ConcurrentMap<String, RpcFuture> pendingRequests;
+    private final ScheduledThreadPoolExecutor timeoutScheduler;
+    private final Thread responseReader;
+
+    public AsyncRpcClient(Transport transport, String requestTopic,
+                          Subscription responseSubscription,
+                          int maxInFlight, long timeoutMs) {
+        this.transport = transport;
+        this.requestTopic = requestTopic;
+        this.responseSubscription = responseSubscription;
+        this.timeoutMs = timeoutMs;
+        inFlight = new Semaphore(maxInFlight);
+        pendingRequests = new ConcurrentHashMap<String, RpcFuture>();
+
+        timeoutScheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "rpc-timeout");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        timeoutScheduler.setRemoveOnCancelPolicy(true);
+
+        responseReader = new Thread(new Runnable() {
+            public void run() {
+                readResponses();
+            }
+        }, "rpc-response-reader");
+        responseReader.setDaemon(true);
+        responseReader.start();
+    }
+
+    /**
+     * Sends a request without waiting for its response. Blocks only while
+     * the in-flight window is full.
+     */
+    public RpcFuture sendAsync(byte[] message) throws InterruptedException {
+        return sendAsync(requestTopic, message);
+    }
+
+    public RpcFuture sendAsync(String topic, byte[] message) throws InterruptedException {
+        return sendAsync(topic, null, message);
+    }
+
+    /**
+     * Sends a request to the given topic instead of the client's request topic, e.g. the one
+     * of the partition the request belongs to. Requests with the same partition key are
+     * consumed in the order they were sent.
+     */
+    public RpcFuture sendAsync(String topic, String partitionKey, byte[] message) throws InterruptedException {
+        inFlight.acquire();
+
+        final String corrId = UUID.randomUUID().toString();
+        final RpcFuture future = new RpcFuture(corrId);
+        try {
+            pendingRequests.put(corrId, future);
+
+            final ScheduledFuture<?> timeout = timeoutScheduler.schedule(new Runnable() {
+                public void run() {
+                    future.fail(new TimeoutException("No response for RPC " + corrId + " after " + timeoutMs + " ms"));
+                }
+            }, timeoutMs, TimeUnit.MILLISECONDS);
+
+            future.addCallback(new RpcCallback() {
+                public void onComplete(byte[] response, Throwable error) {
+                    pendingRequests.remove(corrId);
+                    timeout.cancel(false);
+                    inFlight.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            // e.g. the timeout was rejected after close(); nothing will release the slot
+            pendingRequests.remove(corrId);
+            inFlight.release();
+            future.fail(e);
+            return future;
+        }
+
+        try {
+            transport.send(new Record(topic, corrId, partitionKey, message));
+        } catch (IOException e) {
+            future.fail(e);
+        } catch (RuntimeException e) {
+            future.fail(e);
+        }
+
+        return future;
+    }
+
+    /**
+     * Sends a request and waits for its response.
+     */
+    public byte[] call(byte[] message) throws InterruptedException, ExecutionException, TimeoutException {
+        return call(requestTopic, message);
+    }
+
+    public byte[] call(String topic, byte[] message) throws InterruptedException, ExecutionException, TimeoutException {
+        return call(topic, null, message);
+    }
+
+    public byte[] call(String topic, String partitionKey, byte[] message) throws InterruptedException, ExecutionException, TimeoutException {
+        try {
+            return sendAsync(topic, partitionKey, message).get();
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof TimeoutException)
+                throw (TimeoutException) e.getCause();
+            throw e;
+        }
+    }
+
+    /**
+     * Waits until the response subscription reads what is sent to replyTopic, by sending it
+     * probes keyed like responses. A subscription that starts at the end of a shared topic
+     * would otherwise miss the responses sent before it was positioned.
+     *
+     * @return false if no probe came back within timeoutMs
+     */
+    public boolean awaitReady(String replyTopic, long timeoutMs) throws InterruptedException {
+        String corrId = UUID.randomUUID().toString();
+        RpcFuture probe = new RpcFuture(corrId);
+        pendingRequests.put(corrId, probe);
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        try {
+            while (true) {
+                try {
+                    transport.send(new Record(replyTopic, corrId, new byte[0]));
+                } catch (IOException e) {
+                    return false;
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if(remaining <= 0) return false;
+                try {
+                    probe.get(Math.min(remaining, PROBE_INTERVAL_MS), TimeUnit.MILLISECONDS);
+                    return true;
+                } catch (TimeoutException e) {
+                    // Not positioned yet; probe again
+                } catch (ExecutionException e) {
+                    return false;
+                }
+            }
+        } finally {
+            pendingRequests.remove(corrId);
+        }
+    }
+
+    public int getPendingCount() {
+        return pendingRequests.size();
+    }
+
+    private void readResponses() {
+        while (responseSubscription.hasNext()) {
+            Record response = responseSubscription.next();
+            if(response.getKey()==null) continue;
+
+            RpcFuture future = pendingRequests.get(response.getKey());
+            if(future!=null)
+                future.complete(response.getPayload());
+        }
+    }
+
+    /**
+     * Stops reading responses and fails every pending request.
+     */
+    public void close() {
+        responseSubscription.close();
+        timeoutScheduler.shutdownNow();
+        for(RpcFuture future:pendingRequests.values())
+            future.fail(new CancellationException("RPC client closed"));
+    }
+}
@@ -0,0 +1,35 @@
+package com.edmundophie.rpc;
+
+/**
+ * RPC commands understood by the server. The code is the command byte of the binary wire format.
+ */
+public enum Command {
+    NICK(1), JOIN(2), LEAVE(3), LOGOUT(4), EXIT(5), SEND(6), BROADCAST(7), HISTORY(8), BATCH(9), HEARTBEAT(10), PRESENCE(11);
+
+    private static final Command[] BY_CODE = new Command[12];
+    static {
+        for(Command command:values())
+            BY_CODE[command.code] = command;
+    }
+
+    private final byte code;
+
+    Command(int code) {
+        this.code = (byte) code;
+    }
+
+    public byte getCode() {
+        return code;
+    }
+
+    public static Command fromCode(byte code) {
+        return code > 0 && code < BY_CODE.length ? BY_CODE[code] : null;
+    }
+
+    public static Command fromName(String name) {
+        if(name==null) return null;
+        for(Command command:values())
+            if(command.name().equalsIgnoreCase(name)) return command;
+        return null;
+    }
+}
@@ -1,7 +1,9 @@
 package com.edmundophie.rpc;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.util.List;
 
 /**
  * Created by edmundophie on 10/9/15.
@@ -11,6 +13,10 @@ public class Request {
     private String nickname;
     private String channelName;
     private String message;
+    private String replyTo;
+    private Integer limit;
+    private Long since;
+    private List<Request> operations;
 
     public Request() {
 
@@ -48,10 +54,49 @@ public class Request {
         this.message = message;
     }
 
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public String getReplyTo() {
+        return replyTo;
+    }
+
+    public void setReplyTo(String replyTo) {
+        this.replyTo = replyTo;
+    }
+
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public Integer getLimit() {
+        return limit;
+    }
+
+    public void setLimit(Integer limit) {
+        this.limit = limit;
+    }
+
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public Long getSince() {
+        return since;
+    }
+
+    public void setSince(Long since) {
+        this.since = since;
+    }
+
+    /**
+     * The operations of a BATCH, applied in order for the batch's nickname.
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public List<Request> getOperations() {
+        return operations;
+    }
+
+    public void setOperations(List<Request> operations) {
+        this.operations = operations;
+    }
+
     public String toString() {
         String json = null;
         try{
-            json = new ObjectMapper().writeValueAsString(this);
+            json = RpcSerialization.toJson(this);
         } catch (JsonProcessingException e) {
             e.printStackTrace();
         }
@@ -1,7 +1,12 @@
 package com.edmundophie.rpc;
 
+import com.edmundophie.chat.Message;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.util.List;
+import java.util.Map;
 
 /**
  * Created by edmundophie on 10/9/15.
@@ -10,6 +15,10 @@ public class Response {
     private String status;
     private String message;
     private String nickname;
+    private List<Message> messages;
+    private Long retryAfterMs;
+    private List<Response> responses;
+    private Map<String, String> presence;
 
     public Response () {
 
@@ -63,10 +72,60 @@ public class Response {
         this.nickname = nickname;
     }
 
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public List<Message> getMessages() {
+        return messages;
+    }
+
+    public void setMessages(List<Message> messages) {
+        this.messages = messages;
+    }
+
+    /**
+     * Set when the request was throttled: the time after which it may be sent again.
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public Long getRetryAfterMs() {
+        return retryAfterMs;
+    }
+
+    public void setRetryAfterMs(Long retryAfterMs) {
+        this.retryAfterMs = retryAfterMs;
+    }
+
+    @JsonIgnore
+    public boolean isThrottled() {
+        return retryAfterMs!=null;
+    }
+
+    /**
+     * The responses to the operations of a BATCH, in the order of the operations.
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public List<Response> getResponses() {
+        return responses;
+    }
+
+    public void setResponses(List<Response> responses) {
+        this.responses = responses;
+    }
+
+    /**
+     * The answer to PRESENCE: the state, online or idle, of channel members by nickname.
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public Map<String, String> getPresence() {
+        return presence;
+    }
+
+    public void setPresence(Map<String, String> presence) {
+        this.presence = presence;
+    }
+
     public String toString() {
         String json = null;
         try{
-            json = new ObjectMapper().writeValueAsString(this);
+            json = RpcSerialization.toJson(this);
         } catch (JsonProcessingException e) {
             e.printStackTrace();
         }
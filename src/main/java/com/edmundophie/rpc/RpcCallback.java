@@ -0,0 +1,8 @@
+package com.edmundophie.rpc;
+
+/**
+ * Notified once an RpcFuture completes. Exactly one of response and error is non-null.
+ */
+public interface RpcCallback {
+    void onComplete(byte[] response, Throwable error);
+}
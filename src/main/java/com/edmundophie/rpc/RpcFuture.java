@@ -0,0 +1,97 @@
+package com.edmundophie.rpc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Pending result of a single RPC, completed by the response reader
+ * when a response with the same correlation id arrives.
+ */
+public class RpcFuture implements Future<byte[]> {
+    private final String corrId;
+    private final CountDownLatch done = new CountDownLatch(1);
+    private final AtomicBoolean completed = new AtomicBoolean(false);
+    private final List<RpcCallback> callbacks = new ArrayList<RpcCallback>();
+    private volatile byte[] response;
+    private volatile Throwable error;
+    private volatile boolean cancelled;
+
+    public RpcFuture(String corrId) {
+        this.corrId = corrId;
+    }
+
+    public String getCorrId() {
+        return corrId;
+    }
+
+    boolean complete(byte[] response) {
+        if(!completed.compareAndSet(false, true)) return false;
+        this.response = response;
+        done.countDown();
+        fireCallbacks();
+        return true;
+    }
+
+    boolean fail(Throwable error) {
+        if(!completed.compareAndSet(false, true)) return false;
+        this.error = error;
+        done.countDown();
+        fireCallbacks();
+        return true;
+    }
+
+    public void addCallback(RpcCallback callback) {
+        synchronized (callbacks) {
+            if(done.getCount() > 0) {
+                callbacks.add(callback);
+                return;
+            }
+        }
+        callback.onComplete(response, error);
+    }
+
+    private void fireCallbacks() {
+        List<RpcCallback> toFire;
+        synchronized (callbacks) {
+            toFire = new ArrayList<RpcCallback>(callbacks);
+            callbacks.clear();
+        }
+        for(RpcCallback callback:toFire)
+            callback.onComplete(response, error);
+    }
+
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if(fail(new CancellationException("RPC " + corrId + " cancelled"))) {
+            cancelled = true;
+            return true;
+        }
+        return false;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public boolean isDone() {
+        return done.getCount()==0;
+    }
+
+    public byte[] get() throws InterruptedException, ExecutionException {
+        done.await();
+        return report();
+    }
+
+    public byte[] get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if(!done.await(timeout, unit))
+            throw new TimeoutException("No response for RPC " + corrId);
+        return report();
+    }
+
+    private byte[] report() throws ExecutionException {
+        if(error instanceof CancellationException) throw (CancellationException) error;
+        if(error!=null) throw new ExecutionException(error);
+        return response;
+    }
+}
@@ -0,0 +1,112 @@
+package com.edmundophie.rpc;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.JsonDeserializer;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * JSON serialization of RPC bodies through pre-built, thread-safe readers and writers,
+ * so the serializer caches are built once instead of per message. Bytes are always UTF-8.
+ * The operations of a batch and their responses are read by a second mapper that refuses
+ * to nest them further, so a deeply nested batch can't exhaust the stack.
+ */
+public final class RpcSerialization {
+    private static final ObjectMapper MAPPER = new ObjectMapper()
+            .addMixIn(Request.class, BatchRequest.class).addMixIn(Response.class, BatchResponse.class);
+    private static final ObjectMapper NESTED_MAPPER = new ObjectMapper()
+            .addMixIn(Request.class, NestedRequest.class).addMixIn(Response.class, NestedResponse.class);
+    private static final ObjectReader OPERATION_READER = NESTED_MAPPER.readerFor(Request.class);
+    private static final ObjectReader OPERATION_RESPONSE_READER = NESTED_MAPPER.readerFor(Response.class);
+    private static final ObjectReader REQUEST_READER = MAPPER.readerFor(Request.class);
+    private static final ObjectReader RESPONSE_READER = MAPPER.readerFor(Response.class);
+    private static final ObjectWriter REQUEST_WRITER = MAPPER.writerFor(Request.class);
+    private static final ObjectWriter RESPONSE_WRITER = MAPPER.writerFor(Response.class);
+
+    private RpcSerialization() {
+    }
+
+    public static byte[] writeRequest(Request request) throws JsonProcessingException {
+        return REQUEST_WRITER.writeValueAsBytes(request);
+    }
+
+    public static Request readRequest(byte[] bytes) throws IOException {
+        return REQUEST_READER.readValue(bytes);
+    }
+
+    public static Request readRequest(ByteBuffer buffer) throws IOException {
+        if(buffer.hasArray())
+            return REQUEST_READER.readValue(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        return REQUEST_READER.readValue(new ByteBufferBackedInputStream(buffer.duplicate()));
+    }
+
+    public static byte[] writeResponse(Response response) throws JsonProcessingException {
+        return RESPONSE_WRITER.writeValueAsBytes(response);
+    }
+
+    public static Response readResponse(byte[] bytes) throws IOException {
+        return RESPONSE_READER.readValue(bytes);
+    }
+
+    public static Response readResponse(ByteBuffer buffer) throws IOException {
+        if(buffer.hasArray())
+            return RESPONSE_READER.readValue(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        return RESPONSE_READER.readValue(new ByteBufferBackedInputStream(buffer.duplicate()));
+    }
+
+    private abstract static class BatchRequest {
+        @JsonDeserialize(contentUsing = OperationDeserializer.class)
+        public abstract void setOperations(List<Request> operations);
+    }
+
+    private abstract static class BatchResponse {
+        @JsonDeserialize(contentUsing = OperationResponseDeserializer.class)
+        public abstract void setResponses(List<Response> responses);
+    }
+
+    private abstract static class NestedRequest {
+        @JsonDeserialize(using = NestingRejecter.class)
+        public abstract void setOperations(List<Request> operations);
+    }
+
+    private abstract static class NestedResponse {
+        @JsonDeserialize(using = NestingRejecter.class)
+        public abstract void setResponses(List<Response> responses);
+    }
+
+    private static class OperationDeserializer extends JsonDeserializer<Request> {
+        public Request deserialize(JsonParser parser, DeserializationContext context) throws IOException {
+            return OPERATION_READER.readValue(parser);
+        }
+    }
+
+    private static class OperationResponseDeserializer extends JsonDeserializer<Response> {
+        public Response deserialize(JsonParser parser, DeserializationContext context) throws IOException {
+            return OPERATION_RESPONSE_READER.readValue(parser);
+        }
+    }
+
+    private static class NestingRejecter extends JsonDeserializer<Object> {
+        public Object deserialize(JsonParser parser, DeserializationContext context) throws IOException {
+            throw new JsonMappingException("A batch operation can't nest another batch", parser.getCurrentLocation());
+        }
+    }
+
+    static String toJson(Request request) throws JsonProcessingException {
+        return REQUEST_WRITER.writeValueAsString(request);
+    }
+
+    static String toJson(Response response) throws JsonProcessingException {
+        return RESPONSE_WRITER.writeValueAsString(response);
+    }
+}
@@ -0,0 +1,333 @@
+package com.edmundophie.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * One file of a SegmentedLog, named after the offset of its first record.
+ * <pre>
+ * record : length(4) crc32(4) timestamp(8) payload(length)
+ * index  : (relativeOffset(4) position(4) timestamp(8))*
+ * </pre>
+ * The crc covers the timestamp and the payload. The active segment is mapped at its full
+ * size and written in place; the length is written last, so a record whose length is set
+ * but whose crc doesn't match was torn and ends the log. A sealed segment is truncated to
+ * its content and gets an index file holding a sparse entry every INDEX_INTERVAL_BYTES
+ * plus its last record, which is never rewritten.
+ */
+class LogSegment {
+    static final int HEADER_SIZE = 16;
+    static final int INDEX_INTERVAL_BYTES = 4096;
+    private static final int INDEX_ENTRY_SIZE = 16;
+
+    private final File logFile;
+    private final File indexFile;
+    private final long baseOffset;
+
+    private MappedByteBuffer writeBuffer;
+    private volatile MappedByteBuffer readBuffer;
+    private int position;
+    private int recordCount;
+    private long lastTimestamp;
+    private int lastIndexedPosition = -INDEX_INTERVAL_BYTES;
+
+    // Sparse index, guarded by the owning log
+    private int[] indexOffsets = new int[16];
+    private int[] indexPositions = new int[16];
+    private long[] indexTimestamps = new long[16];
+    private int indexSize;
+
+    private LogSegment(File directory, long baseOffset) {
+        this.baseOffset = baseOffset;
+        String name = String.format("%020d", baseOffset);
+        logFile = new File(directory, name + ".log");
+        indexFile = new File(directory, name + ".idx");
+    }
+
+    static LogSegment create(File directory, long baseOffset, int capacity) throws IOException {
+        LogSegment segment = new LogSegment(directory, baseOffset);
+        segment.mapForWriting(capacity);
+        return segment;
+    }
+
+    /**
+     * Opens an existing segment. A sealed segment with an index is trusted as is;
+     * otherwise the file is scanned and cut at the first torn or missing record.
+     */
+    static LogSegment open(File directory, long baseOffset, boolean active, int capacity) throws IOException {
+        LogSegment segment = new LogSegment(directory, baseOffset);
+        if(!active && segment.indexFile.exists())
+            segment.loadIndex();
+        else
+            segment.recover();
+
+        if(active)
+            segment.mapForWriting(Math.max(capacity, segment.position));
+        else if(!segment.indexFile.exists())
+            segment.seal();
+        return segment;
+    }
+
+    private void mapForWriting(int capacity) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(logFile, "rw");
+        try {
+            file.setLength(capacity);
+            writeBuffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            readBuffer = writeBuffer;
+        } finally {
+            file.close();
+        }
+    }
+
+    private void recover() throws IOException {
+        RandomAccessFile file = new RandomAccessFile(logFile, "rw");
+        try {
+            long length = file.length();
+            ByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+            CRC32 crc = new CRC32();
+            int offset = 0;
+            while (offset + HEADER_SIZE <= length) {
+                int payloadLength = buffer.getInt(offset);
+                if(payloadLength <= 0 || offset + HEADER_SIZE + (long) payloadLength > length) break;
+                if(checksum(crc, buffer, offset, payloadLength)!=buffer.getInt(offset + 4)) break;
+                addRecord(offset, buffer.getLong(offset + 8), HEADER_SIZE + payloadLength);
+                offset += HEADER_SIZE + payloadLength;
+            }
+            if(offset < length) {
+                // Zero the tail, as the active segment is reused in place
+                file.setLength(offset);
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    private void loadIndex() throws IOException {
+        RandomAccessFile file = new RandomAccessFile(indexFile, "r");
+        try {
+            ByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            while (buffer.remaining() >= INDEX_ENTRY_SIZE)
+                addIndexEntry(buffer.getInt(), buffer.getInt(), buffer.getLong());
+            position = (int) logFile.length();
+            if(indexSize > 0) {
+                recordCount = indexOffsets[indexSize - 1] + 1;
+                lastTimestamp = indexTimestamps[indexSize - 1];
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    private static int checksum(CRC32 crc, ByteBuffer buffer, int offset, int payloadLength) {
+        ByteBuffer view = buffer.duplicate();
+        view.limit(offset + HEADER_SIZE + payloadLength);
+        view.position(offset + 8);
+        crc.reset();
+        crc.update(view);
+        return (int) crc.getValue();
+    }
+
+    boolean hasRoomFor(int payloadLength) {
+        return position + HEADER_SIZE + payloadLength <= writeBuffer.capacity();
+    }
+
+    /**
+     * Writes a record at the end of the segment. The caller checked hasRoomFor.
+     */
+    void append(long timestamp, byte[] payload, CRC32 crc) {
+        writeBuffer.position(position + 8);
+        writeBuffer.putLong(timestamp);
+        writeBuffer.put(payload);
+        writeBuffer.putInt(position + 4, checksum(crc, writeBuffer, position, payload.length));
+        writeBuffer.putInt(position, payload.length);
+
+        addRecord(position, timestamp, HEADER_SIZE + payload.length);
+    }
+
+    private void addRecord(int recordPosition, long timestamp, int size) {
+        if(recordPosition - lastIndexedPosition >= INDEX_INTERVAL_BYTES) {
+            addIndexEntry(recordCount, recordPosition, timestamp);
+            lastIndexedPosition = recordPosition;
+        }
+        position = recordPosition + size;
+        lastTimestamp = timestamp;
+        ++recordCount;
+    }
+
+    private void addIndexEntry(int relativeOffset, int recordPosition, long timestamp) {
+        if(indexSize==indexOffsets.length) {
+            indexOffsets = Arrays.copyOf(indexOffsets, indexSize * 2);
+            indexPositions = Arrays.copyOf(indexPositions, indexSize * 2);
+            indexTimestamps = Arrays.copyOf(indexTimestamps, indexSize * 2);
+        }
+        indexOffsets[indexSize] = relativeOffset;
+        indexPositions[indexSize] = recordPosition;
+        indexTimestamps[indexSize] = timestamp;
+        ++indexSize;
+    }
+
+    void force() {
+        if(writeBuffer!=null)
+            writeBuffer.force();
+    }
+
+    /**
+     * Flushes the segment, cuts the file to its content and writes the index.
+     */
+    void seal() throws IOException {
+        force();
+        writeBuffer = null;
+
+        RandomAccessFile file = new RandomAccessFile(logFile, "rw");
+        try {
+            file.setLength(position);
+            readBuffer = position==0 ? null : file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, position);
+        } finally {
+            file.close();
+        }
+
+        // The last record closes the index so its offset and timestamp are known on reopen
+        int lastPosition = lastRecordPosition();
+        boolean lastIndexed = indexSize > 0 && indexPositions[indexSize - 1]==lastPosition;
+        ByteBuffer index = ByteBuffer.allocate((indexSize + 1) * INDEX_ENTRY_SIZE);
+        for(int i=0; i<indexSize; ++i)
+            index.putInt(indexOffsets[i]).putInt(indexPositions[i]).putLong(indexTimestamps[i]);
+        if(recordCount > 0 && !lastIndexed)
+            index.putInt(recordCount - 1).putInt(lastPosition).putLong(lastTimestamp);
+        index.flip();
+
+        File temporary = new File(indexFile.getPath() + ".tmp");
+        RandomAccessFile out = new RandomAccessFile(temporary, "rw");
+        try {
+            out.setLength(0);
+            out.getChannel().write(index);
+            out.getChannel().force(true);
+        } finally {
+            out.close();
+        }
+        if(!temporary.renameTo(indexFile))
+            throw new IOException("Failed to write " + indexFile);
+    }
+
+    private int lastRecordPosition() {
+        if(recordCount==0) return 0;
+        ByteBuffer buffer = readBuffer!=null ? readBuffer : writeBuffer;
+        int recordPosition = indexSize > 0 ? indexPositions[indexSize - 1] : 0;
+        while (true) {
+            int next = recordPosition + HEADER_SIZE + buffer.getInt(recordPosition);
+            if(next >= position) return recordPosition;
+            recordPosition = next;
+        }
+    }
+
+    /**
+     * Returns the relative offset and position of the indexed record at or before the
+     * given relative offset, to start a scan from. Called under the owning log's lock.
+     */
+    int[] locate(int relativeOffset) {
+        int entry = floorIndexByOffset(relativeOffset);
+        return entry < 0 ? new int[]{0, 0} : new int[]{indexOffsets[entry], indexPositions[entry]};
+    }
+
+    /**
+     * Visits records starting at a located record, skipping those before fromRelativeOffset,
+     * up to endPosition. Only committed bytes are read, so no lock is needed.
+     * Returns the number of records visited, at most maxRecords.
+     */
+    int scan(int[] start, int fromRelativeOffset, int endPosition, int maxRecords, RecordVisitor visitor) throws IOException {
+        ByteBuffer buffer = buffer();
+        if(buffer==null) return 0;
+
+        int relativeOffset = start[0];
+        int recordPosition = start[1];
+        int visited = 0;
+
+        while (recordPosition < endPosition && visited < maxRecords) {
+            int payloadLength = buffer.getInt(recordPosition);
+            if(relativeOffset >= fromRelativeOffset) {
+                ByteBuffer payload = buffer.duplicate();
+                payload.limit(recordPosition + HEADER_SIZE + payloadLength);
+                payload.position(recordPosition + HEADER_SIZE);
+                visitor.visit(baseOffset + relativeOffset, buffer.getLong(recordPosition + 8), payload.slice().asReadOnlyBuffer());
+                ++visited;
+            }
+            recordPosition += HEADER_SIZE + payloadLength;
+            ++relativeOffset;
+        }
+        return visited;
+    }
+
+    /**
+     * Returns the relative offset of an indexed record at or before the first record newer than timestamp.
+     */
+    int findRelativeOffset(long timestamp) {
+        int found = 0;
+        for(int i=0; i<indexSize; ++i) {
+            if(indexTimestamps[i] > timestamp) break;
+            found = indexOffsets[i];
+        }
+        return found;
+    }
+
+    private int floorIndexByOffset(int relativeOffset) {
+        int low = 0;
+        int high = indexSize - 1;
+        int found = -1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if(indexOffsets[middle] <= relativeOffset) {
+                found = middle;
+                low = middle + 1;
+            } else
+                high = middle - 1;
+        }
+        return found;
+    }
+
+    private ByteBuffer buffer() throws IOException {
+        MappedByteBuffer buffer = readBuffer;
+        if(buffer==null && position > 0) {
+            RandomAccessFile file = new RandomAccessFile(logFile, "r");
+            try {
+                buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, position);
+                readBuffer = buffer;
+            } finally {
+                file.close();
+            }
+        }
+        return buffer;
+    }
+
+    boolean delete() {
+        writeBuffer = null;
+        readBuffer = null;
+        indexFile.delete();
+        return logFile.delete();
+    }
+
+    long getBaseOffset() {
+        return baseOffset;
+    }
+
+    int getPosition() {
+        return position;
+    }
+
+    int getRecordCount() {
+        return recordCount;
+    }
+
+    long getLastTimestamp() {
+        return lastTimestamp;
+    }
+
+    long getSize() {
+        return position;
+    }
+}
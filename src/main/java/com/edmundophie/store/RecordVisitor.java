@@ -0,0 +1,11 @@
+package com.edmundophie.store;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receives records scanned from a SegmentedLog. The payload is a read-only view into the
+ * mapped segment rather than a copy; the mapping stays readable while the view is referenced.
+ */
+public interface RecordVisitor {
+    void visit(long offset, long timestamp, ByteBuffer payload);
+}
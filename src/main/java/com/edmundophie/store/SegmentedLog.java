@@ -0,0 +1,227 @@
+package com.edmundophie.store;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of timestamped byte records in a directory of memory-mapped segment
+ * files. Records get consecutive offsets from 0. Appends and segment changes are
+ * serialized on the log; reads take a snapshot of the committed end under the lock
+ * and then scan the mapped files without it.
+ * Recovery on open cuts the last segment at the first torn record.
+ */
+public class SegmentedLog {
+    public enum FsyncPolicy {
+        /** Force every append to disk before it returns */
+        ALWAYS,
+        /** Leave forcing to a periodic {@link #flush()} */
+        INTERVAL,
+        /** Leave writeback to the OS; segments are still forced when sealed */
+        NEVER
+    }
+
+    private static final String LOG_SUFFIX = ".log";
+
+    private final File directory;
+    private final int segmentBytes;
+    private final FsyncPolicy fsyncPolicy;
+    private final long retentionBytes;
+    private final long retentionMs;
+
+    private final List<LogSegment> segments = new ArrayList<LogSegment>();
+    private final CRC32 crc = new CRC32();
+    private boolean dirty;
+    private boolean closed;
+
+    /**
+     * Opens the log in the given directory, creating it if needed. A negative
+     * retention disables retention by size or by time.
+     */
+    public SegmentedLog(File directory, int segmentBytes, FsyncPolicy fsyncPolicy, long retentionBytes, long retentionMs) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.fsyncPolicy = fsyncPolicy;
+        this.retentionBytes = retentionBytes;
+        this.retentionMs = retentionMs;
+
+        if(!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Failed to create log directory " + directory);
+
+        List<Long> baseOffsets = new ArrayList<Long>();
+        File[] files = directory.listFiles();
+        if(files!=null) {
+            for(File file:files) {
+                String name = file.getName();
+                if(name.endsWith(".tmp"))
+                    file.delete();
+                else if(name.endsWith(LOG_SUFFIX))
+                    baseOffsets.add(Long.parseLong(name.substring(0, name.length() - LOG_SUFFIX.length())));
+            }
+        }
+        Collections.sort(baseOffsets);
+
+        for(int i=0; i<baseOffsets.size(); ++i)
+            segments.add(LogSegment.open(directory, baseOffsets.get(i), i==baseOffsets.size() - 1, segmentBytes));
+        if(segments.isEmpty())
+            segments.add(LogSegment.create(directory, 0, segmentBytes));
+    }
+
+    /**
+     * Appends a record and returns its offset.
+     */
+    public synchronized long append(long timestamp, byte[] payload) throws IOException {
+        if(closed) throw new IOException("Log is closed");
+
+        LogSegment active = activeSegment();
+        if(!active.hasRoomFor(payload.length)) {
+            roll(Math.max(segmentBytes, LogSegment.HEADER_SIZE + payload.length));
+            active = activeSegment();
+        }
+
+        long offset = active.getBaseOffset() + active.getRecordCount();
+        active.append(timestamp, payload, crc);
+        if(fsyncPolicy==FsyncPolicy.ALWAYS)
+            active.force();
+        else
+            dirty = true;
+        return offset;
+    }
+
+    private void roll(int capacity) throws IOException {
+        LogSegment active = activeSegment();
+        long nextOffset = active.getBaseOffset() + active.getRecordCount();
+        if(active.getRecordCount()==0) {
+            segments.remove(segments.size() - 1);
+            active.delete();
+        } else
+            active.seal();
+        segments.add(LogSegment.create(directory, nextOffset, capacity));
+        applyRetention(System.currentTimeMillis());
+    }
+
+    /**
+     * Visits up to maxRecords records starting at the given offset, or at the oldest
+     * retained record if that offset was already deleted.
+     */
+    public void read(long fromOffset, int maxRecords, RecordVisitor visitor) throws IOException {
+        LogSegment[] snapshot;
+        int activeEnd;
+        int first;
+        int[] start;
+        synchronized (this) {
+            snapshot = segments.toArray(new LogSegment[segments.size()]);
+            activeEnd = activeSegment().getPosition();
+            first = snapshot.length - 1;
+            while (first > 0 && snapshot[first].getBaseOffset() > fromOffset)
+                --first;
+            fromOffset = Math.max(fromOffset, snapshot[first].getBaseOffset());
+            start = snapshot[first].locate((int) (fromOffset - snapshot[first].getBaseOffset()));
+        }
+
+        int visited = 0;
+        for(int i=first; i<snapshot.length && visited < maxRecords; ++i) {
+            LogSegment segment = snapshot[i];
+            int end = i==snapshot.length - 1 ? activeEnd : segment.getPosition();
+            try {
+                if(i==first)
+                    visited += segment.scan(start, (int) (fromOffset - segment.getBaseOffset()), end, maxRecords - visited, visitor);
+                else
+                    visited += segment.scan(new int[]{0, 0}, 0, end, maxRecords - visited, visitor);
+            } catch (FileNotFoundException e) {
+                // Deleted by retention after the snapshot; continue with the newer segments
+            }
+        }
+    }
+
+    /**
+     * Returns an offset at or before the first record newer than the given timestamp.
+     * Timestamps are only roughly ordered, so callers still filter what they read.
+     */
+    public synchronized long findOffset(long timestamp) {
+        for(LogSegment segment:segments)
+            if(segment.getLastTimestamp() > timestamp)
+                return segment.getBaseOffset() + segment.findRelativeOffset(timestamp);
+        return getNextOffset();
+    }
+
+    public synchronized long getStartOffset() {
+        return segments.get(0).getBaseOffset();
+    }
+
+    public synchronized long getNextOffset() {
+        LogSegment active = activeSegment();
+        return active.getBaseOffset() + active.getRecordCount();
+    }
+
+    public synchronized long getSize() {
+        long size = 0;
+        for(LogSegment segment:segments)
+            size += segment.getSize();
+        return size;
+    }
+
+    /**
+     * Forces appended records to disk. The msync runs outside the lock so appends continue.
+     */
+    public void flush() {
+        LogSegment active;
+        synchronized (this) {
+            if(!dirty || closed) return;
+            dirty = false;
+            active = activeSegment();
+        }
+        active.force();
+    }
+
+    /**
+     * Deletes the oldest sealed segments while the log exceeds the size retention or
+     * their newest record is older than the time retention. The active segment is kept.
+     */
+    public synchronized void applyRetention(long now) {
+        if(closed) return;
+        long size = getSize();
+        while (segments.size() > 1) {
+            LogSegment oldest = segments.get(0);
+            boolean oversized = retentionBytes >= 0 && size > retentionBytes;
+            boolean expired = retentionMs >= 0 && oldest.getLastTimestamp() < now - retentionMs;
+            if(!oversized && !expired) break;
+            segments.remove(0);
+            size -= oldest.getSize();
+            oldest.delete();
+        }
+    }
+
+    /**
+     * Deletes the sealed segments that only hold records before the given offset,
+     * e.g. once a snapshot covers them.
+     */
+    public synchronized void deleteBefore(long offset) {
+        if(closed) return;
+        while (segments.size() > 1 && segments.get(1).getBaseOffset() <= offset) {
+            segments.remove(0).delete();
+        }
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Forces the active segment and refuses further appends. Retention and deletion stop
+     * too, so the directory can be reopened by a new instance right after.
+     */
+    public synchronized void close() {
+        if(closed) return;
+        closed = true;
+        activeSegment().force();
+    }
+
+    private LogSegment activeSegment() {
+        return segments.get(segments.size() - 1);
+    }
+}
@@ -0,0 +1,346 @@
+package com.edmundophie.transport;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * In-process broker for running a server and many clients in one JVM without Kafka.
+ * Each consumer group of a topic has lock-free queues, one per stream of the subscription
+ * that created the group, and records are spread over them by partition key. Members of
+ * a group compete for the records of their queue and waiting members are parked until a
+ * record arrives. Records are not retained: a topic without subscribed groups drops what
+ * is sent to it, so fromBeginning has no effect, and commits are no-ops.
+ */
+public class InMemoryTransport implements Transport {
+    private final ConcurrentMap<String, Topic> topics = new ConcurrentHashMap<String, Topic>();
+
+    public void send(Record record) {
+        Topic topic = topics.get(record.getTopic());
+        if(topic!=null)
+            topic.publish(record);
+    }
+
+    public void send(List<Record> records) {
+        for(Record record:records)
+            send(record);
+    }
+
+    public Subscription subscribe(String topicName, String groupId, boolean fromBeginning) {
+        return topic(topicName).join(groupId, 1, 0, null);
+    }
+
+    public MultiStreamSubscription subscribe(String topicName, String groupId, boolean fromBeginning, int streamCount) {
+        Topic topic = topic(topicName);
+        final List<Subscription> streams = new ArrayList<Subscription>(streamCount);
+        for(int i=0; i<streamCount; ++i)
+            streams.add(topic.join(groupId, streamCount, i, null));
+
+        return new MultiStreamSubscription() {
+            public List<Subscription> getStreams() {
+                return Collections.unmodifiableList(streams);
+            }
+
+            public void commit() {
+            }
+
+            public boolean isCommitDurable() {
+                return false;
+            }
+
+            public void close() {
+                for(Subscription stream:streams)
+                    stream.close();
+            }
+        };
+    }
+
+    public MultiTopicSubscription subscribeTopics(String groupId, boolean fromBeginning) {
+        return new MemoryMultiTopicSubscription(groupId);
+    }
+
+    private Topic topic(String topicName) {
+        Topic topic = topics.get(topicName);
+        if(topic==null) {
+            Topic created = new Topic();
+            topic = topics.putIfAbsent(topicName, created);
+            if(topic==null) topic = created;
+        }
+        return topic;
+    }
+
+    public void close() {
+        for(Topic topic:topics.values())
+            topic.closeAll();
+        topics.clear();
+    }
+
+    private static class Topic {
+        private final ConcurrentMap<String, Group> groups = new ConcurrentHashMap<String, Group>();
+
+        void publish(Record record) {
+            for(Group group:groups.values())
+                group.offer(record);
+        }
+
+        MemorySubscription join(String groupId, int queueCount, int queueIndex, MemoryMultiTopicSubscription owner) {
+            while (true) {
+                Group group = groups.get(groupId);
+                if(group==null) {
+                    Group created = new Group(queueCount);
+                    group = groups.putIfAbsent(groupId, created);
+                    if(group==null) group = created;
+                }
+                MemorySubscription subscription = group.join(this, groupId, queueIndex, owner);
+                if(subscription!=null) return subscription;
+                // The group was emptied and retired concurrently; retry with a fresh one
+                groups.remove(groupId, group);
+            }
+        }
+
+        void leave(String groupId, Group group) {
+            if(group.isRetired())
+                groups.remove(groupId, group);
+        }
+
+        void closeAll() {
+            for(Group group:groups.values())
+                group.closeAll();
+            groups.clear();
+        }
+    }
+
+    private static class Group {
+        private static final int RETIRED = -1;
+
+        private final Queue<Record>[] queues;
+        private final Queue<MemorySubscription> members = new ConcurrentLinkedQueue<MemorySubscription>();
+        private final AtomicInteger memberCount = new AtomicInteger();
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Group(int queueCount) {
+            queues = new Queue[queueCount];
+            for(int i=0; i<queueCount; ++i)
+                queues[i] = new ConcurrentLinkedQueue<Record>();
+        }
+
+        MemorySubscription join(Topic topic, String groupId, int queueIndex, MemoryMultiTopicSubscription owner) {
+            int count;
+            do {
+                count = memberCount.get();
+                if(count==RETIRED) return null;
+            } while(!memberCount.compareAndSet(count, count + 1));
+
+            MemorySubscription subscription = new MemorySubscription(topic, groupId, this, queueIndex % queues.length, owner);
+            members.add(subscription);
+            return subscription;
+        }
+
+        void leave(MemorySubscription subscription) {
+            members.remove(subscription);
+            // The last member retires the group so its records stop piling up
+            int count;
+            do {
+                count = memberCount.get();
+            } while(!memberCount.compareAndSet(count, count==1 ? RETIRED : count - 1));
+        }
+
+        boolean isRetired() {
+            return memberCount.get()==RETIRED;
+        }
+
+        void offer(Record record) {
+            if(isRetired()) return;
+            String partitionKey = record.getPartitionKey();
+            int queue = queues.length==1 ? 0 : partitionKey==null ? ThreadLocalRandom.current().nextInt(queues.length)
+                    : (partitionKey.hashCode() & 0x7fffffff) % queues.length;
+            queues[queue].offer(record);
+            for(MemorySubscription member:members) {
+                if(member.queueIndex==queue)
+                    member.wake();
+            }
+        }
+
+        Record poll(int queueIndex) {
+            return queues[queueIndex].poll();
+        }
+
+        void closeAll() {
+            for(MemorySubscription member:members)
+                member.close();
+        }
+    }
+
+    private static class MemorySubscription implements Subscription {
+        private final Topic topic;
+        private final String groupId;
+        private final Group group;
+        private final int queueIndex;
+        // Set when the subscription is a topic of a MemoryMultiTopicSubscription, which is woken instead
+        private final MemoryMultiTopicSubscription owner;
+        private final AtomicBoolean ready = new AtomicBoolean(false);
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+        private volatile Thread waiter;
+        private Record claimed;
+
+        MemorySubscription(Topic topic, String groupId, Group group, int queueIndex, MemoryMultiTopicSubscription owner) {
+            this.topic = topic;
+            this.groupId = groupId;
+            this.group = group;
+            this.queueIndex = queueIndex;
+            this.owner = owner;
+        }
+
+        public boolean hasNext() {
+            if(claimed!=null) return true;
+            while (!closed.get()) {
+                claimed = group.poll(queueIndex);
+                if(claimed!=null) return true;
+
+                waiter = Thread.currentThread();
+                // Re-check after publishing the waiter so a concurrent offer can't be missed
+                claimed = group.poll(queueIndex);
+                if(claimed!=null || closed.get()) {
+                    waiter = null;
+                    return claimed!=null;
+                }
+                LockSupport.park(this);
+                waiter = null;
+            }
+            return false;
+        }
+
+        public Record next() {
+            if(!hasNext())
+                throw new IllegalStateException("Subscription is closed");
+            Record record = claimed;
+            claimed = null;
+            return record;
+        }
+
+        Record poll() {
+            return closed.get() ? null : group.poll(queueIndex);
+        }
+
+        void wake() {
+            if(owner!=null) {
+                owner.signal(this);
+                return;
+            }
+            Thread thread = waiter;
+            if(thread!=null)
+                LockSupport.unpark(thread);
+        }
+
+        public void close() {
+            if(!closed.compareAndSet(false, true)) return;
+            wake();
+            group.leave(this);
+            topic.leave(groupId, group);
+        }
+    }
+
+    /**
+     * Joins the consumer group on each topic like a plain subscription, but a topic with
+     * records queues itself on the ready list and wakes the single reader, which then polls
+     * only the ready topics, round robin. Idle topics cost nothing.
+     */
+    private class MemoryMultiTopicSubscription implements MultiTopicSubscription {
+        private final String groupId;
+        private final ConcurrentMap<String, MemorySubscription> members = new ConcurrentHashMap<String, MemorySubscription>();
+        private final Queue<MemorySubscription> readyMembers = new ConcurrentLinkedQueue<MemorySubscription>();
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+        private volatile Thread waiter;
+        private Record claimed;
+
+        MemoryMultiTopicSubscription(String groupId) {
+            this.groupId = groupId;
+        }
+
+        public synchronized void addTopic(String topicName) {
+            if(closed.get() || members.containsKey(topicName)) return;
+            MemorySubscription member = topic(topicName).join(groupId, 1, 0, this);
+            members.put(topicName, member);
+            // The group may already hold records
+            signal(member);
+        }
+
+        public synchronized void removeTopic(String topicName) {
+            MemorySubscription member = members.remove(topicName);
+            if(member!=null) member.close();
+        }
+
+        public Set<String> getTopics() {
+            return Collections.unmodifiableSet(members.keySet());
+        }
+
+        void signal(MemorySubscription member) {
+            if(member.ready.compareAndSet(false, true))
+                readyMembers.offer(member);
+            Thread thread = waiter;
+            if(thread!=null)
+                LockSupport.unpark(thread);
+        }
+
+        public boolean hasNext() {
+            if(claimed!=null) return true;
+            while (!closed.get()) {
+                if(pollReady()) return true;
+
+                waiter = Thread.currentThread();
+                // Re-check after publishing the waiter so a concurrent signal can't be missed
+                if(pollReady() || closed.get()) {
+                    waiter = null;
+                    return claimed!=null;
+                }
+                LockSupport.park(this);
+                waiter = null;
+            }
+            return false;
+        }
+
+        private boolean pollReady() {
+            MemorySubscription member;
+            while ((member = readyMembers.poll())!=null) {
+                // Cleared before polling, so a record offered from here on queues the member again
+                member.ready.set(false);
+                Record record = member.poll();
+                if(record!=null) {
+                    claimed = record;
+                    // It may hold more; go to the back so busy topics don't starve the others
+                    if(member.ready.compareAndSet(false, true))
+                        readyMembers.offer(member);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public Record next() {
+            if(!hasNext())
+                throw new IllegalStateException("Subscription is closed");
+            Record record = claimed;
+            claimed = null;
+            return record;
+        }
+
+        public synchronized void close() {
+            if(!closed.compareAndSet(false, true)) return;
+            for(MemorySubscription member:members.values())
+                member.close();
+            members.clear();
+            Thread thread = waiter;
+            if(thread!=null)
+                LockSupport.unpark(thread);
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package com.edmundophie.transport;
+
+import kafka.common.FailedToSendMessageException;
+import kafka.consumer.Consumer;
+import kafka.consumer.ConsumerConfig;
+import kafka.consumer.ConsumerIterator;
+import kafka.consumer.KafkaStream;
+import kafka.consumer.Whitelist;
+import kafka.javaapi.consumer.ConsumerConnector;
+import kafka.javaapi.producer.Producer;
+import kafka.message.MessageAndMetadata;
+import kafka.producer.KeyedMessage;
+import kafka.producer.ProducerConfig;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Kafka 0.8 transport. Sends go through one producer; in sync mode a failed send is
+ * reported as an IOException, in async mode records from many calls are batched by
+ * the producer (linger/batch size) and delivery failures are only logged by Kafka.
+ * Every subscription owns a high-level ConsumerConnector.
+ */
+public class KafkaTransport implements Transport {
+    public enum Durability {
+        NONE("0"), LEADER("1"), ALL("-1");
+
+        private final String requiredAcks;
+
+        Durability(String requiredAcks) {
+            this.requiredAcks = requiredAcks;
+        }
+
+        public String getRequiredAcks() {
+            return requiredAcks;
+        }
+    }
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final String zookeeperServer;
+    private final Producer<String, byte[]> producer;
+
+    public KafkaTransport(String brokerList, String zookeeperServer) {
+        this(brokerList, zookeeperServer, Durability.LEADER, false, 200, 5);
+    }
+
+    public KafkaTransport(String brokerList, String zookeeperServer, Durability durability, boolean async, int batchSize, int lingerMs) {
+        this.zookeeperServer = zookeeperServer;
+
+        Properties props = new Properties();
+        props.put("metadata.broker.list", brokerList);
+        props.put("request.required.acks", durability.getRequiredAcks());
+        props.put("producer.type", async ? "async" : "sync");
+        props.put("serializer.class", "kafka.serializer.DefaultEncoder");
+        props.put("key.serializer.class", "kafka.serializer.StringEncoder");
+        props.put("retry.backoff.ms", "500");
+        props.put("batch.num.messages", String.valueOf(batchSize));
+        props.put("queue.buffering.max.ms", String.valueOf(lingerMs));
+
+        producer = new Producer<String, byte[]>(new ProducerConfig(props));
+    }
+
+    public void send(Record record) throws IOException {
+        try {
+            producer.send(toKeyedMessage(record));
+        } catch (FailedToSendMessageException e) {
+            throw new IOException("Failed to deliver a message to " + record.getTopic(), e);
+        }
+    }
+
+    public void send(List<Record> records) throws IOException {
+        List<KeyedMessage<String, byte[]>> batch = new ArrayList<KeyedMessage<String, byte[]>>(records.size());
+        for(Record record:records)
+            batch.add(toKeyedMessage(record));
+
+        try {
+            producer.send(batch);
+        } catch (FailedToSendMessageException e) {
+            throw new IOException("Failed to deliver " + batch.size() + " message(s)", e);
+        }
+    }
+
+    private static KeyedMessage<String, byte[]> toKeyedMessage(Record record) {
+        if(record.getKey()==null && record.getPartitionKey()==null)
+            return new KeyedMessage<String, byte[]>(record.getTopic(), record.getPayload());
+        // The default partitioner hashes the partition key, so equal keys share a partition
+        return new KeyedMessage<String, byte[]>(record.getTopic(), record.getKey(), record.getPartitionKey(), record.getPayload());
+    }
+
+    public Subscription subscribe(String topic, String groupId, boolean fromBeginning) {
+        ConsumerConnector connector = Consumer.createJavaConsumerConnector(consumerConfig(groupId, fromBeginning, true));
+        return new KafkaSubscription(connector, createStreams(connector, topic, 1).get(0).iterator());
+    }
+
+    public MultiStreamSubscription subscribe(String topic, String groupId, boolean fromBeginning, int streamCount) {
+        ConsumerConnector connector = Consumer.createJavaConsumerConnector(consumerConfig(groupId, fromBeginning, false));
+        List<Subscription> streams = new ArrayList<Subscription>(streamCount);
+        for(KafkaStream<byte[], byte[]> stream:createStreams(connector, topic, streamCount))
+            streams.add(new KafkaSubscription(connector, stream.iterator()));
+        return new KafkaMultiStreamSubscription(connector, streams);
+    }
+
+    public MultiTopicSubscription subscribeTopics(String groupId, boolean fromBeginning) {
+        return new KafkaMultiTopicSubscription(consumerConfig(groupId, fromBeginning, true));
+    }
+
+    private ConsumerConfig consumerConfig(String groupId, boolean fromBeginning, boolean autoCommit) {
+        Properties props = new Properties();
+        props.put("zookeeper.connect", zookeeperServer);
+        props.put("group.id", groupId);
+        props.put("zookeeper.session.timeout.ms", "400");
+        props.put("zookeeper.sync.time.ms", "200");
+        props.put("auto.commit.enable", String.valueOf(autoCommit));
+        props.put("auto.commit.interval.ms", "1000");
+        props.put("auto.offset.reset", fromBeginning ? "smallest" : "largest");
+        return new ConsumerConfig(props);
+    }
+
+    private static List<KafkaStream<byte[], byte[]>> createStreams(ConsumerConnector connector, String topic, int streamCount) {
+        Map<String, Integer> topicCountMap = new HashMap<String, Integer>();
+        topicCountMap.put(topic, streamCount);
+
+        Map<String, List<KafkaStream<byte[], byte[]>>> consumerMap = connector.createMessageStreams(topicCountMap);
+        return consumerMap.get(topic);
+    }
+
+    public void close() {
+        producer.close();
+    }
+
+    private static class KafkaSubscription implements Subscription {
+        private final ConsumerConnector connector;
+        private final ConsumerIterator<byte[], byte[]> iterator;
+
+        KafkaSubscription(ConsumerConnector connector, ConsumerIterator<byte[], byte[]> iterator) {
+            this.connector = connector;
+            this.iterator = iterator;
+        }
+
+        public boolean hasNext() {
+            return iterator.hasNext();
+        }
+
+        public Record next() {
+            MessageAndMetadata<byte[], byte[]> message = iterator.next();
+            String key = message.key()==null ? null : new String(message.key(), UTF_8);
+            return new Record(message.topic(), key, message.message());
+        }
+
+        public synchronized void close() {
+            connector.shutdown();
+        }
+    }
+
+    /**
+     * The streams share one connector: closing any of them closes all. A commit stores the
+     * offset after the last record each stream's iterator returned from next().
+     */
+    private static class KafkaMultiStreamSubscription implements MultiStreamSubscription {
+        private final ConsumerConnector connector;
+        private final List<Subscription> streams;
+
+        KafkaMultiStreamSubscription(ConsumerConnector connector, List<Subscription> streams) {
+            this.connector = connector;
+            this.streams = Collections.unmodifiableList(streams);
+        }
+
+        public List<Subscription> getStreams() {
+            return streams;
+        }
+
+        public void commit() {
+            connector.commitOffsets(true);
+        }
+
+        public boolean isCommitDurable() {
+            return true;
+        }
+
+        public synchronized void close() {
+            connector.shutdown();
+        }
+    }
+
+    /**
+     * One connector reading one stream over a whitelist of the subscribed topics. A 0.8
+     * connector can't change its filter, so adding or removing a topic replaces the connector;
+     * the old one commits what was read on shutdown and the new one resumes from there.
+     * The reader moves to the new connector's stream when the old one ends.
+     */
+    private class KafkaMultiTopicSubscription implements MultiTopicSubscription {
+        private final ConsumerConfig config;
+        private final Set<String> topics = new LinkedHashSet<String>();
+        private ConsumerConnector connector;
+        private ConsumerIterator<byte[], byte[]> iterator;
+        private ConsumerIterator<byte[], byte[]> current;
+        private boolean closed;
+
+        KafkaMultiTopicSubscription(ConsumerConfig config) {
+            this.config = config;
+        }
+
+        public synchronized void addTopic(String topic) {
+            if(!closed && topics.add(topic))
+                reconnect();
+        }
+
+        public synchronized void removeTopic(String topic) {
+            if(!closed && topics.remove(topic))
+                reconnect();
+        }
+
+        public synchronized Set<String> getTopics() {
+            return Collections.unmodifiableSet(new LinkedHashSet<String>(topics));
+        }
+
+        private void reconnect() {
+            ConsumerConnector previous = connector;
+            connector = null;
+            iterator = null;
+            // Shut down first so the two connectors don't rebalance the group against each other
+            if(previous!=null)
+                previous.shutdown();
+            if(!closed && !topics.isEmpty()) {
+                StringBuilder whitelist = new StringBuilder();
+                for(String topic:topics) {
+                    if(whitelist.length() > 0) whitelist.append('|');
+                    // Quoted so a topic name never matches other topics
+                    whitelist.append(Pattern.quote(topic));
+                }
+                connector = Consumer.createJavaConsumerConnector(config);
+                iterator = connector.createMessageStreamsByFilter(new Whitelist(whitelist.toString()), 1).get(0).iterator();
+            }
+            notifyAll();
+        }
+
+        public boolean hasNext() {
+            while (true) {
+                ConsumerIterator<byte[], byte[]> stream;
+                synchronized (this) {
+                    while (!closed && iterator==null) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            return false;
+                        }
+                    }
+                    if(closed) return false;
+                    stream = iterator;
+                }
+                try {
+                    if(stream.hasNext()) {
+                        current = stream;
+                        return true;
+                    }
+                } catch (RuntimeException e) {
+                    // The connector was replaced while the stream was being read
+                }
+                synchronized (this) {
+                    // Ended without a replacement yet; wait for reconnect() to finish
+                    while (!closed && iterator==stream) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            return false;
+                        }
+                    }
+                }
+            }
+        }
+
+        public Record next() {
+            if(!hasNext())
+                throw new IllegalStateException("Subscription is closed");
+            MessageAndMetadata<byte[], byte[]> message = current.next();
+            String key = message.key()==null ? null : new String(message.key(), UTF_8);
+            return new Record(message.topic(), key, message.message());
+        }
+
+        public synchronized void close() {
+            if(closed) return;
+            closed = true;
+            reconnect();
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package com.edmundophie.transport;
+
+import java.util.List;
+
+/**
+ * Several streams of one topic for one consumer group member, each meant for its own thread.
+ * Records with the same partition key always come out of the same stream, in order.
+ * Nothing is acknowledged until commit(), so a group that restarts resumes after the last
+ * commit instead of after whatever had been read.
+ */
+public interface MultiStreamSubscription {
+    List<Subscription> getStreams();
+
+    /**
+     * Acknowledges every record returned by next() on any of the streams so far.
+     */
+    void commit();
+
+    /**
+     * Whether commit() stores anything. When it doesn't, callers can skip the work of
+     * preparing a commit.
+     */
+    boolean isCommitDurable();
+
+    /**
+     * Closes every stream without committing.
+     */
+    void close();
+}
@@ -0,0 +1,22 @@
+package com.edmundophie.transport;
+
+import java.util.Set;
+
+/**
+ * One subscription over a set of topics that can change while a single thread reads it,
+ * so a consumer of many topics needs neither a connection nor a thread per topic.
+ * Records of all topics come out of hasNext()/next() in arrival order per topic.
+ */
+public interface MultiTopicSubscription extends Subscription {
+    /**
+     * Starts reading the topic. Does nothing if it is already subscribed.
+     */
+    void addTopic(String topic);
+
+    /**
+     * Stops reading the topic. Does nothing if it is not subscribed.
+     */
+    void removeTopic(String topic);
+
+    Set<String> getTopics();
+}
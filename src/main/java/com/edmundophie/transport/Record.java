@@ -0,0 +1,43 @@
+package com.edmundophie.transport;
+
+/**
+ * A keyed payload on a topic. The key may be null. The partition key picks the topic
+ * partition, and so the consumer stream, the record goes to; it defaults to the key.
+ */
+public class Record {
+    private final String topic;
+    private final String key;
+    private final String partitionKey;
+    private final byte[] payload;
+
+    public Record(String topic, String key, String partitionKey, byte[] payload) {
+        this.topic = topic;
+        this.key = key;
+        this.partitionKey = partitionKey;
+        this.payload = payload;
+    }
+
+    public Record(String topic, String key, byte[] payload) {
+        this(topic, key, null, payload);
+    }
+
+    public Record(String topic, byte[] payload) {
+        this(topic, null, payload);
+    }
+
+    public String getTopic() {
+        return topic;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public String getPartitionKey() {
+        return partitionKey!=null ? partitionKey : key;
+    }
+
+    public byte[] getPayload() {
+        return payload;
+    }
+}
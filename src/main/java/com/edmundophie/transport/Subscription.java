@@ -0,0 +1,16 @@
+package com.edmundophie.transport;
+
+/**
+ * A blocking stream of records for one consumer group member.
+ * hasNext() parks until a record arrives and returns false once the subscription is closed.
+ */
+public interface Subscription {
+    boolean hasNext();
+
+    Record next();
+
+    /**
+     * Releases a thread blocked in hasNext(). Safe to call more than once and from any thread.
+     */
+    void close();
+}
@@ -0,0 +1,36 @@
+package com.edmundophie.transport;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Publish/subscribe transport used by the chat server and client.
+ * Subscribers in the same group share a topic's records; every group receives all of them.
+ */
+public interface Transport {
+    void send(Record record) throws IOException;
+
+    /**
+     * Sends the records as one batch where the transport supports it.
+     */
+    void send(List<Record> records) throws IOException;
+
+    /**
+     * @param fromBeginning read records already on the topic when the group is new,
+     *                      instead of only records published after subscribing
+     */
+    Subscription subscribe(String topic, String groupId, boolean fromBeginning);
+
+    /**
+     * Subscribes with streamCount streams that split the topic's partitions between them.
+     * Offsets are only committed by {@link MultiStreamSubscription#commit()}.
+     */
+    MultiStreamSubscription subscribe(String topic, String groupId, boolean fromBeginning, int streamCount);
+
+    /**
+     * Subscribes to no topic yet; topics are added and removed on the returned subscription.
+     */
+    MultiTopicSubscription subscribeTopics(String groupId, boolean fromBeginning);
+
+    void close();
+}
@@ -0,0 +1,239 @@
+package com.edmundophie.chat;
+
+import com.edmundophie.cluster.ClusterCoordinator;
+import com.edmundophie.cluster.Partitioner;
+import com.edmundophie.codec.Codec;
+import com.edmundophie.codec.Codecs;
+import com.edmundophie.rpc.AsyncRpcClient;
+import com.edmundophie.rpc.Command;
+import com.edmundophie.rpc.Request;
+import com.edmundophie.rpc.Response;
+import com.edmundophie.transport.InMemoryTransport;
+import com.edmundophie.transport.Record;
+import com.edmundophie.transport.Subscription;
+import com.edmundophie.transport.Transport;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs several ChatServer instances on one InMemoryTransport and checks that sessions
+ * survive instances joining, leaving gracefully and dying. Users log in and join channels,
+ * then after every membership change each user's session is probed by joining a channel
+ * it is already a member of. The build runs it with chat.server.heartbeatMs=200.
+ */
+public class ChatServerClusterTest {
+    private final static String RPC_REQUEST_TOPIC_NAME = "rpcRequestTopic";
+    private final static int PARTITIONS = 16;
+    private final static int USERS = 300;
+    private final static String PROBE_CHANNEL = "lobby";
+
+    private final long heartbeatMs = Long.getLong("chat.server.heartbeatMs", 1000L);
+    private final Codec codec = Codecs.configured();
+    private final Map<String, ChatServer> servers = new TreeMap<String, ChatServer>();
+    private final Map<String, Thread> serverThreads = new HashMap<String, Thread>();
+    private Transport transport;
+    private AsyncRpcClient rpcClient;
+    private String replyTopic;
+
+    @Before
+    public void setUp() {
+        transport = new InMemoryTransport();
+        replyTopic = "rpcResponseTopic-clustertest-" + UUID.randomUUID();
+        Subscription responses = transport.subscribe(replyTopic, replyTopic, true);
+        rpcClient = new AsyncRpcClient(transport, RPC_REQUEST_TOPIC_NAME, responses, 256, 10000);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        rpcClient.close();
+        for(ChatServer server:servers.values())
+            server.shutdown();
+        for(Thread thread:serverThreads.values())
+            thread.join(TimeUnit.SECONDS.toMillis(30));
+        transport.close();
+    }
+
+    @Test
+    public void sessionsSurviveInstancesJoiningLeavingAndDying() throws Exception {
+        startServer("server-a");
+        startServer("server-b");
+        startServer("server-c");
+        awaitAssignment();
+
+        List<String> nicknames = new ArrayList<String>();
+        int joined = 0;
+        for(int i=0; i<USERS; ++i) {
+            String nickname = "member" + i;
+            Response response = call(Command.NICK, nickname, null);
+            if(response!=null && nickname.equals(response.getNickname())
+                    && isOk(call(Command.JOIN, nickname, PROBE_CHANNEL)) && isOk(call(Command.JOIN, nickname, "room" + i % 10)))
+                ++joined;
+            nicknames.add(nickname);
+        }
+        assertEquals("users logged in and joined their channels", USERS, joined);
+        assertEquals("sessions", USERS, totalUsers());
+        assertDelivered(nicknames);
+
+        startServer("server-d");
+        awaitAssignment();
+        assertEquals("sessions kept after server-d joined", USERS, countSessions(nicknames));
+        assertEquals("sessions after server-d joined", USERS, totalUsers());
+
+        ChatServer leaving = servers.remove("server-b");
+        leaving.shutdown();
+        serverThreads.remove("server-b").join();
+        awaitAssignment();
+        assertEquals("sessions kept after server-b left", USERS, countSessions(nicknames));
+        assertEquals("sessions after server-b left", USERS, totalUsers());
+        assertDelivered(nicknames);
+
+        BitSet lostPartitions = servers.get("server-c").getActivePartitions();
+        int expectedLost = 0;
+        for(String nickname:nicknames) {
+            if(lostPartitions.get(Partitioner.partitionFor(nickname, PARTITIONS))) ++expectedLost;
+        }
+        ChatServer dead = servers.remove("server-c");
+        dead.halt();
+        serverThreads.remove("server-c").join();
+        awaitAssignment();
+        int kept = 0;
+        int relogged = 0;
+        for(String nickname:nicknames) {
+            if(isAlreadyMember(call(Command.JOIN, nickname, PROBE_CHANNEL))) {
+                ++kept;
+            } else {
+                // The partition started empty: log in again like a client would
+                Response login = call(Command.NICK, nickname, null);
+                if(login!=null && nickname.equals(login.getNickname())) ++relogged;
+            }
+        }
+        assertEquals("only the dead instance's sessions were lost", USERS - expectedLost, kept);
+        assertEquals("lost users logged in again with their nickname", expectedLost, relogged);
+        assertEquals("sessions after the failover", USERS, totalUsers());
+    }
+
+    private void startServer(final String instanceId) throws Exception {
+        final ChatServer server = new ChatServer(transport, transport, instanceId, PARTITIONS);
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    server.start();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, instanceId);
+        thread.start();
+        servers.put(instanceId, server);
+        serverThreads.put(instanceId, thread);
+    }
+
+    /**
+     * Waits until every partition is served by the instance rendezvous hashing assigns it to, and by no other.
+     */
+    private void awaitAssignment() throws InterruptedException {
+        long start = System.currentTimeMillis();
+        // Let dead instances expire and the others notice the change before checking
+        Thread.sleep(5 * heartbeatMs);
+        long deadline = start + 60 * heartbeatMs + 10000;
+        while (!isAssigned()) {
+            if(System.currentTimeMillis() > deadline)
+                fail("partitions not assigned within " + (deadline - start) + " ms");
+            Thread.sleep(heartbeatMs / 4);
+        }
+    }
+
+    private boolean isAssigned() {
+        List<String> ids = new ArrayList<String>(servers.keySet());
+        for(int partition=0; partition<PARTITIONS; ++partition) {
+            String owner = ClusterCoordinator.ownerOf(ids, partition);
+            for(Map.Entry<String, ChatServer> entry:servers.entrySet()) {
+                if(entry.getValue().getActivePartitions().get(partition)!=entry.getKey().equals(owner))
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Counts the users whose session and membership the cluster still has.
+     */
+    private int countSessions(List<String> nicknames) throws Exception {
+        int count = 0;
+        for(String nickname:nicknames) {
+            if(isAlreadyMember(call(Command.JOIN, nickname, PROBE_CHANNEL))) ++count;
+        }
+        return count;
+    }
+
+    /**
+     * Every user sends to the probe channel through its own instance; one subscriber must get them all.
+     * With inbox delivery the subscriber reads the first user's inbox.
+     */
+    private void assertDelivered(List<String> nicknames) throws Exception {
+        String topic = InboxTopics.ENABLED ? InboxTopics.topicFor(nicknames.get(0)) : ChannelTopics.topicFor(PROBE_CHANNEL);
+        Set<String> keys = Collections.singleton(InboxTopics.ENABLED ? nicknames.get(0) : PROBE_CHANNEL);
+        final Subscription subscription = transport.subscribe(topic, "clustertest-" + UUID.randomUUID(), false);
+        for(String nickname:nicknames)
+            call(Command.SEND, nickname, PROBE_CHANNEL);
+        int received = 0;
+        final long deadline = System.currentTimeMillis() + 10000;
+        Thread closer = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    Thread.sleep(Math.max(1, deadline - System.currentTimeMillis()));
+                } catch (InterruptedException e) {
+                    return;
+                }
+                subscription.close();
+            }
+        });
+        closer.setDaemon(true);
+        closer.start();
+        while (received < nicknames.size() && subscription.hasNext()) {
+            Record record = subscription.next();
+            if(InboxTopics.ENABLED ? InboxTopics.isFor(record, keys) : ChannelTopics.isFor(record, keys)) ++received;
+        }
+        closer.interrupt();
+        subscription.close();
+        assertEquals("messages delivered across instances", nicknames.size(), received);
+    }
+
+    private int totalUsers() {
+        int count = 0;
+        for(ChatServer server:servers.values())
+            count += server.getUserCount();
+        return count;
+    }
+
+    private Response call(Command command, String nickname, String channelName) throws Exception {
+        Request request = new Request();
+        request.setCommand(command.name());
+        request.setNickname(nickname);
+        request.setChannelName(channelName);
+        request.setMessage(command==Command.SEND ? "hello from " + nickname : null);
+        request.setReplyTo(replyTopic);
+        try {
+            byte[] response = rpcClient.call(Partitioner.requestTopicFor(RPC_REQUEST_TOPIC_NAME, nickname, PARTITIONS), nickname, codec.encodeRequest(request));
+            return Codecs.detect(response).decodeResponse(response);
+        } catch (TimeoutException e) {
+            return null;
+        }
+    }
+
+    private static boolean isOk(Response response) {
+        return response!=null && response.isStatus();
+    }
+
+    private static boolean isAlreadyMember(Response response) {
+        return response!=null && !response.isStatus() && response.getMessage().contains("already a member");
+    }
+}
@@ -0,0 +1,49 @@
+package com.edmundophie.chat;
+
+import com.edmundophie.transport.InMemoryTransport;
+import com.edmundophie.transport.Subscription;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * An idle listener must park instead of spinning, and must end once its subscription closes.
+ */
+public class MessageConsumerImplTest {
+    private final InMemoryTransport transport = new InMemoryTransport();
+
+    @After
+    public void tearDown() {
+        transport.close();
+    }
+
+    @Test
+    public void idleListenerIsParked() throws Exception {
+        MessageConsumerImpl listener = new MessageConsumerImpl(transport.subscribe("idle-channel", "idle", false));
+        listener.start();
+        awaitState(listener, Thread.State.WAITING);
+        assertEquals(Thread.State.WAITING, listener.getState());
+
+        listener.terminate();
+        listener.join(5000);
+        assertFalse("the listener ended after terminate()", listener.isAlive());
+    }
+
+    @Test
+    public void listenerEndsWhenItsSubscriptionIsClosed() throws Exception {
+        Subscription subscription = transport.subscribe("closed-channel", "idle", false);
+        subscription.close();
+        MessageConsumerImpl listener = new MessageConsumerImpl(subscription);
+        listener.start();
+        listener.join(5000);
+        assertFalse("the listener ended on a closed subscription", listener.isAlive());
+    }
+
+    private static void awaitState(Thread thread, Thread.State state) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (thread.getState()!=state && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+    }
+}
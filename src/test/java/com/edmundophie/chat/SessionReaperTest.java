@@ -0,0 +1,50 @@
+package com.edmundophie.chat;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Drives a SessionReaper over a million sessions with a simulated clock.
+ */
+public class SessionReaperTest {
+    private final static int SESSIONS = 1000000;
+    private final static long LEASE_MS = 1000;
+    private final static long TICK_MS = 10;
+
+    @Test
+    public void expiresExactlyTheSessionsWhoseLeaseRanOut() {
+        final SessionRegistry registry = new SessionRegistry(SessionRegistry.UNLIMITED);
+        long now = 1000000;
+        SessionReaper reaper = new SessionReaper(registry, TICK_MS, 512, new SessionReaper.ExpiryHandler() {
+            public void expired(User user) {
+                registry.remove(user);
+            }
+        }, now);
+        // Of every ten sessions one logs out, one renews its lease and the rest go silent
+        int loggedOut = 0;
+        int renewed = 0;
+        for(int i=0; i<SESSIONS; ++i) {
+            User user = registry.claim("lease" + i);
+            user.setLogoutTimestamp(now + LEASE_MS);
+            reaper.schedule(user);
+            if(i % 10==0) {
+                registry.remove(user);
+                ++loggedOut;
+            } else if(i % 10==1) {
+                user.setLogoutTimestamp(now + 3 * LEASE_MS);
+                ++renewed;
+            }
+        }
+        int silent = SESSIONS - loggedOut - renewed;
+
+        assertEquals("expired before the lease ran out", 0, reaper.advance(now + LEASE_MS - TICK_MS));
+        assertEquals("silent sessions expired", silent, reaper.advance(now + LEASE_MS + TICK_MS));
+        assertEquals(renewed, registry.size());
+        assertEquals("logged out sessions left the wheel, renewed ones were moved", renewed, reaper.size());
+
+        assertEquals("renewed sessions expired at their new deadline", renewed, reaper.advance(now + 3 * LEASE_MS + TICK_MS));
+        assertEquals(0, registry.size());
+        assertEquals(0, reaper.size());
+    }
+}
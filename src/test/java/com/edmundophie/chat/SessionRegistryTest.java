@@ -0,0 +1,118 @@
+package com.edmundophie.chat;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Claims a million sessions from several threads. Half of them get generated nicknames, the
+ * other half are explicit nicknames each raced for by two threads. The first nicknames the
+ * generator would produce are taken beforehand, so generation has to step around them.
+ */
+public class SessionRegistryTest {
+    private final static int SESSIONS = 1000000;
+    private final static int THREADS = 4;
+    private final static int LIMIT = 10000;
+    private final static int RESERVED = 10000;
+
+    @Test
+    public void everyNicknameIsClaimedOnce() throws Exception {
+        final SessionRegistry registry = new SessionRegistry(SessionRegistry.UNLIMITED);
+        // Nicknames the generator would hand out first, taken by explicit logins beforehand
+        for(int i=0; i<RESERVED; ++i)
+            registry.claim("user" + Long.toString(i, 36));
+
+        final int explicitCount = SESSIONS / 2 - RESERVED;
+        final int generatedPerThread = (SESSIONS - SESSIONS / 2) / THREADS;
+        final int pairCount = THREADS / 2;
+        final AtomicInteger explicitWins = new AtomicInteger();
+        runThreads(new Worker() {
+            public void run(int thread) {
+                // Both threads of a pair claim the same explicit nicknames at about the same time
+                int pair = thread / 2 % pairCount;
+                int generated = 0;
+                for(int i=pair; i<explicitCount; i+=pairCount) {
+                    if(registry.claim("member" + i)!=null) explicitWins.incrementAndGet();
+                    if(generated < generatedPerThread && registry.claimGenerated(null)!=null) ++generated;
+                }
+                while (generated < generatedPerThread && registry.claimGenerated(null)!=null)
+                    ++generated;
+            }
+        });
+
+        Set<String> distinct = new HashSet<String>(registry.size() * 2);
+        for(User user:registry.getUsers())
+            distinct.add(user.getNickname());
+        assertEquals("raced explicit nicknames claimed", explicitCount, explicitWins.get());
+        assertEquals("nicknames generated", (long) generatedPerThread * THREADS, registry.getGeneratedCount());
+        assertEquals("generation conflicts with taken nicknames", 0, registry.getGenerationConflicts());
+        assertEquals("distinct nicknames", registry.size(), distinct.size());
+        assertEquals("sessions", RESERVED + explicitCount + generatedPerThread * THREADS, registry.size());
+
+        int removed = 0;
+        for(User user:new ArrayList<User>(registry.getUsers())) {
+            if(registry.remove(user)) ++removed;
+        }
+        assertEquals("sessions removed", distinct.size(), removed);
+        assertEquals(0, registry.size());
+    }
+
+    @Test
+    public void limitHoldsUnderContention() throws Exception {
+        final SessionRegistry registry = new SessionRegistry(LIMIT);
+        final AtomicInteger wins = new AtomicInteger();
+        runThreads(new Worker() {
+            public void run(int thread) {
+                for(int i=0; i<LIMIT; ++i) {
+                    User user = i % 2==0 ? registry.claim("limit-" + thread + "-" + i) : registry.claimGenerated(null);
+                    if(user!=null) wins.incrementAndGet();
+                }
+            }
+        });
+        assertEquals("claims won", LIMIT, wins.get());
+        assertEquals(LIMIT, registry.size());
+        assertTrue(registry.isFull());
+        assertEquals(0, registry.getRemainingCapacity());
+
+        registry.remove(registry.getUsers().iterator().next().getNickname());
+        assertEquals("a logout frees one session", 1, registry.getRemainingCapacity());
+        assertNotNull(registry.claim("after-logout"));
+        assertTrue(registry.isFull());
+    }
+
+    private interface Worker {
+        void run(int thread);
+    }
+
+    private static void runThreads(final Worker worker) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<Thread>();
+        for(int i=0; i<THREADS; ++i) {
+            final int index = i;
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    worker.run(index);
+                }
+            }, "sessions-" + i);
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for(Thread thread:threads)
+            thread.join();
+    }
+}
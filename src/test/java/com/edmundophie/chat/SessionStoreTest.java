@@ -0,0 +1,69 @@
+package com.edmundophie.chat;
+
+import com.edmundophie.store.SegmentedLog;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Writes a snapshot of users and memberships and loads it into a fresh registry and index.
+ */
+public class SessionStoreTest {
+    private final static int USERS = 1000;
+    private final static int CHANNELS = 10;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void restoresMembersThatLaterChangesCopy() throws IOException {
+        File directory = folder.newFolder("state");
+        SessionRegistry sessions = new SessionRegistry(SessionRegistry.UNLIMITED);
+        MembershipIndex membership = new MembershipIndex();
+        SessionStore store = new SessionStore(directory, 1 << 20, SegmentedLog.FsyncPolicy.NEVER);
+        store.start(sessions, membership, Long.MAX_VALUE, 1000);
+        for(int i=0; i<USERS; ++i) {
+            User user = sessions.claim("user" + i);
+            membership.join(user, "channel" + i % CHANNELS);
+            membership.join(user, "channel" + (i + 1) % CHANNELS);
+        }
+        membership.join(sessions.claim("solo"), "alone");
+        store.snapshot();
+        store.close();
+
+        SessionRegistry restoredSessions = new SessionRegistry(SessionRegistry.UNLIMITED);
+        MembershipIndex restored = new MembershipIndex();
+        SessionStore restoredStore = new SessionStore(directory, 1 << 20, SegmentedLog.FsyncPolicy.NEVER);
+        restoredStore.start(restoredSessions, restored, Long.MAX_VALUE, 1000);
+        try {
+            assertEquals(USERS + 1, restoredSessions.size());
+            assertEquals(CHANNELS + 1, restored.getChannelCount());
+            for(int i=0; i<CHANNELS; ++i)
+                assertEquals(2 * USERS / CHANNELS, restored.getMembers("channel" + i).size());
+            User user = restoredSessions.get("user7");
+            assertTrue(restored.isMember(user, "channel7"));
+            assertTrue(restored.isMember(user, "channel8"));
+            assertTrue(restored.getChannel("channel7").hasMember("user7"));
+
+            Set<String> before = restored.getMembers("channel0");
+            User newcomer = restoredSessions.claim("newcomer");
+            assertFalse("restored channel is not created again", restored.join(newcomer, "channel0"));
+            assertEquals(2 * USERS / CHANNELS + 1, restored.getMembers("channel0").size());
+            assertEquals("members read before the join are not changed", 2 * USERS / CHANNELS, before.size());
+
+            assertTrue(restored.leave(restoredSessions.get("solo"), "alone"));
+            assertNull("last member leaving retires a restored channel", restored.getChannel("alone"));
+        } finally {
+            restoredStore.close();
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.edmundophie.rpc;
+
+import com.edmundophie.transport.InMemoryTransport;
+import com.edmundophie.transport.Subscription;
+import com.edmundophie.transport.Transport;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that requests sent after close() fail without keeping their in-flight slot.
+ */
+public class AsyncRpcClientTest {
+
+    @Test(timeout = 10000)
+    public void sendAfterCloseReleasesItsSlot() throws Exception {
+        Transport transport = new InMemoryTransport();
+        Subscription responses = transport.subscribe("replies", "replies", true);
+        AsyncRpcClient client = new AsyncRpcClient(transport, "requests", responses, 1, 10000);
+        client.close();
+        try {
+            // With one slot, a leaked permit would block the second send
+            for(int i=0; i<2; ++i) {
+                RpcFuture future = client.sendAsync(new byte[0]);
+                try {
+                    future.get(1, TimeUnit.SECONDS);
+                    fail("request sent after close() completed");
+                } catch (ExecutionException e) {
+                    assertTrue(e.getCause() instanceof RejectedExecutionException);
+                }
+            }
+            assertEquals(0, client.getPendingCount());
+        } finally {
+            transport.close();
+        }
+    }
+}